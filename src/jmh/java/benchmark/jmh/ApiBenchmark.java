@@ -0,0 +1,235 @@
+package benchmark.jmh;
+
+import api.Api;
+import api.JsonSerializer;
+import api.ResponseWriter;
+import model.IdPage;
+import model.Transaction;
+import model.TransactionType;
+import org.openjdk.jmh.annotations.*;
+import service.TransactionService;
+import spark.SparkBase;
+import spark.webserver.MatcherFilter;
+
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP layer without the network: JSON writing and parsing as done by the routes,
+ * and whole requests dispatched by the Spark filter to the routes of {@link Api}.
+ * Requests and responses are plain proxies, so that they cost next to nothing.
+ *
+ * Created by simone on 01/03/16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ApiBenchmark {
+
+    private static final int TRANSACTIONS = 10000;
+    private static final byte[] TRANSACTION_BODY =
+            "{\"amount\": 10.5, \"parentId\": 1, \"transactionType\": \"CARS\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final JsonSerializer json = new JsonSerializer();
+    private final ResponseWriter responses = new ResponseWriter();
+
+    Transaction transaction;
+    IdPage page;
+    MatcherFilter filter;
+
+    /**
+     * Gives access to the routes registered on Spark.
+     */
+    static class Routes extends SparkBase {
+        static MatcherFilter filter() {
+            final MatcherFilter filter = new MatcherFilter(routeMatcher, false, false);
+            filter.init((FilterConfig) null);
+            return filter;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        final TransactionService transactionService = new TransactionService();
+        for (long id = 0; id < TRANSACTIONS; id++) {
+            transactionService.insert(new Transaction(id, 1.0, id < 100 ? null : id % 100, TransactionType.CARS));
+        }
+        transaction = transactionService.get(1234L);
+        final List<Long> ids = new ArrayList<>();
+        for (long id = 0; id < 100; id++) {
+            ids.add(id * 100);
+        }
+        page = new IdPage(ids, 9900L);
+
+        SparkBase.setPort(4569);
+        new Api(transactionService);
+        filter = Routes.filter();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SparkBase.stop();
+    }
+
+    @Benchmark
+    public long writeTransaction() throws IOException {
+        final CountingOutputStream output = new CountingOutputStream();
+        json.write(output, transaction, false);
+        return output.count;
+    }
+
+    @Benchmark
+    public long writeIdPage() throws IOException {
+        final CountingOutputStream output = new CountingOutputStream();
+        json.write(output, page, false);
+        return output.count;
+    }
+
+    @Benchmark
+    public long writeAmount() throws IOException {
+        final CountingOutputStream output = new CountingOutputStream();
+        responses.writeAmount(output, 1234.5, false);
+        return output.count;
+    }
+
+    @Benchmark
+    public Transaction readTransaction() throws IOException {
+        return json.read(new ByteArrayInputStream(TRANSACTION_BODY), Transaction.class);
+    }
+
+    @Benchmark
+    public long getTransactionRoute() throws Exception {
+        return request("GET", "/transactionservice/transaction/" + randomId() + "/", null);
+    }
+
+    @Benchmark
+    public long getSumRoute() throws Exception {
+        return request("GET", "/transactionservice/sum/" + randomId() + "/", null);
+    }
+
+    @Benchmark
+    public long getSubtreeSumRoute() throws Exception {
+        return request("GET", "/transactionservice/subtreesum/" + randomId() + "/", null);
+    }
+
+    /**
+     * A 404, which used to build an exception and its stack trace.
+     */
+    @Benchmark
+    public long getMissingTransactionRoute() throws Exception {
+        return request("GET", "/transactionservice/transaction/" + (TRANSACTIONS + randomId()) + "/", null);
+    }
+
+    @Benchmark
+    public long putTransactionRoute() throws Exception {
+        return request("PUT", "/transactionservice/transaction/" + (100 + randomId() % (TRANSACTIONS - 100)) + "/",
+                TRANSACTION_BODY);
+    }
+
+    private static long randomId() {
+        return ThreadLocalRandom.current().nextLong(TRANSACTIONS);
+    }
+
+    /**
+     * Dispatches a request to the routes.
+     * @return the number of bytes of the response
+     */
+    private long request(String method, String path, byte[] body) throws Exception {
+        final ByteArrayInputStream input = new ByteArrayInputStream(body == null ? new byte[0] : body);
+        final ServletInputStream servletInput = new ServletInputStream() {
+            @Override
+            public int read() {
+                return input.read();
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) {
+                return input.read(bytes, offset, length);
+            }
+        };
+        final CountingOutputStream output = new CountingOutputStream();
+
+        final HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(), new Class<?>[]{HttpServletRequest.class},
+                (proxy, invoked, arguments) -> {
+                    switch (invoked.getName()) {
+                        case "getMethod":
+                            return method;
+                        case "getPathInfo":
+                        case "getRequestURI":
+                            return path;
+                        case "getInputStream":
+                            return servletInput;
+                        case "getContentLength":
+                            return body == null ? -1 : body.length;
+                        case "getHeaders":
+                        case "getHeaderNames":
+                        case "getAttributeNames":
+                            return Collections.emptyEnumeration();
+                        default:
+                            return defaultValue(invoked.getReturnType());
+                    }
+                });
+        final HttpServletResponse response = (HttpServletResponse) Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(), new Class<?>[]{HttpServletResponse.class},
+                (proxy, invoked, arguments) -> {
+                    switch (invoked.getName()) {
+                        case "getOutputStream":
+                            return output;
+                        case "getHeaders":
+                        case "getHeaderNames":
+                            return Collections.emptyList();
+                        default:
+                            return defaultValue(invoked.getReturnType());
+                    }
+                });
+
+        filter.doFilter(request, response, null);
+        return output.count;
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Discards the response, only counting its bytes.
+     */
+    static class CountingOutputStream extends ServletOutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            count += length;
+        }
+    }
+}
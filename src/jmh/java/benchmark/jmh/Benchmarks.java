@@ -0,0 +1,27 @@
+package benchmark.jmh;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks with the GC profiler, which also reports the bytes allocated
+ * per operation (gc.alloc.rate.norm). Takes the usual JMH options, e.g. a benchmark
+ * regexp, -t for the number of threads or -p size=10000 for a single data size.
+ *
+ *     mvn -P jmh test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *     java -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.jmh.Benchmarks
+ *
+ * Created by simone on 01/03/16.
+ */
+public class Benchmarks {
+
+    public static void main(String[] args) throws Exception {
+        new Runner(new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
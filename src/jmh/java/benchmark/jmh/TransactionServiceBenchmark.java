@@ -0,0 +1,83 @@
+package benchmark.jmh;
+
+import model.Transaction;
+import model.TransactionType;
+import org.openjdk.jmh.annotations.*;
+import service.TransactionService;
+import service.index.IdSet;
+import service.store.MapTransactionStore;
+import service.store.OffHeapTransactionStore;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot paths of {@link TransactionService} on both stores and at different data sizes.
+ * Transactions form a tree of 1000 roots with the others spread under them.
+ * Run with -t to change the number of threads.
+ *
+ * Created by simone on 01/03/16.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class TransactionServiceBenchmark {
+
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    @Param({"10000", "1000000"})
+    int size;
+
+    @Param({"heap", "offheap"})
+    String store;
+
+    TransactionService transactionService;
+    /**
+     * Next id of the new transactions, the store grows along the run.
+     */
+    AtomicLong nextId;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        transactionService = new TransactionService(
+                "offheap".equals(store) ? new OffHeapTransactionStore() : new MapTransactionStore());
+        for (long id = 0; id < size; id++) {
+            transactionService.insert(transaction(id, 1.0));
+        }
+        nextId = new AtomicLong(size);
+    }
+
+    @Benchmark
+    public Transaction insertNew() {
+        return transactionService.insert(transaction(nextId.getAndIncrement(), 1.0));
+    }
+
+    @Benchmark
+    public Transaction insertReplace() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return transactionService.insert(transaction(random.nextLong(size), random.nextDouble()));
+    }
+
+    @Benchmark
+    public Transaction get() {
+        return transactionService.get(ThreadLocalRandom.current().nextLong(size));
+    }
+
+    @Benchmark
+    public Double getChildrenSum() {
+        return transactionService.getChildrenSum(ThreadLocalRandom.current().nextLong(size));
+    }
+
+    @Benchmark
+    public IdSet getByType() {
+        return transactionService.getByType(TYPES[ThreadLocalRandom.current().nextInt(TYPES.length)]);
+    }
+
+    private static Transaction transaction(long id, double amount) {
+        return new Transaction(id, amount, id < 1000 ? null : id % 1000, TYPES[(int) (id % TYPES.length)]);
+    }
+}
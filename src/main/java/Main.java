@@ -1,23 +1,56 @@
 import api.Api;
+import api.Cluster;
+import api.HttpServer;
+import api.Replication;
+import api.ServerSettings;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import org.springframework.context.annotation.ComponentScan;
-import org.springframework.context.annotation.Configuration;
 import service.TransactionService;
 
-import static spark.SparkBase.threadPool;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Map;
+import java.util.Properties;
 
-@Configuration
 @ComponentScan({ "service", "api" })
 public class Main {
 
-    public static void main(String[] args) {
-        int maxThreads = 8;
-        int minThreads = 2;
-        int timeOutMillis = 30000;
+    /**
+     * System property naming a properties file with the settings of the service and of the server.
+     * The system properties given on the command line win over the file.
+     */
+    public static final String CONFIG_PROPERTY = "transactionservice.config";
+    /**
+     * System property setting the HTTP port, 4567 by default.
+     */
+    public static final String PORT_PROPERTY = "transactionservice.port";
 
+    public static void main(String[] args) throws Exception {
+        loadConfig(System.getProperty(CONFIG_PROPERTY));
+        ServerSettings settings = ServerSettings.from(System.getProperties());
+        Cluster cluster = Cluster.from(System.getProperties());
+        Replication replication = Replication.from(System.getProperties());
+
+        HttpServer server = new HttpServer(settings, Integer.getInteger(PORT_PROPERTY, 4567));
         AnnotationConfigApplicationContext ctx = new AnnotationConfigApplicationContext(Main.class);
-        threadPool(maxThreads, minThreads, timeOutMillis);
-        new Api(ctx.getBean(TransactionService.class));
+        TransactionService transactionService = ctx.getBean(TransactionService.class);
+        server.start(() -> new Api(transactionService, cluster, replication));
         ctx.registerShutdownHook();
     }
-}
\ No newline at end of file
+
+    private static void loadConfig(String file) throws IOException {
+        if (file == null) {
+            return;
+        }
+        Properties config = new Properties();
+        try (Reader reader = new FileReader(file)) {
+            config.load(reader);
+        }
+        for (Map.Entry<Object, Object> entry : config.entrySet()) {
+            if (System.getProperty((String) entry.getKey()) == null) {
+                System.setProperty((String) entry.getKey(), (String) entry.getValue());
+            }
+        }
+    }
+}
@@ -1,24 +1,37 @@
 package api;
 
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.exc.InvalidFormatException;
+import metrics.LatencyHistogram;
+import metrics.MetricsWriter;
+import model.Delta;
+import model.IdPage;
 import model.Transaction;
 import model.TransactionType;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+import spark.ExceptionHandler;
+import spark.Request;
+import spark.Response;
+import spark.Route;
 
-import org.eclipse.jetty.server.Response;
+import service.TransactionListener;
 import service.TransactionService;
+import service.WriteSequencer;
+import service.index.IdSet;
 import service.exceptions.InvalidTransactionException;
 import service.exceptions.TransactionNotFoundException;
 import service.exceptions.TransactionTypeNotFoundException;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.StringWriter;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
 
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
 import static spark.Spark.*;
 
@@ -31,135 +44,762 @@ public class Api {
 
     private static final String TRANSACTION_SERVICE_ENDPOINT = "/transactionservice";
     private static final String TRANSACTION_ENDPOINT = "/transaction";
+    private static final String TRANSACTIONS_ENDPOINT = "/transactions";
+    private static final String STREAM_ENDPOINT = "/stream";
     private static final String SUM_ENDPOINT = "/sum";
+    private static final String SUBTREE_SUM_ENDPOINT = "/subtreesum";
+    private static final String CHILDREN_ENDPOINT = "/children";
+    private static final String SUBTREE_ENDPOINT = "/subtree";
     private static final String TYPE_ENDPOINT = "/type";
+    private static final String METRICS_ENDPOINT = "/metrics";
+    /**
+     * Query parameter asking for indented JSON.
+     */
+    private static final String PRETTY_PARAM = "pretty";
+    /**
+     * Query parameter setting the number of streamed transactions applied at once.
+     */
+    private static final String CHUNK_PARAM = "chunk";
+    private static final int DEFAULT_CHUNK_SIZE = 1000;
+    private static final int MAX_CHUNK_SIZE = 10000;
+    /**
+     * Query parameters of paginated lists: the cursor returned as "next" by the previous page and the page size.
+     */
+    private static final String AFTER_PARAM = "after";
+    private static final String LIMIT_PARAM = "limit";
+    private static final int DEFAULT_LIMIT = 100;
+    private static final int MAX_LIMIT = 10000;
+    private static final String NDJSON_TYPE = "application/x-ndjson";
+    /**
+     * Query parameter asking a node of a cluster for its own transactions only.
+     */
+    private static final String LOCAL_PARAM = "local";
+    /**
+     * Query parameter bounding the staleness of a read served by a follower, in milliseconds.
+     * Staler followers forward the read to the leader.
+     */
+    private static final String STALENESS_PARAM = "staleness";
+    /**
+     * System property setting the memory of the cached responses of transactions and sums,
+     * in bytes, shared evenly between them. 0, the default, disables the caches.
+     */
+    public static final String CACHE_BYTES_PROPERTY = "transactionservice.cache.bytes";
+    /**
+     * System properties selecting how single insertions are applied, "locked" by the request
+     * threads or "sequenced" by a single {@link WriteSequencer} thread, and the number of its slots.
+     */
+    public static final String WRITES_PROPERTY = "transactionservice.writes";
+    public static final String SEQUENCER_SLOTS_PROPERTY = "transactionservice.writes.slots";
+    private static final String ETAG_HEADER = "ETag";
+    private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    private static final int ETAG_SLOTS = 4096;
+
+    private static final JsonSerializer JSON = new JsonSerializer();
+    private static final ResponseWriter RESPONSES = new ResponseWriter();
 
     TransactionService transactionService;
+    StreamIngester streamIngester;
+    /**
+     * Compact JSON of the transactions and of the sums of their children, null if disabled.
+     */
+    private final ResponseCache transactionCache;
+    private final ResponseCache sumCache;
+    /**
+     * Applies the single insertions, null if the request threads do.
+     */
+    private final WriteSequencer writeSequencer;
+    /**
+     * The other nodes, null if not in a cluster.
+     */
+    private final Cluster cluster;
+    /**
+     * The leader or the followers, null if not replicated.
+     */
+    private final Replication replication;
+    /**
+     * Latencies of each route and number of errors of each mapped exception, by name.
+     * Filled while the routes are configured, only read afterwards.
+     */
+    private final Map<String, LatencyHistogram> routeLatencies = new LinkedHashMap<>();
+    private final Map<String, LongAdder> exceptionCounts = new LinkedHashMap<>();
+    /**
+     * Ids not found, answered without throwing or counted by the exception mapping.
+     */
+    private final LongAdder notFounds = new LongAdder();
+    /**
+     * Start of the ETags, different on every start so that versions counted again from
+     * zero never match the ETags of a previous run.
+     */
+    private final String etagPrefix = "\"" + Long.toString(new Random().nextLong() & Long.MAX_VALUE, 36) + "-";
+    /**
+     * ETags of the versions last served, by version modulo the number of slots. The versions are
+     * counted by stripe, so many transactions share them and their ETags are seldom built again.
+     */
+    private final Etag[] etags = new Etag[ETAG_SLOTS];
+
+    /**
+     * ETag of a version. Immutable, so it can be shared through {@link #etags} without locking.
+     */
+    private static final class Etag {
+        final long version;
+        final String value;
+
+        Etag(long version, String value) {
+            this.version = version;
+            this.value = value;
+        }
+    }
 
     public Api(TransactionService transactionService) {
+        this(transactionService, null, null);
+    }
+
+    /**
+     * Starts the replication, if any, before adding the routes: a follower waits for the
+     * snapshot of the leader.
+     * @param transactionService
+     * @param cluster the nodes sharing the transactions, may be null
+     * @param replication the replication of this server, may be null
+     */
+    public Api(TransactionService transactionService, Cluster cluster, Replication replication) {
+        if (cluster != null && replication != null) {
+            throw new IllegalArgumentException("A node of a cluster cannot be replicated.");
+        }
         this.transactionService = transactionService;
+        this.cluster = cluster;
+        this.replication = replication;
+        if (cluster != null) {
+            transactionService.setPartition(cluster);
+        }
+        if (replication != null) {
+            replication.start(transactionService);
+        }
+        this.streamIngester = new StreamIngester(transactionService, JSON, RESPONSES);
+        final long cacheBytes = Long.getLong(CACHE_BYTES_PROPERTY, 0L);
+        if (cacheBytes > 0) {
+            final ResponseCache transactions = new ResponseCache(cacheBytes / 2);
+            final ResponseCache sums = new ResponseCache(cacheBytes / 2);
+            transactionService.addListener(new TransactionListener() {
+                @Override
+                public void transactionChanged(long id) {
+                    transactions.invalidate(id);
+                }
+
+                @Override
+                public void childrenSumChanged(long id) {
+                    sums.invalidate(id);
+                }
+            });
+            this.transactionCache = transactions;
+            this.sumCache = sums;
+        } else {
+            this.transactionCache = null;
+            this.sumCache = null;
+        }
+        this.writeSequencer = "sequenced".equalsIgnoreCase(System.getProperty(WRITES_PROPERTY))
+                ? new WriteSequencer(transactionService, Integer.getInteger(SEQUENCER_SLOTS_PROPERTY, 1024))
+                : null;
         configRoutes();
     }
 
+    /**
+     * Writes a response body, compact or pretty.
+     */
+    @FunctionalInterface
+    private interface Body {
+        void writeTo(OutputStream output, boolean pretty) throws IOException;
+    }
+
+    /**
+     * Writes the compact body from the cache, if there. Pretty bodies are never cached.
+     * @param req
+     * @param res
+     * @param cache may be null
+     * @param id
+     * @param version read before the data
+     * @return true if written
+     */
+    private static boolean writeCached(Request req, Response res, ResponseCache cache, long id, long version)
+            throws IOException {
+        if (cache == null || isPretty(req)) {
+            return false;
+        }
+        final byte[] bytes = cache.get(id, version);
+        if (bytes == null) {
+            return false;
+        }
+        res.raw().getOutputStream().write(bytes);
+        return true;
+    }
+
+    /**
+     * Writes the body, caching it if compact, see {@link #writeCached(Request, Response, ResponseCache, long, long)}.
+     * @param req
+     * @param res
+     * @param cache may be null
+     * @param id
+     * @param version read before the data
+     * @param body
+     * @return an empty body, the data is written straight to the response stream
+     */
+    private static String writeAndCache(Request req, Response res, ResponseCache cache, long id, long version, Body body)
+            throws IOException {
+        final OutputStream output = res.raw().getOutputStream();
+        if (cache == null || isPretty(req)) {
+            body.writeTo(output, isPretty(req));
+            return "";
+        }
+        final ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+        body.writeTo(buffer, false);
+        final byte[] bytes = buffer.toByteArray();
+        cache.put(id, version, bytes);
+        output.write(bytes);
+        return "";
+    }
+
     /**
      * Jackson serializer
+     * @param req
+     * @param res
      * @param data
-     * @return
+     * @return an empty body, the data is written straight to the response stream
      */
-    private static String dataToJson(Object data) {
+    private static String dataToJson(Request req, Response res, Object data) {
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            mapper.enable(SerializationFeature.INDENT_OUTPUT);
-            StringWriter sw = new StringWriter();
-            mapper.writeValue(sw, data);
-            return sw.toString();
-        } catch (IOException e){
-            throw new RuntimeException("IOException from a StringWriter?");
+            JSON.write(res.raw().getOutputStream(), data, isPretty(req));
+            return "";
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+    /**
+     * Reads a parameter from the query string only. Unlike {@link Request#queryParams(String)}
+     * it never parses, and so consumes, a form encoded body.
+     * @param req
+     * @param name
+     * @return the value, empty if the parameter has none, null if missing
+     */
+    private static String queryParam(Request req, String name) {
+        final String query = req.raw().getQueryString();
+        if (query == null) {
+            return null;
+        }
+        // Scanned in place, only the value found is copied.
+        int start = 0;
+        while (start <= query.length()) {
+            int end = query.indexOf('&', start);
+            if (end < 0) {
+                end = query.length();
+            }
+            final int keyEnd = start + name.length();
+            if (query.startsWith(name, start) && (keyEnd == end || query.charAt(keyEnd) == '=')) {
+                return keyEnd == end ? "" : query.substring(keyEnd + 1, end);
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    private static boolean isPretty(Request req) {
+        return queryParam(req, PRETTY_PARAM) != null;
+    }
+
+    /**
+     * Reads a positive integer from the query string, capped to max.
+     */
+    private static int intParam(Request req, String name, int defaultValue, int max) {
+        final String value = queryParam(req, name);
+        return value == null ? defaultValue : Math.max(1, Math.min(max, Integer.parseInt(value)));
+    }
+
+    private static Long afterParam(Request req) {
+        final String after = queryParam(req, AFTER_PARAM);
+        return after == null ? null : Long.valueOf(after);
+    }
+
+    /**
+     * Sets the ETag of the given version on the response. If the client has it already, sets
+     * the status to 304 instead: the route must then return without writing a body.
+     * Called once the resource is known to exist, so that only 200 and 304 carry an ETag
+     * and "*" only matches an existing resource.
+     * @param req
+     * @param res
+     * @param version read before the data
+     * @return true if not modified
+     */
+    private boolean notModified(Request req, Response res, long version) {
+        final String etag = etag(version);
+        res.header(ETAG_HEADER, etag);
+        final String ifNoneMatch = req.raw().getHeader(IF_NONE_MATCH_HEADER);
+        if (ifNoneMatch == null || !matches(ifNoneMatch, etag)) {
+            return false;
         }
+        res.status(HttpServletResponse.SC_NOT_MODIFIED);
+        return true;
     }
 
+    private String etag(long version) {
+        final int slot = (int) (version & (ETAG_SLOTS - 1));
+        Etag etag = etags[slot];
+        if (etag == null || etag.version != version) {
+            etag = new Etag(version, etagPrefix + version + "\"");
+            etags[slot] = etag;
+        }
+        return etag.value;
+    }
+
+    /**
+     * Scans an If-None-Match header in place.
+     * @param ifNoneMatch
+     * @param etag
+     * @return true if the header lists the ETag, weak or strong, or is "*"
+     */
+    private static boolean matches(String ifNoneMatch, String etag) {
+        final int length = ifNoneMatch.length();
+        int start = 0;
+        while (start < length) {
+            int end = ifNoneMatch.indexOf(',', start);
+            if (end < 0) {
+                end = length;
+            }
+            int from = start;
+            int to = end;
+            while (from < to && ifNoneMatch.charAt(from) <= ' ') {
+                from++;
+            }
+            while (to > from && ifNoneMatch.charAt(to - 1) <= ' ') {
+                to--;
+            }
+            if (ifNoneMatch.startsWith("W/", from)) {
+                from += 2;
+            }
+            final int size = to - from;
+            if (size == 1 && ifNoneMatch.charAt(from) == '*'
+                    || size == etag.length() && ifNoneMatch.regionMatches(from, etag, 0, size)) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    /**
+     * Forwards the request to the node of the transaction given by the :id parameter,
+     * if it is kept by another one.
+     * @param route handles the transactions kept here
+     * @return
+     */
+    private Route owned(Route route) {
+        if (cluster == null) {
+            return route;
+        }
+        return (req, res) -> {
+            final int owner = cluster.ownerOf(Long.parseLong(req.params(":id")));
+            if (owner == cluster.getSelf()) {
+                return route.handle(req, res);
+            }
+            cluster.forward(owner, req.raw(), res.raw());
+            return "";
+        };
+    }
+
+    /**
+     * Forwards the writes sent to a follower to the leader.
+     * @param route handles the writes on the leader
+     * @return
+     */
+    private Route leading(Route route) {
+        if (replication == null || !replication.isFollower()) {
+            return route;
+        }
+        return (req, res) -> {
+            replication.forward(req.raw(), res.raw());
+            return "";
+        };
+    }
+
+    /**
+     * Forwards a read to the leader if the follower is staler than the request allows, or
+     * has diverged from the leader.
+     * @param route handles the reads served here
+     * @return
+     */
+    private Route fresh(Route route) {
+        if (replication == null || !replication.isFollower()) {
+            return route;
+        }
+        return (req, res) -> {
+            final String staleness = queryParam(req, STALENESS_PARAM);
+            if (replication.isDiverged()
+                    || staleness != null && replication.getStalenessMillis() > Long.parseLong(staleness)) {
+                replication.forward(req.raw(), res.raw());
+                return "";
+            }
+            return route.handle(req, res);
+        };
+    }
+
+    /**
+     * Lists the ids of the types kept by every node of the cluster, merged by ascending id.
+     * The list has no ETag, since each node has its own versions.
+     */
+    private String clusterTypes(Request req, Response res, List<TransactionType> transactionTypes) throws IOException {
+        final String after = queryParam(req, AFTER_PARAM);
+        final String limitParam = queryParam(req, LIMIT_PARAM);
+        final String path = req.raw().getRequestURI() + "?" + LOCAL_PARAM
+                + (after == null ? "" : "&" + AFTER_PARAM + "=" + after)
+                + (limitParam == null ? "" : "&" + LIMIT_PARAM + "=" + limitParam);
+        if (after != null || limitParam != null) {
+            final int limit = intParam(req, LIMIT_PARAM, DEFAULT_LIMIT, MAX_LIMIT);
+            final TreeSet<Long> merged = new TreeSet<>(
+                    transactionService.getByTypes(transactionTypes, afterParam(req), limit).getIds());
+            for (Map<?, ?> page : cluster.fanOut(path, Map.class)) {
+                for (Object id : (List<?>) page.get("ids")) {
+                    merged.add(((Number) id).longValue());
+                }
+            }
+            final List<Long> ids = new ArrayList<>(Math.min(limit, merged.size()));
+            for (Long id : merged) {
+                if (ids.size() == limit) {
+                    break;
+                }
+                ids.add(id);
+            }
+            return dataToJson(req, res, new IdPage(ids, ids.size() == limit ? ids.get(limit - 1) : null));
+        }
+        final Roaring64Bitmap merged = new Roaring64Bitmap();
+        final LongIterator local = transactionService.getByTypes(transactionTypes).longIterator();
+        while (local.hasNext()) {
+            merged.addLong(local.next());
+        }
+        for (long[] ids : cluster.fanOut(path, long[].class)) {
+            for (long id : ids) {
+                merged.addLong(id);
+            }
+        }
+        RESPONSES.writeIds(res.raw().getOutputStream(), merged.getLongIterator(), isPretty(req));
+        return "";
+    }
+
+    /**
+     * Records the latency of every request of a route, failed or not.
+     * @param name label of the route in the metrics
+     * @param route
+     * @return
+     */
+    private Route timed(String name, Route route) {
+        final LatencyHistogram latencies = new LatencyHistogram();
+        routeLatencies.put(name, latencies);
+        return (req, res) -> {
+            final long start = System.nanoTime();
+            try {
+                return route.handle(req, res);
+            } finally {
+                latencies.recordSince(start);
+            }
+        };
+    }
+
+    /**
+     * Maps an exception to a handler, counting its occurrences.
+     * @param exceptionClass
+     * @param handler
+     */
+    private void mapException(Class<? extends Exception> exceptionClass, ExceptionHandler handler) {
+        mapException(exceptionClass, new LongAdder(), handler);
+    }
+
+    /**
+     * Maps an exception to a handler, counting its occurrences in the given count.
+     * @param exceptionClass
+     * @param count
+     * @param handler
+     */
+    private void mapException(Class<? extends Exception> exceptionClass, LongAdder count, ExceptionHandler handler) {
+        exceptionCounts.put(exceptionClass.getSimpleName(), count);
+        exception(exceptionClass, (e, request, response) -> {
+            count.increment();
+            handler.handle(e, request, response);
+        });
+    }
+
+    /**
+     * Writes the request and error metrics, then those of the service.
+     */
+    private void writeMetrics(MetricsWriter metrics) {
+        metrics.family("transactionservice_request_duration_seconds", "histogram",
+                "Latency of the requests of each route, failed ones included.");
+        for (Map.Entry<String, LatencyHistogram> route : routeLatencies.entrySet()) {
+            metrics.histogram("transactionservice_request_duration_seconds", "route", route.getKey(), route.getValue());
+        }
+        metrics.family("transactionservice_errors_total", "counter", "Requests failed with each mapped exception.");
+        for (Map.Entry<String, LongAdder> exception : exceptionCounts.entrySet()) {
+            metrics.sample("transactionservice_errors_total", "exception", exception.getKey(), exception.getValue().sum());
+        }
+        if (transactionCache != null) {
+            metrics.family("transactionservice_cache_hits_total", "counter", "Responses served from the cache.")
+                    .sample("transactionservice_cache_hits_total", "cache", "transaction", transactionCache.getHits())
+                    .sample("transactionservice_cache_hits_total", "cache", "sum", sumCache.getHits());
+            metrics.family("transactionservice_cache_misses_total", "counter", "Responses missing from the cache.")
+                    .sample("transactionservice_cache_misses_total", "cache", "transaction", transactionCache.getMisses())
+                    .sample("transactionservice_cache_misses_total", "cache", "sum", sumCache.getMisses());
+            metrics.family("transactionservice_cache_evictions_total", "counter", "Responses evicted to make room.")
+                    .sample("transactionservice_cache_evictions_total", "cache", "transaction", transactionCache.getEvictions())
+                    .sample("transactionservice_cache_evictions_total", "cache", "sum", sumCache.getEvictions());
+            metrics.family("transactionservice_cache_entries", "gauge", "Cached responses.")
+                    .sample("transactionservice_cache_entries", "cache", "transaction", transactionCache.size())
+                    .sample("transactionservice_cache_entries", "cache", "sum", sumCache.size());
+            metrics.family("transactionservice_cache_bytes", "gauge", "Memory of the cached responses.")
+                    .sample("transactionservice_cache_bytes", "cache", "transaction", transactionCache.sizeInBytes())
+                    .sample("transactionservice_cache_bytes", "cache", "sum", sumCache.sizeInBytes());
+        }
+        if (writeSequencer != null) {
+            writeSequencer.writeMetrics(metrics);
+        }
+        if (cluster != null) {
+            cluster.writeMetrics(metrics);
+        }
+        if (replication != null) {
+            replication.writeMetrics(metrics);
+        }
+        transactionService.writeMetrics(metrics);
+    }
 
     private void configRoutes() {
         /**
          * Returns a {@link Transaction} Object of the desired Id in JSON format
          */
-        get(TRANSACTION_SERVICE_ENDPOINT + TRANSACTION_ENDPOINT + "/:id/",
-                (req, res) -> dataToJson(transactionService.get(Long.valueOf(req.params(":id")))));
+        get(TRANSACTION_SERVICE_ENDPOINT + TRANSACTION_ENDPOINT + "/:id/", timed("get_transaction", fresh(owned(
+                (req, res) -> {
+                    final long transactionId = Long.parseLong(req.params(":id"));
+                    final long version = transactionService.getVersion(transactionId);
+                    if (!transactionService.exists(transactionId)) {
+                        return notFound(req, res, transactionId);
+                    }
+                    if (notModified(req, res, version)
+                            || writeCached(req, res, transactionCache, transactionId, version)) {
+                        return "";
+                    }
+                    final Transaction transaction = transactionService.find(transactionId);
+                    if (transaction == null) {
+                        return notFound(req, res, transactionId);
+                    }
+                    return writeAndCache(req, res, transactionCache, transactionId, version,
+                            (output, pretty) -> JSON.write(output, transaction, pretty));
+                }))));
         /**
          * Stores a new {@link Transaction} Object
          */
-        put(TRANSACTION_SERVICE_ENDPOINT + TRANSACTION_ENDPOINT + "/:id/",
+        put(TRANSACTION_SERVICE_ENDPOINT + TRANSACTION_ENDPOINT + "/:id/", timed("put_transaction", leading(owned(
                 (req, res) -> {
                     final Transaction creation;
-                    ObjectMapper mapper = new ObjectMapper();
                     try {
-                        creation = mapper.readValue(req.body(), Transaction.class);
+                        creation = JSON.read(req.raw().getInputStream(), Transaction.class);
                     } catch (JsonParseException e) {
                         throw new InvalidTransactionException("Invalid JSON");
                     } catch (Exception e) {
                         throw new InvalidTransactionException(e.getMessage());
                     }
 
-                    if (creation.getAmount().isInfinite()) {
-                        throw new InvalidTransactionException("Amount is too big");
+                    creation.setId(Long.parseLong(req.params(":id")));
+                    final Long parentId = creation.getParentId();
+                    if (cluster != null && parentId != null && parentId >= 0 && !cluster.owns(parentId)
+                            && !cluster.exists(parentId)) {
+                        throw new TransactionNotFoundException(TransactionNotFoundException.message(parentId));
                     }
-                    final Long transactionId = Long.valueOf(req.params(":id"));
-                    creation.setId(transactionId);
-                    transactionService.insert(creation);
-                    return dataToJson(Collections.unmodifiableMap(Stream.of(
-                            new AbstractMap.SimpleEntry<>("status", "ok"))
-                            .collect(Collectors.toMap((e) -> e.getKey(), (e) -> e.getValue()))));
-                });
+                    if (writeSequencer != null) {
+                        writeSequencer.insert(creation);
+                    } else {
+                        transactionService.insert(creation);
+                    }
+                    RESPONSES.writeStatusOk(res.raw().getOutputStream(), isPretty(req));
+                    return "";
+                }))));
+        /**
+         * Stores a batch of {@link Transaction} given as a JSON array or as NDJSON
+         */
+        put(TRANSACTION_SERVICE_ENDPOINT + TRANSACTIONS_ENDPOINT + "/", timed("put_transactions", leading(
+                (req, res) -> {
+                    final List<Transaction> batch = new ArrayList<>();
+                    try (MappingIterator<Transaction> transactions =
+                                 JSON.readValues(req.raw().getInputStream(), Transaction.class)) {
+                        while (transactions.hasNextValue()) {
+                            batch.add(transactions.nextValue());
+                        }
+                    } catch (JsonParseException e) {
+                        throw new InvalidTransactionException("Invalid JSON");
+                    } catch (Exception e) {
+                        throw new InvalidTransactionException(e.getMessage());
+                    }
+                    return dataToJson(req, res, transactionService.insertAll(batch));
+                })));
+        /**
+         * Stores a stream of NDJSON {@link Transaction} of any size, reporting the progress as NDJSON
+         */
+        put(TRANSACTION_SERVICE_ENDPOINT + TRANSACTIONS_ENDPOINT + STREAM_ENDPOINT + "/", timed("put_transactions_stream", leading(
+                (req, res) -> {
+                    final int chunkSize = intParam(req, CHUNK_PARAM, DEFAULT_CHUNK_SIZE, MAX_CHUNK_SIZE);
+                    res.type(NDJSON_TYPE);
+                    streamIngester.ingest(req.raw().getInputStream(), res.raw().getOutputStream(), chunkSize);
+                    return "";
+                })));
         /**
          * Returns the sum of {@link Transaction} with same parentId
          */
-        get(TRANSACTION_SERVICE_ENDPOINT + SUM_ENDPOINT + "/:id/",
+        get(TRANSACTION_SERVICE_ENDPOINT + SUM_ENDPOINT + "/:id/", timed("get_sum", fresh(owned(
                 (req, res) -> {
-                    final Long transactionId = Long.valueOf(req.params(":id"));
-                    return dataToJson(Collections.unmodifiableMap(Stream.of(
-                            new AbstractMap.SimpleEntry<>("amount",
-                                    transactionService.getChildrenSum(transactionId)))
-                            .collect(Collectors.toMap((e) -> e.getKey(), (e) -> e.getValue()))));
-                });
+                    final long transactionId = Long.parseLong(req.params(":id"));
+                    final long version = transactionService.getChildrenSumVersion(transactionId);
+                    if (!transactionService.exists(transactionId)) {
+                        return notFound(req, res, transactionId);
+                    }
+                    if (notModified(req, res, version)
+                            || writeCached(req, res, sumCache, transactionId, version)) {
+                        return "";
+                    }
+                    final double sum = transactionService.childrenSum(transactionId);
+                    return writeAndCache(req, res, sumCache, transactionId, version,
+                            (output, pretty) -> RESPONSES.writeAmount(output, sum, pretty));
+                }))));
         /**
-         * Returns a list of  {@link Transaction} with same {@link TransactionType}
+         * Returns the sum of all the descendants of a {@link Transaction}
          */
-        get(TRANSACTION_SERVICE_ENDPOINT + TYPE_ENDPOINT + "/:typeId/",
+        get(TRANSACTION_SERVICE_ENDPOINT + SUBTREE_SUM_ENDPOINT + "/:id/", timed("get_subtreesum", fresh(owned(
                 (req, res) -> {
-                    try {
-                        return dataToJson(transactionService.getByType(TransactionType.valueOf(req.params(":typeId").toUpperCase())));
-                    } catch (IllegalArgumentException e) {
-                        throw new TransactionTypeNotFoundException("Cannot find transaction type: " + req.params(":typeId"));
+                    final long transactionId = Long.parseLong(req.params(":id"));
+                    if (!transactionService.exists(transactionId)) {
+                        return notFound(req, res, transactionId);
                     }
+                    final double sum = transactionService.subtreeSum(transactionId);
+                    RESPONSES.writeAmount(res.raw().getOutputStream(), sum, isPretty(req));
+                    return "";
+                }))));
+        /**
+         * Returns a page of the children ids of a {@link Transaction}
+         */
+        get(TRANSACTION_SERVICE_ENDPOINT + CHILDREN_ENDPOINT + "/:id/", timed("get_children", fresh(owned(
+                (req, res) -> dataToJson(req, res, transactionService.getChildren(Long.valueOf(req.params(":id")),
+                        afterParam(req), intParam(req, LIMIT_PARAM, DEFAULT_LIMIT, MAX_LIMIT)))))));
+        /**
+         * Returns a page of the descendant ids of a {@link Transaction}, depth first
+         */
+        get(TRANSACTION_SERVICE_ENDPOINT + SUBTREE_ENDPOINT + "/:id/", timed("get_subtree", fresh(owned(
+                (req, res) -> dataToJson(req, res, transactionService.getSubtree(Long.valueOf(req.params(":id")),
+                        afterParam(req), intParam(req, LIMIT_PARAM, DEFAULT_LIMIT, MAX_LIMIT)))))));
+        /**
+         * Returns a list of  {@link Transaction} with same {@link TransactionType},
+         * or with any of a comma separated list of types.
+         * The whole list is streamed, a page of it is returned if after or limit is given
+         */
+        get(TRANSACTION_SERVICE_ENDPOINT + TYPE_ENDPOINT + "/:typeId/", timed("get_type", fresh(
+                (req, res) -> {
+                    final List<TransactionType> transactionTypes = new ArrayList<>();
+                    for (String typeId : req.params(":typeId").split(",")) {
+                        try {
+                            transactionTypes.add(TransactionType.valueOf(typeId.trim().toUpperCase()));
+                        } catch (IllegalArgumentException e) {
+                            throw new TransactionTypeNotFoundException("Cannot find transaction type: " + typeId);
+                        }
+                    }
+                    if (cluster != null && queryParam(req, LOCAL_PARAM) == null) {
+                        return clusterTypes(req, res, transactionTypes);
+                    }
+                    if (notModified(req, res, transactionService.getTypeVersion(transactionTypes))) {
+                        return "";
+                    }
+                    if (queryParam(req, AFTER_PARAM) != null || queryParam(req, LIMIT_PARAM) != null) {
+                        return dataToJson(req, res, transactionService.getByTypes(transactionTypes,
+                                afterParam(req), intParam(req, LIMIT_PARAM, DEFAULT_LIMIT, MAX_LIMIT)));
+                    }
+                    final IdSet ids = transactionTypes.size() == 1
+                            ? transactionService.getByType(transactionTypes.get(0))
+                            : transactionService.getByTypes(transactionTypes);
+                    RESPONSES.writeIds(res.raw().getOutputStream(), ids.longIterator(), isPretty(req));
+                    return "";
+                })));
+        /**
+         * Applies the changes of local transactions sent by another node of the cluster
+         */
+        if (cluster != null) {
+            put(Cluster.DELTAS_PATH, timed("put_deltas",
+                    (req, res) -> {
+                        final Delta[] deltas = JSON.read(req.raw().getInputStream(), Delta[].class);
+                        cluster.receive(Integer.parseInt(queryParam(req, "from")), Long.parseLong(queryParam(req, "sequence")),
+                                Arrays.asList(deltas), transactionService::applyDelta);
+                        RESPONSES.writeStatusOk(res.raw().getOutputStream(), false);
+                        return "";
+                    }));
+        }
+        /**
+         * Sends the insertions following the given sequence, and a snapshot to start from, to the followers
+         */
+        if (replication != null && !replication.isFollower()) {
+            get(Replication.LOG_PATH, timed("get_replication_log",
+                    (req, res) -> {
+                        final String wait = queryParam(req, "wait");
+                        replication.writeLog(Long.parseLong(queryParam(req, AFTER_PARAM)),
+                                intParam(req, LIMIT_PARAM, MAX_LIMIT, MAX_LIMIT),
+                                wait == null ? 0 : Long.parseLong(wait), res.raw());
+                        return "";
+                    }));
+            get(Replication.SNAPSHOT_PATH, timed("get_replication_snapshot",
+                    (req, res) -> {
+                        replication.writeSnapshot(transactionService, res.raw());
+                        return "";
+                    }));
+        }
+        /**
+         * Returns the metrics of the service in the Prometheus text format
+         */
+        get(METRICS_ENDPOINT,
+                (req, res) -> {
+                    final MetricsWriter metrics = new MetricsWriter();
+                    writeMetrics(metrics);
+                    res.type(MetricsWriter.CONTENT_TYPE);
+                    metrics.writeTo(res.raw().getOutputStream());
+                    return "";
                 });
 
         /**
          * Exception mapping
          */
-        exception(InvalidFormatException.class, (e, request, response) -> {
-            response.status(Response.SC_BAD_REQUEST);
-            response.body(handleErrorData(Arrays.asList(e.getMessage())));
+        mapException(InvalidFormatException.class, (e, request, response) -> {
+            response.status(HttpServletResponse.SC_BAD_REQUEST);
+            response.body(handleErrorData(request, response, Arrays.asList(e.getMessage())));
         });
 
         /**
          * Exception mapping
          */
-        exception(TransactionNotFoundException.class, (e, request, response) -> {
-            response.status(Response.SC_NOT_FOUND);
-            response.body(handleErrorData(Arrays.asList(e.getMessage())));
+        mapException(TransactionNotFoundException.class, notFounds, (e, request, response) -> {
+            response.status(HttpServletResponse.SC_NOT_FOUND);
+            response.body(handleErrorData(request, response, Arrays.asList(e.getMessage())));
         });
 
         /**
          * Exception mapping
          */
-        exception(NumberFormatException.class, (e, request, response) -> {
-            response.status(Response.SC_BAD_REQUEST);
-            response.body(handleErrorData(Arrays.asList(e.getMessage())));
+        mapException(NumberFormatException.class, (e, request, response) -> {
+            response.status(HttpServletResponse.SC_BAD_REQUEST);
+            response.body(handleErrorData(request, response, Arrays.asList(e.getMessage())));
         });
 
         /**
          * Exception mapping
          */
-        exception(TransactionTypeNotFoundException.class, (e, request, response) -> {
-            response.status(Response.SC_NOT_FOUND);
-            response.body(handleErrorData(Arrays.asList(e.getMessage())));
+        mapException(TransactionTypeNotFoundException.class, (e, request, response) -> {
+            response.status(HttpServletResponse.SC_NOT_FOUND);
+            response.body(handleErrorData(request, response, Arrays.asList(e.getMessage())));
         });
 
         /**
          * Exception mapping. Here we need to extract
          */
-        exception(InvalidTransactionException.class, (e, request, response) -> {
-            response.status(Response.SC_BAD_REQUEST);
-            List<String> errors = new ArrayList<>();
-            errors = ((InvalidTransactionException)e)
-                    .getErrors()
-                    .stream()
-                    .map(c -> c.getPropertyPath() + " " + c.getMessage())
-                    .collect(Collectors.toList());
-            if (e.getMessage() != null) {
-                errors.add(e.getMessage());
-            }
-            response.body(handleErrorData(errors));
+        mapException(InvalidTransactionException.class, (e, request, response) -> {
+            response.status(HttpServletResponse.SC_BAD_REQUEST);
+            response.body(handleErrorData(request, response, ((InvalidTransactionException) e).getMessages()));
         });
 
         /**
@@ -170,10 +810,25 @@ public class Api {
         });
     }
 
-    private String handleErrorData(List<String> errors) {
-        return dataToJson(Collections.unmodifiableMap(Stream.of(
-                new AbstractMap.SimpleEntry<>("status", "nok"),
-                new AbstractMap.SimpleEntry<>("errors", errors))
-                .collect(Collectors.toMap((e) -> e.getKey(), (e) -> e.getValue()))));
+    /**
+     * Answers 404 for a missing id, as the mapping of {@link TransactionNotFoundException} would.
+     * @param req
+     * @param res
+     * @param id
+     * @return an empty body, the error is written straight to the response stream
+     */
+    private String notFound(Request req, Response res, long id) {
+        notFounds.increment();
+        res.status(HttpServletResponse.SC_NOT_FOUND);
+        return handleErrorData(req, res, Collections.singletonList(TransactionNotFoundException.message(id)));
+    }
+
+    private String handleErrorData(Request req, Response res, List<String> errors) {
+        try {
+            RESPONSES.writeErrors(res.raw().getOutputStream(), errors, isPretty(req));
+            return "";
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 }
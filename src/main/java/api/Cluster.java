@@ -0,0 +1,412 @@
+package api;
+
+import metrics.MetricsWriter;
+import model.Delta;
+import service.Partition;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Nodes of a cluster of services, each one keeping the transactions of its own ranges of ids:
+ * ranges of {@link #RANGE_PROPERTY} ids are dealt to the nodes in turn, in the order they are
+ * listed. Every node must be given the same list.
+ *
+ * Requests about a transaction of another node are forwarded to it. The changes of
+ * the parents kept by other nodes are sent to them in the background, in batches, by one
+ * sender per node: a batch is retried until acknowledged and carries a sequence number, so
+ * that a node applies it once and in order.
+ *
+ * Created by simone on 06/03/16.
+ */
+public class Cluster implements Partition {
+
+    /**
+     * System properties listing the nodes as comma separated host:port, and giving the index
+     * of this node in the list, from 0.
+     */
+    public static final String NODES_PROPERTY = "transactionservice.cluster.nodes";
+    public static final String NODE_PROPERTY = "transactionservice.cluster.node";
+    /**
+     * System property setting the number of consecutive ids kept by the same node.
+     */
+    public static final String RANGE_PROPERTY = "transactionservice.cluster.range";
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+    private static final int RETRY_MILLIS = 500;
+    private static final int MAX_BATCH = 1000;
+    /**
+     * Endpoint receiving the changes sent by the other nodes.
+     */
+    static final String DELTAS_PATH = "/cluster/deltas/";
+
+    private final List<String> nodes;
+    private final int self;
+    private final long range;
+
+    private final JsonSerializer json = new JsonSerializer();
+    private final Sender[] senders;
+    private final ExecutorService requests = Executors.newCachedThreadPool(runnable -> {
+        final Thread thread = new Thread(runnable, "cluster-request");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Last batch applied from each node, guarded by the lock of the node.
+     */
+    private final long[] received;
+    private final Object[] receiving;
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder fanOuts = new LongAdder();
+    private final LongAdder deltasReceived = new LongAdder();
+
+    /**
+     * Starts a sender for each other node.
+     * @param nodes host:port of every node
+     * @param self index of this node
+     * @param range number of consecutive ids kept by the same node
+     */
+    public Cluster(List<String> nodes, int self, long range) {
+        if (self < 0 || self >= nodes.size() || range < 1) {
+            throw new IllegalArgumentException("Invalid cluster: node " + self + " of " + nodes + ", range " + range);
+        }
+        this.nodes = new ArrayList<>(nodes.size());
+        for (String node : nodes) {
+            this.nodes.add("http://" + node.trim());
+        }
+        this.self = self;
+        this.range = range;
+        this.received = new long[nodes.size()];
+        this.receiving = new Object[nodes.size()];
+        for (int node = 0; node < nodes.size(); node++) {
+            receiving[node] = new Object();
+        }
+        this.senders = new Sender[nodes.size()];
+        // Sequences start from the clock, so that a restarted node is not taken for a repeat.
+        final long firstSequence = System.currentTimeMillis() << 20;
+        for (int node = 0; node < nodes.size(); node++) {
+            if (node != self) {
+                senders[node] = new Sender(node, firstSequence);
+                final Thread thread = new Thread(senders[node], "cluster-sender-" + node);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * @param properties
+     * @return the cluster given by the {@link #NODES_PROPERTY}, null if missing
+     */
+    public static Cluster from(Properties properties) {
+        final String nodes = properties.getProperty(NODES_PROPERTY);
+        if (nodes == null || nodes.trim().isEmpty()) {
+            return null;
+        }
+        return new Cluster(Arrays.asList(nodes.split(",")),
+                Integer.parseInt(properties.getProperty(NODE_PROPERTY, "0").trim()),
+                Long.parseLong(properties.getProperty(RANGE_PROPERTY, "65536").trim()));
+    }
+
+    /**
+     * @param id
+     * @return the index of the node keeping the transaction
+     */
+    public int ownerOf(long id) {
+        return (int) Math.floorMod(id / range, (long) nodes.size());
+    }
+
+    @Override
+    public boolean owns(long id) {
+        return ownerOf(id) == self;
+    }
+
+    public int getSelf() {
+        return self;
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    /**
+     * Sends the request to another node and copies back its response.
+     * @param node
+     * @param request
+     * @param response
+     * @throws IOException if the node cannot be reached
+     */
+    public void forward(int node, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        forwarded.increment();
+        forward(nodes.get(node), request, response);
+    }
+
+    /**
+     * Sends the request to another server and copies back its response.
+     * @param server base URL of the server
+     * @param request
+     * @param response
+     * @throws IOException if the server cannot be reached
+     */
+    static void forward(String server, HttpServletRequest request, HttpServletResponse response) throws IOException {
+        final String query = request.getQueryString();
+        final HttpURLConnection connection = open(server + request.getRequestURI() + (query == null ? "" : "?" + query));
+        connection.setRequestMethod(request.getMethod());
+        copyHeader(request.getHeader("Content-Type"), "Content-Type", connection);
+        copyHeader(request.getHeader("If-None-Match"), "If-None-Match", connection);
+        if ("PUT".equals(request.getMethod()) || "POST".equals(request.getMethod())) {
+            connection.setDoOutput(true);
+            try (OutputStream output = connection.getOutputStream()) {
+                copy(request.getInputStream(), output);
+            }
+        }
+        final int status = connection.getResponseCode();
+        response.setStatus(status);
+        if (connection.getHeaderField("ETag") != null) {
+            response.setHeader("ETag", connection.getHeaderField("ETag"));
+        }
+        if (connection.getContentType() != null) {
+            response.setContentType(connection.getContentType());
+        }
+        try (InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            if (body != null) {
+                copy(body, response.getOutputStream());
+            }
+        }
+    }
+
+    /**
+     * @param id a transaction of another node
+     * @return true if the transaction exists on its node
+     * @throws IOException if the node cannot be reached
+     */
+    public boolean exists(long id) throws IOException {
+        final HttpURLConnection connection = open(ownerOf(id), "/transactionservice/transaction/" + id + "/");
+        final int status = connection.getResponseCode();
+        try (InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+            if (body != null) {
+                copy(body, new ByteArrayOutputStream());
+            }
+        }
+        if (status != HttpURLConnection.HTTP_OK && status != HttpURLConnection.HTTP_NOT_FOUND) {
+            throw new IOException("Node " + ownerOf(id) + " answered " + status);
+        }
+        return status == HttpURLConnection.HTTP_OK;
+    }
+
+    /**
+     * Sends the same GET to every other node at once.
+     * @param path with the query string
+     * @param type of the responses
+     * @return the parsed responses
+     * @throws IOException if a node cannot be reached or fails
+     */
+    public <T> List<T> fanOut(String path, Class<T> type) throws IOException {
+        fanOuts.increment();
+        final List<CompletableFuture<T>> futures = new ArrayList<>(nodes.size() - 1);
+        for (int node = 0; node < nodes.size(); node++) {
+            if (node == self) {
+                continue;
+            }
+            final int target = node;
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    final HttpURLConnection connection = open(target, path);
+                    if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                        throw new IOException("Node " + target + " answered " + connection.getResponseCode());
+                    }
+                    try (InputStream body = connection.getInputStream()) {
+                        return json.read(body, type);
+                    }
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, requests));
+        }
+        final List<T> responses = new ArrayList<>(futures.size());
+        for (CompletableFuture<T> future : futures) {
+            try {
+                responses.add(future.join());
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }
+        return responses;
+    }
+
+    @Override
+    public void send(Delta delta) {
+        senders[ownerOf(delta.getId())].queue.add(delta);
+    }
+
+    /**
+     * Applies a batch of changes sent by another node, unless it was applied already.
+     * @param node the sender
+     * @param sequence of the batch
+     * @param deltas
+     * @param apply applies a change
+     */
+    public void receive(int node, long sequence, List<Delta> deltas, Consumer<Delta> apply) {
+        synchronized (receiving[node]) {
+            if (sequence <= received[node]) {
+                return;
+            }
+            for (Delta delta : deltas) {
+                apply.accept(delta);
+            }
+            received[node] = sequence;
+        }
+        deltasReceived.add(deltas.size());
+    }
+
+    /**
+     * Writes the number of forwarded requests and fan-outs, and the changes sent and received.
+     */
+    public void writeMetrics(MetricsWriter metrics) {
+        metrics.family("transactionservice_cluster_forwarded_total", "counter", "Requests forwarded to the node of the transaction.")
+                .sample("transactionservice_cluster_forwarded_total", null, null, forwarded.sum());
+        metrics.family("transactionservice_cluster_fanouts_total", "counter", "Requests sent to every other node.")
+                .sample("transactionservice_cluster_fanouts_total", null, null, fanOuts.sum());
+        metrics.family("transactionservice_cluster_deltas_received_total", "counter", "Changes applied for other nodes.")
+                .sample("transactionservice_cluster_deltas_received_total", null, null, deltasReceived.sum());
+        metrics.family("transactionservice_cluster_deltas_sent_total", "counter", "Changes sent to each node.");
+        metrics.family("transactionservice_cluster_deltas_pending", "gauge", "Changes waiting to be sent to each node.");
+        metrics.family("transactionservice_cluster_send_failures_total", "counter", "Failed sends to each node, retried.");
+        for (Sender sender : senders) {
+            if (sender != null) {
+                final String node = Integer.toString(sender.node);
+                metrics.sample("transactionservice_cluster_deltas_sent_total", "node", node, sender.sent.sum());
+                metrics.sample("transactionservice_cluster_deltas_pending", "node", node, sender.queue.size() + sender.inFlight);
+                metrics.sample("transactionservice_cluster_send_failures_total", "node", node, sender.failures.sum());
+            }
+        }
+    }
+
+    /**
+     * @return the number of changes not sent yet
+     */
+    public long pendingDeltas() {
+        long pending = 0;
+        for (Sender sender : senders) {
+            if (sender != null) {
+                pending += sender.queue.size() + sender.inFlight;
+            }
+        }
+        return pending;
+    }
+
+    private HttpURLConnection open(int node, String path) throws IOException {
+        return open(nodes.get(node) + path);
+    }
+
+    static HttpURLConnection open(String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+        connection.setReadTimeout(READ_TIMEOUT_MILLIS);
+        return connection;
+    }
+
+    private static void copyHeader(String value, String name, HttpURLConnection connection) {
+        if (value != null) {
+            connection.setRequestProperty(name, value);
+        }
+    }
+
+    static void copy(InputStream input, OutputStream output) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int read;
+        while ((read = input.read(buffer)) > 0) {
+            output.write(buffer, 0, read);
+        }
+    }
+
+    /**
+     * Sends the changes of the transactions of a node, in the order they were made.
+     */
+    private final class Sender implements Runnable {
+        final int node;
+        final BlockingQueue<Delta> queue = new LinkedBlockingQueue<>();
+        final LongAdder sent = new LongAdder();
+        final LongAdder failures = new LongAdder();
+        volatile int inFlight;
+        long sequence;
+
+        Sender(int node, long firstSequence) {
+            this.node = node;
+            this.sequence = firstSequence;
+        }
+
+        @Override
+        public void run() {
+            final List<Delta> batch = new ArrayList<>(MAX_BATCH);
+            while (true) {
+                try {
+                    if (batch.isEmpty()) {
+                        final Delta first = queue.take();
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                        inFlight = batch.size();
+                        sequence++;
+                    }
+                    post(batch);
+                    sent.add(batch.size());
+                    batch.clear();
+                    inFlight = 0;
+                } catch (IOException e) {
+                    // the same batch is sent again
+                    failures.increment();
+                    sleep();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void post(List<Delta> batch) throws IOException {
+            final HttpURLConnection connection = open(node, DELTAS_PATH + "?from=" + self + "&sequence=" + sequence);
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream output = connection.getOutputStream()) {
+                json.write(output, batch, false);
+            }
+            final int status = connection.getResponseCode();
+            try (InputStream body = status >= 400 ? connection.getErrorStream() : connection.getInputStream()) {
+                if (body != null) {
+                    copy(body, new ByteArrayOutputStream());
+                }
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Node " + node + " answered " + status);
+            }
+        }
+
+        private void sleep() {
+            try {
+                TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
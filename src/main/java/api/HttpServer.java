@@ -0,0 +1,184 @@
+package api;
+
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.BlockingArrayQueue;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import spark.servlet.SparkApplication;
+import spark.servlet.SparkFilter;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Jetty server running the Spark routes with the given {@link ServerSettings}, which
+ * the server embedded in Spark does not expose. The routes are served through the
+ * {@link SparkFilter} of Spark, the one for servlet containers, so that Spark does not
+ * start its own server: they must be added by the application given to {@link #start(SparkApplication)}.
+ *
+ * In {@link ServerSettings.ExecutionMode#VIRTUAL} mode each request is suspended on the pool
+ * thread which read it and handled on a new virtual thread, so that a blocked handler
+ * does not hold a pool thread.
+ *
+ * Created by simone on 03/03/16.
+ */
+public class HttpServer {
+
+    /**
+     * Answers the requests which match no route.
+     */
+    private static final FilterChain NOT_FOUND = (request, response) ->
+            ((HttpServletResponse) response).sendError(HttpServletResponse.SC_NOT_FOUND);
+
+    private final ServerSettings settings;
+    private final int port;
+    private Server server;
+    private ServerConnector connector;
+    private ExecutorService handlers;
+
+    /**
+     * @param settings
+     * @param port 0 for any free port, see {@link #getPort()}
+     */
+    public HttpServer(ServerSettings settings, int port) {
+        this.settings = settings;
+        this.port = port;
+    }
+
+    /**
+     * Adds the routes and starts serving them.
+     * @param routes adds the routes with the static methods of {@link spark.Spark}
+     * @throws Exception if the server cannot start
+     */
+    public void start(SparkApplication routes) throws Exception {
+        final SparkFilter filter = new SparkFilter() {
+            @Override
+            protected SparkApplication getApplication(FilterConfig filterConfig) {
+                return routes;
+            }
+        };
+        filter.init(new FilterConfig() {
+            @Override
+            public String getFilterName() {
+                return "routes";
+            }
+
+            @Override
+            public ServletContext getServletContext() {
+                return null;
+            }
+
+            @Override
+            public String getInitParameter(String name) {
+                return null;
+            }
+
+            @Override
+            public Enumeration<String> getInitParameterNames() {
+                return Collections.emptyEnumeration();
+            }
+        });
+
+        final QueuedThreadPool pool = new QueuedThreadPool(settings.getMaxThreads(), settings.getMinThreads(),
+                settings.getIdleTimeoutMillis(), settings.getQueueSize() > 0
+                        ? new BlockingArrayQueue<>(settings.getQueueSize())
+                        : new BlockingArrayQueue<>(settings.getMinThreads(), settings.getMinThreads()));
+        server = new Server(pool);
+
+        connector = new ServerConnector(server, null, null, null,
+                settings.getAcceptors(), settings.getSelectors(), new HttpConnectionFactory());
+        connector.setPort(port);
+        connector.setIdleTimeout(TimeUnit.HOURS.toMillis(1));
+        server.addConnector(connector);
+
+        if (settings.getExecutionMode() == ServerSettings.ExecutionMode.VIRTUAL) {
+            handlers = virtualThreads();
+            server.setHandler(new AbstractHandler() {
+                @Override
+                public void handle(String target, Request baseRequest, HttpServletRequest request,
+                                   HttpServletResponse response) {
+                    baseRequest.setHandled(true);
+                    baseRequest.setContextPath("");
+                    final AsyncContext async = request.startAsync();
+                    async.setTimeout(0);
+                    handlers.execute(() -> {
+                        try {
+                            filter.doFilter(request, response, NOT_FOUND);
+                        } catch (Throwable e) {
+                            fail(response);
+                        } finally {
+                            async.complete();
+                        }
+                    });
+                }
+            });
+        } else {
+            server.setHandler(new AbstractHandler() {
+                @Override
+                public void handle(String target, Request baseRequest, HttpServletRequest request,
+                                   HttpServletResponse response) throws IOException, ServletException {
+                    baseRequest.setHandled(true);
+                    baseRequest.setContextPath("");
+                    filter.doFilter(request, response, NOT_FOUND);
+                }
+            });
+        }
+        server.start();
+    }
+
+    /**
+     * @return the port the server listens on, once started
+     */
+    public int getPort() {
+        return connector.getLocalPort();
+    }
+
+    public void stop() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+        if (handlers != null) {
+            handlers.shutdown();
+        }
+    }
+
+    /**
+     * Answers like Jetty does when a handler on a pool thread throws: the mapped exceptions are
+     * already answered by Spark, so this only sees what escapes it, and hands it to the error
+     * handler of the server, without the stack trace, unless the response has already gone out.
+     */
+    private static void fail(HttpServletResponse response) {
+        if (!response.isCommitted()) {
+            try {
+                response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            } catch (IOException | IllegalStateException ignored) {
+                // the client is gone or the response is being written, complete() ends it
+            }
+        }
+    }
+
+    /**
+     * Calls Executors.newVirtualThreadPerTaskExecutor(), which is missing before Java 21.
+     */
+    private static ExecutorService virtualThreads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later.", e);
+        }
+    }
+}
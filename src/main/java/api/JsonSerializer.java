@@ -0,0 +1,72 @@
+package api;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Shared Jackson pipeline. The mapper is configured once and the readers and
+ * writers, which are immutable and thread safe, are cached per type.
+ *
+ * Created by simone on 21/02/16.
+ */
+public class JsonSerializer {
+
+    /**
+     * Responses are written straight to the servlet stream, which must stay open for Spark.
+     */
+    private final ObjectMapper mapper = new ObjectMapper()
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+    private final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Class<?>, ObjectWriter> prettyWriters = new ConcurrentHashMap<>();
+
+    /**
+     * Parses a value of the given type from the stream.
+     * @param input
+     * @param type
+     * @return
+     * @throws IOException on invalid JSON or a value which does not match the type
+     */
+    public <T> T read(InputStream input, Class<T> type) throws IOException {
+        return readers.computeIfAbsent(type, mapper::reader).readValue(input);
+    }
+
+    /**
+     * Iterates over the values of the given type in the stream. The values can either
+     * be the elements of a root-level array or a sequence of root-level values, as in NDJSON.
+     * @param input
+     * @param type
+     * @return
+     * @throws IOException
+     */
+    public <T> MappingIterator<T> readValues(InputStream input, Class<T> type) throws IOException {
+        return readers.computeIfAbsent(type, mapper::reader).readValues(input);
+    }
+
+    /**
+     * Writes the data as JSON to the stream, compact unless pretty is requested.
+     * @param output
+     * @param data
+     * @param pretty
+     * @throws IOException
+     */
+    public void write(OutputStream output, Object data, boolean pretty) throws IOException {
+        writer(data == null ? Object.class : data.getClass(), pretty).writeValue(output, data);
+    }
+
+    private ObjectWriter writer(Class<?> type, boolean pretty) {
+        if (pretty) {
+            return prettyWriters.computeIfAbsent(type, t -> mapper.writerFor(t).withDefaultPrettyPrinter());
+        }
+        return writers.computeIfAbsent(type, mapper::writerFor);
+    }
+}
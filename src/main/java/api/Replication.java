@@ -0,0 +1,416 @@
+package api;
+
+import metrics.MetricsWriter;
+import model.Transaction;
+import model.TransactionType;
+import service.ReplicationLog;
+import service.TransactionService;
+import service.store.TransactionStore;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Replicates the insertions of a leader to followers, which serve the reads.
+ *
+ * The leader keeps its latest insertions in a {@link ReplicationLog}. A follower loads
+ * a snapshot of the leader on start, then asks the leader for the insertions which
+ * follow, each request waiting for new ones if there are none yet, and applies them in
+ * the same order. Writes sent to a follower are forwarded to the leader.
+ *
+ * A follower is as fresh as the last request it sent to the leader and got everything
+ * from, or as the end of the wait of a request answered with nothing new: its staleness
+ * is the time since. A follower diverges if it is so far behind that the leader dropped
+ * the insertions it needs, or if one of them fails here: it then forwards the reads to
+ * the leader while it loads a new snapshot, and follows again from there.
+ *
+ * Created by simone on 07/03/16.
+ */
+public class Replication {
+
+    /**
+     * System properties giving the role of the server, "leader" or "follower", the host:port
+     * of the leader of a follower, and the number of insertions kept by a leader.
+     */
+    public static final String ROLE_PROPERTY = "transactionservice.replication.role";
+    public static final String LEADER_PROPERTY = "transactionservice.replication.leader";
+    public static final String LOG_PROPERTY = "transactionservice.replication.log";
+    private static final int DEFAULT_LOG_SIZE = 1 << 18;
+
+    /**
+     * Endpoints of the leader serving the insertions and the snapshot.
+     */
+    static final String LOG_PATH = "/replication/log/";
+    static final String SNAPSHOT_PATH = "/replication/snapshot/";
+    private static final int MAX_BATCH = 10000;
+    private static final long MAX_WAIT_MILLIS = 1000;
+    private static final long WAIT_MILLIS = 200;
+    private static final int RETRY_MILLIS = 500;
+
+    /**
+     * Insertions of the leader, null on a follower.
+     */
+    private final ReplicationLog log;
+    /**
+     * Base URL of the leader, null on the leader.
+     */
+    private final String leader;
+    private volatile boolean running = true;
+    private Thread follower;
+
+    /**
+     * Sequence of the last insertion applied, and of the last one of the leader as last heard.
+     */
+    private volatile long applied;
+    private volatile long leaderSequence;
+    /**
+     * {@link System#nanoTime()} of the last request answered with every insertion of the leader.
+     */
+    private volatile long freshAt = System.nanoTime();
+    private volatile boolean diverged;
+    /**
+     * Snapshot of the leader last loaded, kept until replaced: an off-heap store maps it.
+     */
+    private File replica;
+    private final LongAdder appliedCount = new LongAdder();
+    private final LongAdder applyFailures = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder forwarded = new LongAdder();
+    private final LongAdder logReads = new LongAdder();
+    private final LongAdder snapshots = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+
+    private Replication(ReplicationLog log, String leader) {
+        this.log = log;
+        this.leader = leader;
+    }
+
+    /**
+     * @param capacity number of insertions kept for the followers, a power of two
+     * @return the replication of a leader
+     */
+    public static Replication leader(int capacity) {
+        return new Replication(new ReplicationLog(capacity), null);
+    }
+
+    /**
+     * @param leader host:port of the leader
+     * @return the replication of a follower
+     */
+    public static Replication follower(String leader) {
+        return new Replication(null, "http://" + leader.trim());
+    }
+
+    /**
+     * @param properties
+     * @return the replication given by the {@link #ROLE_PROPERTY}, null if missing
+     */
+    public static Replication from(Properties properties) {
+        final String role = properties.getProperty(ROLE_PROPERTY);
+        if (role == null || role.trim().isEmpty()) {
+            return null;
+        }
+        switch (role.trim().toLowerCase()) {
+            case "leader":
+                return leader(Integer.parseInt(properties.getProperty(LOG_PROPERTY, String.valueOf(DEFAULT_LOG_SIZE)).trim()));
+            case "follower":
+                final String leader = properties.getProperty(LEADER_PROPERTY);
+                if (leader == null || leader.trim().isEmpty()) {
+                    throw new IllegalArgumentException("A follower needs " + LEADER_PROPERTY);
+                }
+                return follower(leader);
+            default:
+                throw new IllegalArgumentException("Unknown replication role: " + role);
+        }
+    }
+
+    public boolean isFollower() {
+        return leader != null;
+    }
+
+    /**
+     * @return true while a follower loads a new snapshot of the leader, its reads must go to the leader
+     */
+    public boolean isDiverged() {
+        return diverged;
+    }
+
+    /**
+     * On the leader, appends the insertions of the service to the log from now on. On a
+     * follower, loads the snapshot of the leader into the service, waiting for the
+     * leader to answer, then applies the insertions of the leader in the background.
+     * @param transactionService
+     */
+    public void start(TransactionService transactionService) {
+        if (!isFollower()) {
+            transactionService.setReplicationLog(log);
+            return;
+        }
+        if (!bootstrap(transactionService)) {
+            throw new IllegalStateException("Interrupted while waiting for the leader.");
+        }
+        follower = new Thread(() -> follow(transactionService), "replication-follower");
+        follower.setDaemon(true);
+        follower.start();
+    }
+
+    /**
+     * Stops following the leader.
+     */
+    public void close() {
+        running = false;
+        if (follower != null) {
+            follower.interrupt();
+        }
+    }
+
+    /**
+     * @return the milliseconds since the follower last had every insertion of the leader, 0 on the leader
+     */
+    public long getStalenessMillis() {
+        return isFollower() ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - freshAt) : 0;
+    }
+
+    /**
+     * Sends the request to the leader and copies back its response.
+     * @param request
+     * @param response
+     * @throws IOException if the leader cannot be reached
+     */
+    public void forward(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        forwarded.increment();
+        Cluster.forward(leader, request, response);
+    }
+
+    /**
+     * Writes the insertions following the given sequence, as the sequence of the last
+     * insertion of the leader (8), their count (4), then for each one
+     *
+     *     id (8) | amount (8) | parentId (8) | type ordinal (4)
+     *
+     * The response is 410 Gone if they are not kept anymore.
+     * @param after sequence of the last insertion the follower has
+     * @param max maximum number of insertions written
+     * @param waitMillis longest wait for new insertions
+     * @param response
+     */
+    void writeLog(long after, int max, long waitMillis, HttpServletResponse response)
+            throws IOException, InterruptedException {
+        logReads.increment();
+        final List<Transaction> transactions = new ArrayList<>();
+        final long sequence = log.read(after, Math.min(max, MAX_BATCH), Math.min(waitMillis, MAX_WAIT_MILLIS), transactions);
+        response.setContentType("application/octet-stream");
+        if (sequence < 0) {
+            response.setStatus(HttpServletResponse.SC_GONE);
+            return;
+        }
+        final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(response.getOutputStream()));
+        output.writeLong(sequence);
+        output.writeInt(transactions.size());
+        for (Transaction transaction : transactions) {
+            output.writeLong(transaction.getId());
+            output.writeDouble(transaction.getAmount());
+            output.writeLong(transaction.getParentId() == null ? TransactionStore.NO_ID : transaction.getParentId());
+            output.writeInt(transaction.getTransactionType().ordinal());
+        }
+        output.flush();
+    }
+
+    /**
+     * Writes the sequence of the last insertion in the snapshot (8), then the snapshot.
+     * Writes wait while the snapshot is taken, not while it is sent.
+     * @param transactionService
+     * @param response
+     */
+    void writeSnapshot(TransactionService transactionService, HttpServletResponse response) throws IOException {
+        snapshots.increment();
+        final File file = File.createTempFile("replica-", ".bin");
+        try {
+            if (!file.delete()) {
+                throw new IOException("Cannot replace " + file);
+            }
+            final long sequence = transactionService.snapshotTo(file);
+            response.setContentType("application/octet-stream");
+            final DataOutputStream output = new DataOutputStream(response.getOutputStream());
+            output.writeLong(sequence);
+            try (InputStream input = new FileInputStream(file)) {
+                Cluster.copy(input, output);
+            }
+            output.flush();
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Writes the state of the replication of this server.
+     */
+    public void writeMetrics(MetricsWriter metrics) {
+        if (!isFollower()) {
+            metrics.family("transactionservice_replication_log_entries", "gauge", "Insertions kept for the followers.")
+                    .sample("transactionservice_replication_log_entries", null, null, log.size());
+            metrics.family("transactionservice_replication_log_reads_total", "counter", "Requests of the followers for insertions.")
+                    .sample("transactionservice_replication_log_reads_total", null, null, logReads.sum());
+            metrics.family("transactionservice_replication_snapshots_total", "counter", "Snapshots sent to followers.")
+                    .sample("transactionservice_replication_snapshots_total", null, null, snapshots.sum());
+            return;
+        }
+        metrics.family("transactionservice_replication_applied_total", "counter", "Insertions of the leader applied since the snapshot.")
+                .sample("transactionservice_replication_applied_total", null, null, appliedCount.sum());
+        metrics.family("transactionservice_replication_lag_transactions", "gauge", "Insertions of the leader not applied yet, as last heard.")
+                .sample("transactionservice_replication_lag_transactions", null, null, leaderSequence - applied);
+        metrics.family("transactionservice_replication_staleness_seconds", "gauge", "Time since the follower last had every insertion of the leader.")
+                .sample("transactionservice_replication_staleness_seconds", null, null, getStalenessMillis() / 1000.0);
+        metrics.family("transactionservice_replication_diverged", "gauge", "1 while the follower loads a new snapshot of the leader, forwarding the reads.")
+                .sample("transactionservice_replication_diverged", null, null, diverged ? 1 : 0);
+        metrics.family("transactionservice_replication_resyncs_total", "counter", "New snapshots of the leader loaded after diverging.")
+                .sample("transactionservice_replication_resyncs_total", null, null, resyncs.sum());
+        metrics.family("transactionservice_replication_failures_total", "counter", "Failed requests to the leader, retried.")
+                .sample("transactionservice_replication_failures_total", null, null, failures.sum());
+        metrics.family("transactionservice_replication_apply_failures_total", "counter", "Insertions of the leader which failed here.")
+                .sample("transactionservice_replication_apply_failures_total", null, null, applyFailures.sum());
+        metrics.family("transactionservice_replication_forwarded_total", "counter", "Writes and too stale reads forwarded to the leader.")
+                .sample("transactionservice_replication_forwarded_total", null, null, forwarded.sum());
+    }
+
+    /**
+     * Loads the snapshot of the leader, retrying until it answers.
+     * @return false if stopped first
+     */
+    private boolean bootstrap(TransactionService transactionService) {
+        while (true) {
+            final long requestedAt = System.nanoTime();
+            try {
+                final File file = File.createTempFile("replica-", ".bin");
+                file.deleteOnExit();
+                final long sequence;
+                final HttpURLConnection connection = Cluster.open(leader + SNAPSHOT_PATH);
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("The leader answered " + connection.getResponseCode());
+                }
+                try (DataInputStream input = new DataInputStream(connection.getInputStream());
+                     OutputStream output = new FileOutputStream(file)) {
+                    sequence = input.readLong();
+                    Cluster.copy(input, output);
+                }
+                transactionService.loadReplica(file);
+                if (replica != null) {
+                    replica.delete();
+                }
+                replica = file;
+                applied = sequence;
+                leaderSequence = sequence;
+                freshAt = requestedAt;
+                return true;
+            } catch (IOException e) {
+                failures.increment();
+                sleep();
+                if (!running) {
+                    return false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Forwards the reads to the leader while loading a new snapshot of it.
+     * @return false if stopped first
+     */
+    private boolean resync(TransactionService transactionService) {
+        diverged = true;
+        resyncs.increment();
+        if (!bootstrap(transactionService)) {
+            return false;
+        }
+        diverged = false;
+        return true;
+    }
+
+    /**
+     * Applies the insertions of the leader as they come.
+     */
+    private void follow(TransactionService transactionService) {
+        final List<Transaction> batch = new ArrayList<>();
+        final TransactionType[] types = TransactionType.values();
+        while (running) {
+            final long requestedAt = System.nanoTime();
+            try {
+                final HttpURLConnection connection = Cluster.open(leader + LOG_PATH + "?after=" + applied
+                        + "&limit=" + MAX_BATCH + "&wait=" + WAIT_MILLIS);
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_GONE) {
+                    // dropped from the log, or the leader restarted
+                    if (!resync(transactionService)) {
+                        return;
+                    }
+                    continue;
+                }
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("The leader answered " + connection.getResponseCode());
+                }
+                final long sequence;
+                try (DataInputStream input = new DataInputStream(new BufferedInputStream(connection.getInputStream()))) {
+                    sequence = input.readLong();
+                    final int count = input.readInt();
+                    for (int i = 0; i < count; i++) {
+                        final long id = input.readLong();
+                        final double amount = input.readDouble();
+                        final long parentId = input.readLong();
+                        batch.add(new Transaction(id, amount, parentId == TransactionStore.NO_ID ? null : parentId,
+                                types[input.readInt()]));
+                    }
+                }
+                leaderSequence = sequence;
+                if (batch.isEmpty()) {
+                    // the leader had nothing new for the whole wait, which started after the request
+                    freshAt = requestedAt + TimeUnit.MILLISECONDS.toNanos(WAIT_MILLIS);
+                } else {
+                    final int failed = transactionService.applyReplicated(batch);
+                    final int count = batch.size();
+                    batch.clear();
+                    if (failed > 0) {
+                        // the data differs from the leader's
+                        applyFailures.add(failed);
+                        if (!resync(transactionService)) {
+                            return;
+                        }
+                        continue;
+                    }
+                    appliedCount.add(count);
+                    applied += count;
+                    if (applied == sequence) {
+                        freshAt = requestedAt;
+                    }
+                }
+            } catch (IOException e) {
+                batch.clear();
+                failures.increment();
+                sleep();
+            }
+        }
+    }
+
+    private void sleep() {
+        try {
+            TimeUnit.MILLISECONDS.sleep(RETRY_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package api;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Serialized responses by transaction id, bounded by their size in bytes.
+ *
+ * Each entry keeps the version the response was built from, read before the data,
+ * and is only served while the version is still current: a response built from data
+ * which changed meanwhile is never served. Entries are also evicted as soon as their
+ * transaction changes, see {@link #invalidate(long)}.
+ *
+ * Lookups take no lock. The cache is split in segments, each one with an even share of
+ * the bytes and a lock for the changes. The least recently used entries are evicted
+ * approximately, with the clock algorithm: a new entry and a hit mark it, and the eviction
+ * sweeps the segment clearing the marks, evicting the first entry it finds unmarked.
+ *
+ * Created by simone on 04/03/16.
+ */
+public class ResponseCache {
+
+    private static final int SEGMENTS = 16;
+    /**
+     * Rough cost of an entry besides its body: map node, boxed key and entry.
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes memory of the responses, entries included
+     */
+    public ResponseCache(long maxBytes) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    /**
+     * @param id
+     * @param version current version of the data
+     * @return the response built from the given version, null if missing
+     */
+    public byte[] get(long id, long version) {
+        final Entry entry = segmentFor(id).entries.get(id);
+        if (entry == null || entry.version != version) {
+            misses.increment();
+            return null;
+        }
+        if (!entry.used) {
+            // written once per sweep at most, hot entries are only read
+            entry.used = true;
+        }
+        hits.increment();
+        return entry.body;
+    }
+
+    /**
+     * @param id
+     * @param version of the data, read before it
+     * @param body not changed afterwards
+     */
+    public void put(long id, long version, byte[] body) {
+        final Segment segment = segmentFor(id);
+        final int size = body.length + ENTRY_OVERHEAD;
+        if (size > segment.maxBytes) {
+            return;
+        }
+        segment.lock.lock();
+        try {
+            final Entry previous = segment.entries.put(id, new Entry(id, version, body));
+            long bytes = segment.bytes + size - (previous == null ? 0 : previous.body.length + ENTRY_OVERHEAD);
+            while (bytes > segment.maxBytes) {
+                if (segment.hand == null || !segment.hand.hasNext()) {
+                    segment.hand = segment.entries.values().iterator();
+                }
+                final Entry entry = segment.hand.next();
+                if (entry.used) {
+                    entry.used = false;
+                } else if (segment.entries.remove(entry.id, entry)) {
+                    bytes -= entry.body.length + ENTRY_OVERHEAD;
+                    evictions.increment();
+                }
+            }
+            segment.bytes = bytes;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the response of a transaction.
+     * @param id
+     */
+    public void invalidate(long id) {
+        final Segment segment = segmentFor(id);
+        segment.lock.lock();
+        try {
+            final Entry removed = segment.entries.remove(id);
+            if (removed != null) {
+                segment.bytes -= removed.body.length + ENTRY_OVERHEAD;
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of cached responses
+     */
+    public long size() {
+        long entries = 0;
+        for (Segment segment : segments) {
+            entries += segment.entries.size();
+        }
+        return entries;
+    }
+
+    /**
+     * @return the memory of the cached responses, entries included
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.bytes;
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(long id) {
+        final long h = id * 0x9E3779B97F4A7C15L;
+        return segments[(int) (h >>> 60) & (SEGMENTS - 1)];
+    }
+
+    private static final class Entry {
+        final long id;
+        final long version;
+        final byte[] body;
+        /**
+         * Set when put and by a hit, cleared by the sweep of the eviction.
+         */
+        volatile boolean used = true;
+
+        Entry(long id, long version, byte[] body) {
+            this.id = id;
+            this.version = version;
+            this.body = body;
+        }
+    }
+
+    private static final class Segment {
+        /**
+         * Held by the changes, lookups do without.
+         */
+        final ReentrantLock lock = new ReentrantLock();
+        final long maxBytes;
+        final ConcurrentHashMap<Long, Entry> entries = new ConcurrentHashMap<>();
+        /**
+         * Where the sweep of the eviction goes on from, it sees the entries put meanwhile or not.
+         */
+        Iterator<Entry> hand;
+        volatile long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package api;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import model.InsertResult;
+import org.roaringbitmap.longlong.LongIterator;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes the fixed-shape responses of the API without going through data binding.
+ *
+ * Created by simone on 21/02/16.
+ */
+public class ResponseWriter {
+
+    private static final byte[] STATUS_OK = "{\"status\":\"ok\"}".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] STATUS_OK_PRETTY = "{\n  \"status\" : \"ok\"\n}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Number of ids written between two flushes of a streamed list.
+     */
+    private static final int IDS_PER_FLUSH = 8192;
+
+    private final JsonFactory factory = new JsonFactory()
+            .configure(JsonGenerator.Feature.AUTO_CLOSE_TARGET, false);
+
+    /**
+     * Writes {"status": "ok"}.
+     * @param output
+     * @param pretty
+     * @throws IOException
+     */
+    public void writeStatusOk(OutputStream output, boolean pretty) throws IOException {
+        output.write(pretty ? STATUS_OK_PRETTY : STATUS_OK);
+    }
+
+    /**
+     * Writes {"amount": amount}.
+     * @param output
+     * @param amount
+     * @param pretty
+     * @throws IOException
+     */
+    public void writeAmount(OutputStream output, double amount, boolean pretty) throws IOException {
+        try (JsonGenerator generator = generator(output, pretty)) {
+            generator.writeStartObject();
+            generator.writeNumberField("amount", amount);
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes the ids as a JSON array while iterating them, without boxing.
+     * The output is flushed every {@link #IDS_PER_FLUSH} ids, so a long list goes
+     * out in chunks instead of being buffered as a whole.
+     * @param output
+     * @param ids
+     * @param pretty
+     * @throws IOException
+     */
+    public void writeIds(OutputStream output, LongIterator ids, boolean pretty) throws IOException {
+        try (JsonGenerator generator = generator(output, pretty)) {
+            generator.writeStartArray();
+            int written = 0;
+            while (ids.hasNext()) {
+                generator.writeNumber(ids.next());
+                if (++written % IDS_PER_FLUSH == 0) {
+                    generator.flush();
+                }
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * Writes {"status": "nok", "errors": [errors]}.
+     * @param output
+     * @param errors
+     * @param pretty
+     * @throws IOException
+     */
+    public void writeErrors(OutputStream output, List<String> errors, boolean pretty) throws IOException {
+        try (JsonGenerator generator = generator(output, pretty)) {
+            generator.writeStartObject();
+            generator.writeStringField("status", "nok");
+            generator.writeArrayFieldStart("errors");
+            for (String error : errors) {
+                generator.writeString(error);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    /**
+     * Writes a line {"processed": n, "failed": m, "errors": [{"id": id, "errors": [...]}]}
+     * reporting the failures of the last chunk.
+     * @param output
+     * @param processed
+     * @param failed
+     * @param failures
+     * @throws IOException
+     */
+    public void writeProgress(OutputStream output, long processed, long failed, List<InsertResult> failures) throws IOException {
+        try (JsonGenerator generator = generator(output, false)) {
+            generator.writeStartObject();
+            generator.writeNumberField("processed", processed);
+            generator.writeNumberField("failed", failed);
+            generator.writeArrayFieldStart("errors");
+            for (InsertResult failure : failures) {
+                generator.writeStartObject();
+                if (failure.getId() != null) {
+                    generator.writeNumberField("id", failure.getId());
+                }
+                generator.writeArrayFieldStart("errors");
+                for (String error : failure.getErrors()) {
+                    generator.writeString(error);
+                }
+                generator.writeEndArray();
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        output.write('\n');
+    }
+
+    /**
+     * Writes the closing line {"status": "ok" or "nok", "processed": n, "failed": m, "errors": [errors]}.
+     * @param output
+     * @param processed
+     * @param failed
+     * @param errors errors which stopped the stream, if any
+     * @throws IOException
+     */
+    public void writeSummary(OutputStream output, long processed, long failed, List<String> errors) throws IOException {
+        try (JsonGenerator generator = generator(output, false)) {
+            generator.writeStartObject();
+            generator.writeStringField("status", errors.isEmpty() ? "ok" : "nok");
+            generator.writeNumberField("processed", processed);
+            generator.writeNumberField("failed", failed);
+            generator.writeArrayFieldStart("errors");
+            for (String error : errors) {
+                generator.writeString(error);
+            }
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+        output.write('\n');
+    }
+
+    private JsonGenerator generator(OutputStream output, boolean pretty) throws IOException {
+        final JsonGenerator generator = factory.createGenerator(output, JsonEncoding.UTF8);
+        return pretty ? generator.useDefaultPrettyPrinter() : generator;
+    }
+}
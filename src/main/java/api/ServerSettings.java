@@ -0,0 +1,116 @@
+package api;
+
+import java.util.Properties;
+
+/**
+ * Threading of the HTTP server, read from the transactionservice.* properties.
+ *
+ * Created by simone on 03/03/16.
+ */
+public class ServerSettings {
+
+    /**
+     * Where the requests are handled: on the threads of the pool, or each on a new
+     * virtual thread, the pool only doing the network I/O. Virtual threads need Java 21.
+     */
+    public enum ExecutionMode {
+        POOL, VIRTUAL
+    }
+
+    /**
+     * Properties of the thread pool: maximum and minimum number of threads, idle timeout in
+     * milliseconds and capacity of the queue of pending jobs, 0 for an unbounded one.
+     */
+    public static final String MAX_THREADS_PROPERTY = "transactionservice.threads.max";
+    public static final String MIN_THREADS_PROPERTY = "transactionservice.threads.min";
+    public static final String TIMEOUT_PROPERTY = "transactionservice.threads.timeout";
+    public static final String QUEUE_PROPERTY = "transactionservice.threads.queue";
+    /**
+     * Properties of the connector: number of acceptor and of selector threads, -1 to let Jetty
+     * choose from the number of cores.
+     */
+    public static final String ACCEPTORS_PROPERTY = "transactionservice.acceptors";
+    public static final String SELECTORS_PROPERTY = "transactionservice.selectors";
+    /**
+     * Property selecting the {@link ExecutionMode}, "pool" or "virtual".
+     */
+    public static final String EXECUTION_PROPERTY = "transactionservice.execution";
+
+    private final int maxThreads;
+    private final int minThreads;
+    private final int idleTimeoutMillis;
+    private final int queueSize;
+    private final int acceptors;
+    private final int selectors;
+    private final ExecutionMode executionMode;
+
+    public ServerSettings(int maxThreads, int minThreads, int idleTimeoutMillis, int queueSize,
+                          int acceptors, int selectors, ExecutionMode executionMode) {
+        if (minThreads < 1 || maxThreads < minThreads) {
+            throw new IllegalArgumentException("Invalid thread pool size: " + minThreads + " to " + maxThreads);
+        }
+        this.maxThreads = maxThreads;
+        this.minThreads = minThreads;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.queueSize = queueSize;
+        this.acceptors = acceptors;
+        this.selectors = selectors;
+        this.executionMode = executionMode;
+    }
+
+    /**
+     * Reads the settings, the missing ones default to a pool of 2 to 8 threads with an unbounded queue.
+     * @param properties
+     * @return
+     */
+    public static ServerSettings from(Properties properties) {
+        return new ServerSettings(
+                intProperty(properties, MAX_THREADS_PROPERTY, 8),
+                intProperty(properties, MIN_THREADS_PROPERTY, 2),
+                intProperty(properties, TIMEOUT_PROPERTY, 30000),
+                intProperty(properties, QUEUE_PROPERTY, 0),
+                intProperty(properties, ACCEPTORS_PROPERTY, -1),
+                intProperty(properties, SELECTORS_PROPERTY, -1),
+                ExecutionMode.valueOf(properties.getProperty(EXECUTION_PROPERTY, "pool").toUpperCase()));
+    }
+
+    private static int intProperty(Properties properties, String name, int defaultValue) {
+        final String value = properties.getProperty(name);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public int getMaxThreads() {
+        return maxThreads;
+    }
+
+    public int getMinThreads() {
+        return minThreads;
+    }
+
+    public int getIdleTimeoutMillis() {
+        return idleTimeoutMillis;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    public int getAcceptors() {
+        return acceptors;
+    }
+
+    public int getSelectors() {
+        return selectors;
+    }
+
+    public ExecutionMode getExecutionMode() {
+        return executionMode;
+    }
+
+    @Override
+    public String toString() {
+        return executionMode.name().toLowerCase() + " threads " + minThreads + "-" + maxThreads
+                + ", timeout " + idleTimeoutMillis + " ms, queue " + (queueSize > 0 ? queueSize : "unbounded")
+                + ", acceptors " + acceptors + ", selectors " + selectors;
+    }
+}
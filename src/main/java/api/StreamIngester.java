@@ -0,0 +1,94 @@
+package api;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.MappingIterator;
+import model.InsertResult;
+import model.Transaction;
+import service.TransactionService;
+import service.exceptions.InvalidTransactionException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Feeds a stream of NDJSON transactions to {@link TransactionService#insertAll(List)}
+ * in bounded chunks. The next chunk is parsed only once the previous one has been
+ * applied, so a fast client is held back by the transport and memory stays flat
+ * whatever the size of the upload.
+ *
+ * A progress line is written and flushed after each chunk, followed by a summary line.
+ *
+ * Created by simone on 23/02/16.
+ */
+public class StreamIngester {
+
+    private final TransactionService transactionService;
+    private final JsonSerializer json;
+    private final ResponseWriter responses;
+
+    public StreamIngester(TransactionService transactionService, JsonSerializer json, ResponseWriter responses) {
+        this.transactionService = transactionService;
+        this.json = json;
+        this.responses = responses;
+    }
+
+    /**
+     * @param input the NDJSON transactions, each one carrying its id
+     * @param output where progress is reported
+     * @param chunkSize number of transactions applied at once
+     * @throws InvalidTransactionException if the stream is invalid before the first chunk has been applied
+     * @throws IOException
+     */
+    public void ingest(InputStream input, OutputStream output, int chunkSize) throws IOException {
+        final List<Transaction> chunk = new ArrayList<>(chunkSize);
+        long processed = 0;
+        long failed = 0;
+
+        try (MappingIterator<Transaction> transactions = json.readValues(input, Transaction.class)) {
+            while (transactions.hasNextValue()) {
+                chunk.add(transactions.nextValue());
+                if (chunk.size() == chunkSize) {
+                    failed += apply(chunk, output, processed + chunk.size(), failed);
+                    processed += chunk.size();
+                    chunk.clear();
+                }
+            }
+        } catch (JsonProcessingException e) {
+            final String error = e instanceof JsonParseException ? "Invalid JSON" : e.getMessage();
+            if (processed == 0) {
+                throw new InvalidTransactionException(error);
+            }
+            // The response is already committed, report the failure in the stream.
+            responses.writeSummary(output, processed, failed, Collections.singletonList(error));
+            return;
+        }
+
+        if (!chunk.isEmpty()) {
+            failed += apply(chunk, output, processed + chunk.size(), failed);
+            processed += chunk.size();
+        }
+        responses.writeSummary(output, processed, failed, Collections.emptyList());
+    }
+
+    /**
+     * Applies the chunk and reports its progress.
+     * @return the number of failed transactions in the chunk
+     */
+    private long apply(List<Transaction> chunk, OutputStream output, long processed, long failed) throws IOException {
+        final List<InsertResult> results = transactionService.insertAll(chunk);
+        final List<InsertResult> failures = new ArrayList<>();
+        for (InsertResult result : results) {
+            if (!result.isOk()) {
+                failures.add(result);
+            }
+        }
+        responses.writeProgress(output, processed, failed + failures.size(), failures);
+        output.flush();
+        return failures.size();
+    }
+}
@@ -0,0 +1,73 @@
+package metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histogram with fixed buckets, from 1 microsecond to 10 seconds.
+ * Recording never locks: each bucket is a {@link LongAdder}, so that concurrent
+ * threads update separate cells.
+ *
+ * Created by simone on 02/03/16.
+ */
+public class LatencyHistogram {
+
+    /**
+     * Upper bounds of the buckets, in nanoseconds. Latencies above the last one
+     * only go into the overflow bucket.
+     */
+    static final long[] BOUNDS = {
+            1000L, 2500L, 5000L,
+            10000L, 25000L, 50000L,
+            100000L, 250000L, 500000L,
+            1000000L, 2500000L, 5000000L,
+            10000000L, 25000000L, 50000000L,
+            100000000L, 250000000L, 500000000L,
+            1000000000L, 2500000000L, 5000000000L, 10000000000L
+    };
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder sumNanos = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param nanos
+     */
+    public void record(long nanos) {
+        final int position = Arrays.binarySearch(BOUNDS, nanos);
+        buckets[position >= 0 ? position : -position - 1].increment();
+        sumNanos.add(nanos);
+    }
+
+    /**
+     * Records the time elapsed since the given {@link System#nanoTime()}.
+     * @param startNanos
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    /**
+     * @return the count of each bucket, the last one holding the latencies above every bound.
+     * Not an atomic snapshot, concurrent recordings may be partly included.
+     */
+    public long[] counts() {
+        final long[] counts = new long[buckets.length];
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    /**
+     * @return the sum of the recorded latencies, in nanoseconds
+     */
+    public long sumNanos() {
+        return sumNanos.sum();
+    }
+}
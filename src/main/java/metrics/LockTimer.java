@@ -0,0 +1,45 @@
+package metrics;
+
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Measures how long threads wait for a kind of lock and how long they hold it.
+ *
+ * Created by simone on 02/03/16.
+ */
+public class LockTimer {
+
+    private final LatencyHistogram wait = new LatencyHistogram();
+    private final LatencyHistogram hold = new LatencyHistogram();
+
+    /**
+     * Acquires the lock, recording the wait.
+     * @param lock
+     * @return the {@link System#nanoTime()} at which the lock was acquired
+     */
+    public long lock(Lock lock) {
+        final long start = System.nanoTime();
+        lock.lock();
+        final long locked = System.nanoTime();
+        wait.record(locked - start);
+        return locked;
+    }
+
+    /**
+     * Releases the lock, recording the hold.
+     * @param lock
+     * @param lockedAt as returned by {@link #lock(Lock)}
+     */
+    public void unlock(Lock lock, long lockedAt) {
+        lock.unlock();
+        hold.recordSince(lockedAt);
+    }
+
+    public LatencyHistogram getWait() {
+        return wait;
+    }
+
+    public LatencyHistogram getHold() {
+        return hold;
+    }
+}
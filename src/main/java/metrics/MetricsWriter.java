@@ -0,0 +1,120 @@
+package metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes metrics in the Prometheus text format, version 0.0.4. Every metric family
+ * starts with {@link #family(String, String, String)}, followed by its samples.
+ * Latencies are exposed in seconds.
+ *
+ * Created by simone on 02/03/16.
+ */
+public class MetricsWriter {
+
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final StringBuilder text = new StringBuilder(4096);
+
+    /**
+     * Starts a metric family.
+     * @param name
+     * @param type counter, gauge or histogram
+     * @param help
+     * @return this writer
+     */
+    public MetricsWriter family(String name, String type, String help) {
+        text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        return this;
+    }
+
+    /**
+     * Writes a sample of a counter or a gauge.
+     * @param name
+     * @param label label name, null if the sample has no label
+     * @param labelValue
+     * @param value
+     * @return this writer
+     */
+    public MetricsWriter sample(String name, String label, String labelValue, double value) {
+        text.append(name);
+        if (label != null) {
+            text.append('{').append(label).append("=\"");
+            escape(labelValue);
+            text.append("\"}");
+        }
+        text.append(' ');
+        number(value);
+        text.append('\n');
+        return this;
+    }
+
+    /**
+     * Writes the cumulative buckets, the sum and the count of a histogram.
+     * @param name
+     * @param label label name, null if the histogram has no label
+     * @param labelValue
+     * @param histogram
+     * @return this writer
+     */
+    public MetricsWriter histogram(String name, String label, String labelValue, LatencyHistogram histogram) {
+        final long[] counts = histogram.counts();
+        long cumulative = 0;
+        for (int i = 0; i < counts.length; i++) {
+            cumulative += counts[i];
+            text.append(name).append("_bucket{");
+            if (label != null) {
+                text.append(label).append("=\"");
+                escape(labelValue);
+                text.append("\",");
+            }
+            text.append("le=\"");
+            if (i < LatencyHistogram.BOUNDS.length) {
+                number(LatencyHistogram.BOUNDS[i] / 1e9);
+            } else {
+                text.append("+Inf");
+            }
+            text.append("\"} ").append(cumulative).append('\n');
+        }
+        sample(name + "_sum", label, labelValue, histogram.sumNanos() / 1e9);
+        sample(name + "_count", label, labelValue, cumulative);
+        return this;
+    }
+
+    /**
+     * Writes out the text.
+     * @param output
+     * @throws IOException
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        output.write(text.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public String toString() {
+        return text.toString();
+    }
+
+    private void number(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            text.append((long) value);
+        } else {
+            text.append(value);
+        }
+    }
+
+    private void escape(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                text.append('\\').append(c);
+            } else if (c == '\n') {
+                text.append("\\n");
+            } else {
+                text.append(c);
+            }
+        }
+    }
+}
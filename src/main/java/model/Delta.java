@@ -0,0 +1,71 @@
+package model;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * Change of a {@link Transaction} kept by another node of a cluster, caused by a change of
+ * one of its children: amounts to add to its sums, and a child moved under it or away.
+ *
+ * Created by simone on 06/03/16.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class Delta {
+
+    private long id;
+    private double sumOfChildren;
+    private double subtreeSum;
+    private Long addedChild;
+    private Long removedChild;
+
+    public Delta() {
+
+    }
+
+    public Delta(long id, double sumOfChildren, double subtreeSum, Long addedChild, Long removedChild) {
+        this.id = id;
+        this.sumOfChildren = sumOfChildren;
+        this.subtreeSum = subtreeSum;
+        this.addedChild = addedChild;
+        this.removedChild = removedChild;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public double getSumOfChildren() {
+        return sumOfChildren;
+    }
+
+    public void setSumOfChildren(double sumOfChildren) {
+        this.sumOfChildren = sumOfChildren;
+    }
+
+    public double getSubtreeSum() {
+        return subtreeSum;
+    }
+
+    public void setSubtreeSum(double subtreeSum) {
+        this.subtreeSum = subtreeSum;
+    }
+
+    public Long getAddedChild() {
+        return addedChild;
+    }
+
+    public void setAddedChild(Long addedChild) {
+        this.addedChild = addedChild;
+    }
+
+    public Long getRemovedChild() {
+        return removedChild;
+    }
+
+    public void setRemovedChild(Long removedChild) {
+        this.removedChild = removedChild;
+    }
+}
@@ -0,0 +1,30 @@
+package model;
+
+import java.util.List;
+
+/**
+ * A page of transaction ids, and the cursor to pass to get the following page.
+ *
+ * Created by simone on 25/02/16.
+ */
+public class IdPage {
+
+    private final List<Long> ids;
+    /**
+     * The last id of the page, null if there are no more pages.
+     */
+    private final Long next;
+
+    public IdPage(List<Long> ids, Long next) {
+        this.ids = ids;
+        this.next = next;
+    }
+
+    public List<Long> getIds() {
+        return ids;
+    }
+
+    public Long getNext() {
+        return next;
+    }
+}
@@ -0,0 +1,51 @@
+package model;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of the insertion of a single {@link Transaction} in a batch.
+ *
+ * Created by simone on 22/02/16.
+ */
+@JsonInclude(JsonInclude.Include.NON_EMPTY)
+public class InsertResult {
+
+    private final Long id;
+    private final String status;
+    private final List<String> errors;
+
+    private InsertResult(Long id, String status, List<String> errors) {
+        this.id = id;
+        this.status = status;
+        this.errors = errors;
+    }
+
+    public static InsertResult ok(Long id) {
+        return new InsertResult(id, "ok", Collections.emptyList());
+    }
+
+    public static InsertResult failed(Long id, List<String> errors) {
+        return new InsertResult(id, "nok", errors);
+    }
+
+    public Long getId() {
+        return id;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    @JsonIgnore
+    public boolean isOk() {
+        return errors.isEmpty();
+    }
+}
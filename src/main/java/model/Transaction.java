@@ -5,26 +5,24 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import javax.validation.constraints.Max;
 import javax.validation.constraints.Min;
 import javax.validation.constraints.NotNull;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Objects;
 
 /**
- * Stores information about a transaction and its children if any.
+ * Stores information about a transaction and the sums of its children if any.
  *
  * Created by simone on 13/02/16.
  */
 public class Transaction {
     /**
-     * The list of children transactions.
+     * Sum of children
      */
     @JsonIgnore
-    private List<Transaction> transactionList = new ArrayList<>();
+    private volatile Double sumOfChildren = .0;
     /**
-     * Sum of children
+     * Sum of all descendants
      */
     @JsonIgnore
-    private Double sumOfChildren = .0;
+    private volatile Double subtreeSum = .0;
 
 
     @NotNull
@@ -97,19 +95,6 @@ public class Transaction {
         this.transactionType = transactionType;
     }
 
-
-    public List<Transaction> getTransactionList() {
-        return transactionList;
-    }
-
-    public void setTransactionList(List<Transaction> transactionList) {
-        this.transactionList = transactionList;
-    }
-
-    public void addTransactionList(Transaction transaction) {
-        this.transactionList.add(transaction);
-    }
-
     public Double getSumOfChildren() {
         return sumOfChildren;
     }
@@ -122,13 +107,25 @@ public class Transaction {
         this.sumOfChildren += sumOfChildren;
     }
 
+    public Double getSubtreeSum() {
+        return subtreeSum;
+    }
+
+    public void setSubtreeSum(Double subtreeSum) {
+        this.subtreeSum = subtreeSum;
+    }
+
+    public void addToSubtreeSum(Double subtreeSum) {
+        this.subtreeSum += subtreeSum;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Transaction that = (Transaction) o;
-        return Objects.equals(transactionList, that.transactionList) &&
-                Objects.equals(sumOfChildren, that.sumOfChildren) &&
+        return Objects.equals(sumOfChildren, that.sumOfChildren) &&
+                Objects.equals(subtreeSum, that.subtreeSum) &&
                 Objects.equals(id, that.id) &&
                 Objects.equals(amount, that.amount) &&
                 Objects.equals(parentId, that.parentId) &&
@@ -137,6 +134,6 @@ public class Transaction {
 
     @Override
     public int hashCode() {
-        return Objects.hash(transactionList, sumOfChildren, id, amount, parentId, transactionType);
+        return Objects.hash(sumOfChildren, subtreeSum, id, amount, parentId, transactionType);
     }
 }
@@ -0,0 +1,27 @@
+package service;
+
+import model.Delta;
+
+/**
+ * The part of the transactions kept by a node of a cluster. Transactions of other
+ * nodes can be parents of local ones: the changes of their sums and children are sent
+ * to their node as {@link Delta}s, and applied there by {@link TransactionService#applyDelta(Delta)}.
+ *
+ * Created by simone on 06/03/16.
+ */
+public interface Partition {
+
+    /**
+     * @param id
+     * @return true if the transaction is kept by this node
+     */
+    boolean owns(long id);
+
+    /**
+     * Sends the change to the node of the transaction, asynchronously. Sums add up in any
+     * order; the changes of the children of a transaction must arrive in the order sent.
+     * Called while the locks of the write are held, so it must return quickly.
+     * @param delta
+     */
+    void send(Delta delta);
+}
@@ -0,0 +1,195 @@
+package service;
+
+import model.Transaction;
+import model.TransactionType;
+import service.store.TransactionStore;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The latest insertions applied by a leader, in the order applied, for its followers
+ * to apply in the same order. It keeps the last insertions in a ring and drops the
+ * older ones: a follower behind them has to start again from a snapshot, see
+ * {@link TransactionService#snapshotTo(java.io.File)}.
+ *
+ * Sequence numbers start from the clock, so that the sequences of a restarted leader
+ * never continue the ones a follower has seen.
+ *
+ * Writers take no lock: a sequence is claimed while the locks of the insertion are held,
+ * so that dependent insertions get them in the order applied, and the insertion is
+ * published afterwards. Followers only read up to the first insertion not yet published.
+ *
+ * Created by simone on 06/03/16.
+ */
+public class ReplicationLog {
+
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    /**
+     * Sequence before the first insertion.
+     */
+    private final long first;
+    /**
+     * Last sequence claimed, and last one published along with all the ones before.
+     */
+    private final AtomicLong claimed;
+    private final AtomicLong sequence;
+    /**
+     * Readers waiting for insertions, changed under the monitor.
+     */
+    private volatile int waiting;
+
+    /**
+     * An insertion and its sequence, immutable so that a reader never sees it half written.
+     */
+    private static final class Entry {
+        final long sequence;
+        final long id;
+        final double amount;
+        final long parentId;
+        final byte type;
+
+        Entry(long sequence, Transaction transaction) {
+            this.sequence = sequence;
+            this.id = transaction.getId();
+            this.amount = transaction.getAmount();
+            this.parentId = transaction.getParentId() == null ? TransactionStore.NO_ID : transaction.getParentId();
+            this.type = (byte) transaction.getTransactionType().ordinal();
+        }
+    }
+
+    /**
+     * @param capacity number of insertions kept, a power of two
+     */
+    public ReplicationLog(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity must be a power of two: " + capacity);
+        }
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.first = System.currentTimeMillis() << 20;
+        this.claimed = new AtomicLong(first);
+        this.sequence = new AtomicLong(first);
+    }
+
+    /**
+     * Claims the sequence of an insertion. Called while the locks of the insertion are held,
+     * so that dependent insertions are appended in the order applied. Each claimed sequence
+     * must be published.
+     * @return the sequence number of the insertion
+     */
+    public long claim() {
+        return claimed.incrementAndGet();
+    }
+
+    /**
+     * Appends an applied insertion, with its claimed sequence. The followers get it once
+     * the ones claimed before are published too.
+     * @param sequence
+     * @param transaction
+     */
+    public void publish(long sequence, Transaction transaction) {
+        final int slot = (int) sequence & mask;
+        final Entry entry = new Entry(sequence, transaction);
+        while (true) {
+            final Entry previous = entries.get(slot);
+            // Too late, the ring went round meanwhile: dropped for the followers.
+            if (previous != null && previous.sequence > sequence
+                    || entries.compareAndSet(slot, previous, entry)) {
+                break;
+            }
+        }
+        advance();
+    }
+
+    /**
+     * Moves the published sequence past every insertion published in a row after it. An
+     * insertion replaced by the next round of the ring is passed over, nobody can read it.
+     */
+    private void advance() {
+        long current = sequence.get();
+        while (true) {
+            final Entry next = entries.get((int) (current + 1) & mask);
+            if (next == null || next.sequence <= current) {
+                break;
+            }
+            if (sequence.compareAndSet(current, current + 1)) {
+                current++;
+            } else {
+                current = sequence.get();
+            }
+        }
+        // Set by a reader before it looks at the sequence: either it sees the new one, or it is seen here.
+        if (waiting > 0) {
+            synchronized (this) {
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the sequence number of the last insertion published
+     */
+    public long getSequence() {
+        return sequence.get();
+    }
+
+    /**
+     * Copies the insertions following the given sequence, waiting for some if there are none yet.
+     * If it copies none, nothing was appended for the whole wait.
+     * @param after sequence of the last insertion the follower has
+     * @param max maximum number of insertions copied
+     * @param waitMillis longest wait for new insertions, 0 not to wait
+     * @param into receives the insertions, in order
+     * @return the sequence of the last insertion when copied, -1 if the ones following the
+     * given sequence were dropped or never appended here
+     * @throws InterruptedException
+     */
+    public long read(long after, int max, long waitMillis, List<Transaction> into)
+            throws InterruptedException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        if (sequence.get() == after && remaining > 0) {
+            final long deadline = System.nanoTime() + remaining;
+            synchronized (this) {
+                waiting++;
+                try {
+                    // Returns nothing only once the whole wait is over.
+                    while (sequence.get() == after && remaining > 0) {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                        remaining = deadline - System.nanoTime();
+                    }
+                } finally {
+                    waiting--;
+                }
+            }
+        }
+        final long last = sequence.get();
+        if (after < Math.max(first, last - entries.length()) || after > last) {
+            return -1;
+        }
+        final int copied = into.size();
+        for (long next = after + 1; next <= last && into.size() < max; next++) {
+            final Entry entry = entries.get((int) next & mask);
+            if (entry == null || entry.sequence != next) {
+                // replaced while copying
+                into.subList(copied, into.size()).clear();
+                return -1;
+            }
+            into.add(new Transaction(entry.id, entry.amount,
+                    entry.parentId == TransactionStore.NO_ID ? null : entry.parentId, TYPES[entry.type]));
+        }
+        return last;
+    }
+
+    /**
+     * @return the number of insertions kept
+     */
+    public int size() {
+        return (int) Math.min(sequence.get() - first, entries.length());
+    }
+}
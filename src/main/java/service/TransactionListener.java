@@ -0,0 +1,22 @@
+package service;
+
+/**
+ * Told of the changes applied by {@link TransactionService}, after the data has changed
+ * and while the locks of the write are still held, so it must return quickly.
+ *
+ * Created by simone on 04/03/16.
+ */
+public interface TransactionListener {
+
+    /**
+     * The transaction was inserted or replaced.
+     * @param id
+     */
+    void transactionChanged(long id);
+
+    /**
+     * The sum of the children of the transaction changed, or may have.
+     * @param id
+     */
+    void childrenSumChanged(long id);
+}
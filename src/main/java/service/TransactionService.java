@@ -1,90 +1,1109 @@
 package service;
 
+import metrics.LockTimer;
+import metrics.MetricsWriter;
+import model.Delta;
+import model.IdPage;
+import model.InsertResult;
 import model.Transaction;
 import model.TransactionType;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.stereotype.Service;
 import service.exceptions.InvalidTransactionException;
 import service.exceptions.TransactionNotFoundException;
+import service.index.ChildrenIndex;
+import service.index.IdSet;
+import service.index.TypeIndex;
+import service.persistence.FsyncPolicy;
+import service.persistence.Persistence;
+import service.persistence.SnapshotFile;
+import service.store.MapTransactionStore;
+import service.store.OffHeapTransactionStore;
+import service.store.ShardedTransactionStore;
+import service.store.TransactionStore;
 
-import javax.validation.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Simple CRUD for {@link model.Transaction}
  *
+ * Reads never lock and return snapshots: a {@link Transaction} is a copy of a
+ * single version of the stored one, an {@link IdSet} of a type stays the same
+ * while later writes go on and tells them apart by its version.
+ *
+ * Writes lock only the stripes of the ids they touch
+ * (the transaction, its parent and the old one if it moves), always in ascending
+ * stripe order so that concurrent writers cannot deadlock. Moves also check for
+ * cycles one at a time, see {@link #moveLock}. Batches and snapshots run alone.
+ * A {@link WriteSequencer} can instead apply the insertions from a single thread.
+ *
+ * The data can be split in shards by id hash, see {@link ShardedTransactionStore#shardOf(long, int)}:
+ * each shard has its own storage, type index, structure lock and share of the stripes.
+ * The stripe of an id always belongs to the shard of the id, so a write whose parent
+ * lives on another shard locks the stripes of both shards, in the same ascending order,
+ * and changes the sum of the parent together with the child.
+ *
+ * Given a {@link Persistence}, every insertion is logged before it returns. Given a
+ * {@link ReplicationLog}, every insertion is also appended to it for the followers.
+ *
  * Created by simone on 13/02/16.
  */
 @Service
-public class TransactionService {
+public class TransactionService implements DisposableBean {
 
     /**
-     * Stores the {@link Transaction} data.
+     * Number of lock stripes, must be a power of two.
      */
-    private Map<Long, Transaction> storage = new HashMap<>();
+    private static final int LOCK_STRIPES = 256;
     /**
-     * Maps a type to {@link Transaction} entities.
+     * System property setting the number of shards, a power of two up to the number of stripes.
      */
-    private Map<TransactionType, Set<Long>> typeIndex = new HashMap<>();
+    public static final String SHARDS_PROPERTY = "transactionservice.shards";
     /**
-     * Hibernate validators.
+     * Number of version counters, must be a power of two.
      */
-    private Validator validator;
+    private static final int VERSION_STRIPES = 1 << 16;
 
+    /**
+     * System property selecting the storage engine, either "heap" or "offheap".
+     */
+    public static final String STORE_PROPERTY = "transactionservice.store";
+    /**
+     * System properties enabling the persistence in the given directory: the fsync policy
+     * of the log ("always", "interval" or "never"), its interval in milliseconds and the
+     * interval of the snapshots in seconds.
+     */
+    public static final String DATA_DIR_PROPERTY = "transactionservice.data.dir";
+    public static final String FSYNC_PROPERTY = "transactionservice.fsync";
+    public static final String FSYNC_INTERVAL_PROPERTY = "transactionservice.fsync.interval";
+    public static final String SNAPSHOT_INTERVAL_PROPERTY = "transactionservice.snapshot.interval";
+
+    /**
+     * Stores the {@link Transaction} data, replaced as a whole by {@link #loadReplica(File)}.
+     */
+    private volatile TransactionStore storage;
+    /**
+     * Maps a type to {@link Transaction} entities.
+     */
+    private volatile TypeIndex typeIndex;
+    /**
+     * Maps a parent to its children.
+     */
+    private volatile ChildrenIndex childrenIndex = new ChildrenIndex();
+    /**
+     * Write locks, striped by transaction id.
+     */
+    private final Lock[] locks = new Lock[LOCK_STRIPES];
+    /**
+     * Guard the shape of the tree, one per shard. Batches, snapshots and the other
+     * operations needing the whole tree still take all of them exclusively. All other
+     * writes, moves included, share the one of their shard.
+     */
+    private final ReadWriteLock[] structureLocks;
+    /**
+     * Taken by the writes moving an existing transaction to another parent, the only ones
+     * changing a parent besides the exclusive ones: a move sees no other move while it
+     * checks for a cycle and switches the parent. Taken before the stripes.
+     */
+    private final Lock moveLock = new ReentrantLock();
+    /**
+     * Released once the children index is complete. After a recovery it is rebuilt in the
+     * background from the parent ids: writes and the children and subtree listings wait
+     * meanwhile, the other reads do not.
+     */
+    private final CountDownLatch childrenIndexed = new CountDownLatch(1);
+    /**
+     * Versions of the transactions and of their sums of children, striped by id. A counter
+     * is bumped after every change of any of its ids, so it may change for an id which did
+     * not, but never stays the same for one which did.
+     */
+    private final AtomicLongArray transactionVersions = new AtomicLongArray(VERSION_STRIPES);
+    private final AtomicLongArray childrenSumVersions = new AtomicLongArray(VERSION_STRIPES);
+    /**
+     * Told of every change, after the versions.
+     */
+    private final List<TransactionListener> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * Wait and hold times of the stripes, and of the structure locks when shared and exclusive.
+     */
+    private final LockTimer stripeTimer = new LockTimer();
+    private final LockTimer sharedTimer = new LockTimer();
+    private final LockTimer exclusiveTimer = new LockTimer();
+    private final LockTimer moveTimer = new LockTimer();
+    /**
+     * The transactions kept by this node of a cluster, null if all of them are.
+     */
+    private volatile Partition partition;
+    /**
+     * Keeps the insertions for the followers, null if this is not a leader.
+     */
+    private volatile ReplicationLog replicationLog;
+    /**
+     * Logs the insertions and takes the snapshots, null if the data is kept in memory only.
+     */
+    private final Persistence persistence;
     public TransactionService() {
-        ValidatorFactory factory = Validation.buildDefaultValidatorFactory();
-        validator = factory.getValidator();
+        this(newStore(Integer.getInteger(SHARDS_PROPERTY, 1)),
+                System.getProperty(DATA_DIR_PROPERTY) == null ? null : new Persistence(
+                        new File(System.getProperty(DATA_DIR_PROPERTY)),
+                        FsyncPolicy.valueOf(System.getProperty(FSYNC_PROPERTY, "interval").toUpperCase()),
+                        Long.getLong(FSYNC_INTERVAL_PROPERTY, 100L),
+                        TimeUnit.SECONDS.toMillis(Long.getLong(SNAPSHOT_INTERVAL_PROPERTY, 600L))),
+                Integer.getInteger(SHARDS_PROPERTY, 1));
+    }
+
+    public TransactionService(TransactionStore storage) {
+        this(storage, null);
+    }
+
+    public TransactionService(TransactionStore storage, Persistence persistence) {
+        this(storage, persistence, 1);
+    }
+
+    /**
+     * Recovers the data kept by the persistence, if any, before returning. Only the
+     * children index is rebuilt afterwards, in the background.
+     * @param storage empty, sharded with the same number of shards if it is a {@link ShardedTransactionStore}
+     * @param persistence may be null
+     * @param shards number of shards, a power of two up to 256
+     */
+    public TransactionService(TransactionStore storage, Persistence persistence, int shards) {
+        if (shards < 1 || shards > LOCK_STRIPES || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("The number of shards must be a power of two up to "
+                    + LOCK_STRIPES + ": " + shards);
+        }
+        this.storage = storage;
+        this.persistence = persistence;
+        this.typeIndex = new TypeIndex(shards);
+        this.structureLocks = new ReadWriteLock[shards];
+        for (int i = 0; i < shards; i++) {
+            structureLocks[i] = new ReentrantReadWriteLock();
+        }
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        if (persistence == null) {
+            childrenIndexed.countDown();
+            return;
+        }
+        try {
+            persistence.recover(storage, typeIndex, this::replay);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot recover the transactions.", e);
+        }
+        final Thread indexer = new Thread(this::indexChildren, "children-index");
+        indexer.setDaemon(true);
+        indexer.start();
+        persistence.scheduleSnapshots(this::snapshot);
+    }
+
+    /**
+     * @param shards
+     * @return an empty store of the engine selected by {@link #STORE_PROPERTY}, one per shard
+     */
+    private static TransactionStore newStore(int shards) {
+        final boolean offHeap = "offheap".equalsIgnoreCase(System.getProperty(STORE_PROPERTY));
+        if (shards == 1) {
+            return offHeap ? new OffHeapTransactionStore() : new MapTransactionStore();
+        }
+        final TransactionStore[] stores = new TransactionStore[shards];
+        for (int i = 0; i < shards; i++) {
+            stores[i] = offHeap ? new OffHeapTransactionStore() : new MapTransactionStore();
+        }
+        return new ShardedTransactionStore(stores);
+    }
+
+    /**
+     * Adds every stored transaction to the children of its parent. The replay may
+     * have added some of them already.
+     */
+    private void indexChildren() {
+        try {
+            storage.forEachParentId((id, parentId) -> {
+                if (parentId != TransactionStore.NO_ID) {
+                    childrenIndex.add(parentId, id);
+                }
+            });
+        } finally {
+            childrenIndexed.countDown();
+        }
+    }
+
+    private void awaitChildrenIndexed() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                childrenIndexed.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     /**
      * Insert a {@link Transaction} into the storage.
      * @param transaction
      */
-    public synchronized Transaction insert(Transaction transaction) {
-        Set<ConstraintViolation<Transaction>> validation = validator.validate(transaction);
+    public Transaction insert(Transaction transaction) {
+        validate(transaction);
+        awaitChildrenIndexed();
+
+        final Long id = transaction.getId();
+        final Long parentId = transaction.getParentId();
+
+        while (true) {
+            // not null if a transaction with same id already exists.
+            final Transaction existingTransaction = storage.get(id);
+            // A move also locks the old parent, and checks for cycles alone among moves.
+            final boolean move = isReparent(existingTransaction, parentId);
+            final Long oldParentId = move ? existingTransaction.getParentId() : null;
+
+            final ReplicationLog replication = replicationLog;
+            long sequence = 0;
+            long replicated = 0;
+            final Lock shared = structureLocks[shard(id)].readLock();
+            final long sharedAt = sharedTimer.lock(shared);
+            Transaction currentTransaction = null;
+            boolean logged = false;
+            try {
+                final long movingAt = move ? moveTimer.lock(moveLock) : 0;
+                try {
+                    final Lock[] held = lockStripes(id, parentId, oldParentId);
+                    final long lockedAt = System.nanoTime();
+                    try {
+                        currentTransaction = storage.get(id);
+                        if (isReparent(currentTransaction, parentId) != move || move
+                                && !Objects.equals(currentTransaction.getParentId(), oldParentId)) {
+                            // Inserted or moved concurrently, other stripes are needed.
+                            continue;
+                        }
+                        checkLocked(transaction, currentTransaction);
+                        // Claimed while the stripes are held, in the same order as applied, and
+                        // before any change so that a failed log leaves the data as it was.
+                        // Appended to the logs once the stripes are released.
+                        sequence = claim();
+                        replicated = claim(replication);
+                        logged = true;
+                        applyLocked(transaction, currentTransaction);
+                    } finally {
+                        for (int i = held.length - 1; i >= 0; i--) {
+                            held[i].unlock();
+                        }
+                        stripeTimer.getHold().recordSince(lockedAt);
+                    }
+                } finally {
+                    if (move) {
+                        moveTimer.unlock(moveLock, movingAt);
+                    }
+                }
+            } finally {
+                try {
+                    if (logged) {
+                        try {
+                            publish(transaction, sequence, replication, replicated);
+                        } finally {
+                            // The ancestors are locked one at a time, never while holding other stripes.
+                            propagateSubtreeSum(transaction, currentTransaction, false);
+                        }
+                    }
+                } finally {
+                    sharedTimer.unlock(shared, sharedAt);
+                }
+            }
+            awaitLogged(sequence);
+            return transaction;
+        }
+    }
+
+    /**
+     * Inserts a batch of {@link Transaction}. All of them are validated first, then the
+     * valid ones are applied parents first in a single critical section. A failure only
+     * affects its own item.
+     *
+     * @param transactions
+     * @return one result per transaction, in the same order
+     */
+    public List<InsertResult> insertAll(List<Transaction> transactions) {
+        final InsertResult[] results = new InsertResult[transactions.size()];
+        final List<Integer> valid = new ArrayList<>(transactions.size());
+        for (int i = 0; i < transactions.size(); i++) {
+            try {
+                validate(transactions.get(i));
+                valid.add(i);
+            } catch (InvalidTransactionException e) {
+                results[i] = InsertResult.failed(transactions.get(i).getId(), e.getMessages());
+            }
+        }
+
+        awaitChildrenIndexed();
+        final List<Integer> order = batchOrder(transactions, valid);
+
+        final ReplicationLog replication = replicationLog;
+        long sequence = 0;
+        final long lockedAt = lockStructure();
+        try {
+            for (int i : order) {
+                final Transaction transaction = transactions.get(i);
+                final Transaction existingTransaction = storage.get(transaction.getId());
+                try {
+                    checkLocked(transaction, existingTransaction);
+                } catch (InvalidTransactionException e) {
+                    results[i] = InsertResult.failed(transaction.getId(), e.getMessages());
+                    continue;
+                } catch (TransactionNotFoundException e) {
+                    results[i] = InsertResult.failed(transaction.getId(), Collections.singletonList(e.getMessage()));
+                    continue;
+                }
+                sequence = claim();
+                final long replicated = claim(replication);
+                try {
+                    applyLocked(transaction, existingTransaction);
+                } finally {
+                    try {
+                        publish(transaction, sequence, replication, replicated);
+                    } finally {
+                        propagateSubtreeSum(transaction, existingTransaction, true);
+                    }
+                }
+                results[i] = InsertResult.ok(transaction.getId());
+            }
+        } finally {
+            unlockStructure(lockedAt);
+        }
+        awaitLogged(sequence);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Applies validated transactions one after the other, in the given order, holding the
+     * structure locks exclusively once for all of them, then waits until they are logged.
+     * Used by the single writer of a {@link WriteSequencer}. An expected failure only affects
+     * its own transaction, and is found before anything changes. Anything else is thrown,
+     * the transactions applied before it are not known to be durable then.
+     *
+     * @param transactions
+     * @param count number of transactions to apply, from the first
+     * @param failures set to the failure of each transaction not applied, or not logged,
+     *                 null for the others
+     */
+    void applyInOrder(Transaction[] transactions, int count, Throwable[] failures) {
+        Arrays.fill(failures, 0, count, null);
+        awaitChildrenIndexed();
+        final ReplicationLog replication = replicationLog;
+        long sequence = 0;
+        final long lockedAt = lockStructure();
+        try {
+            for (int i = 0; i < count; i++) {
+                final Transaction transaction = transactions[i];
+                final Transaction existingTransaction = storage.get(transaction.getId());
+                try {
+                    checkLocked(transaction, existingTransaction);
+                    sequence = claim();
+                } catch (InvalidTransactionException | TransactionNotFoundException | UncheckedIOException e) {
+                    // nothing changed
+                    failures[i] = e;
+                    continue;
+                }
+                final long replicated = claim(replication);
+                try {
+                    applyLocked(transaction, existingTransaction);
+                } finally {
+                    try {
+                        publish(transaction, sequence, replication, replicated);
+                    } finally {
+                        propagateSubtreeSum(transaction, existingTransaction, true);
+                    }
+                }
+            }
+        } finally {
+            unlockStructure(lockedAt);
+        }
+        try {
+            awaitLogged(sequence);
+        } catch (UncheckedIOException e) {
+            // applied, but not known to be durable
+            for (int i = 0; i < count; i++) {
+                if (failures[i] == null) {
+                    failures[i] = e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the data and starts a new log, so that recovery only
+     * replays the insertions which follow. Writes wait meanwhile, reads do not.
+     */
+    public void snapshot() {
+        if (persistence == null) {
+            return;
+        }
+        final long lockedAt = lockStructure();
+        try {
+            persistence.snapshot(storage, typeIndex);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot write the snapshot.", e);
+        } finally {
+            unlockStructure(lockedAt);
+        }
+    }
+
+    /**
+     * Writes out the log, the data is recovered on the next start.
+     */
+    public void close() {
+        if (persistence == null) {
+            return;
+        }
+        final long lockedAt = lockStructure();
+        try {
+            persistence.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot close the log.", e);
+        } finally {
+            unlockStructure(lockedAt);
+        }
+    }
+
+    /**
+     * Closes the service when the application context is closed, see {@link #close()}.
+     */
+    @Override
+    public void destroy() {
+        close();
+    }
+
+    /**
+     * Keeps only the transactions of the partition from now on, the others being parents
+     * on other nodes. Their existence is not checked here. A transaction only moves under
+     * a parent whose ancestors are all kept by this node, so that no cycle goes through them.
+     * Persistence is not supported meanwhile: the changes sent to other nodes are not logged.
+     * @param partition
+     */
+    public void setPartition(Partition partition) {
+        if (persistence != null) {
+            throw new IllegalStateException("A partitioned service cannot be persisted.");
+        }
+        this.partition = partition;
+    }
+
+    /**
+     * Appends every insertion from now on to the log, for the followers.
+     * @param replicationLog
+     */
+    public void setReplicationLog(ReplicationLog replicationLog) {
+        this.replicationLog = replicationLog;
+    }
+
+    /**
+     * Writes a snapshot of the data for a follower to start from, see {@link ReplicationLog}.
+     * Writes wait meanwhile, reads do not.
+     * @param file
+     * @return the sequence of the last insertion in the snapshot
+     * @throws IOException
+     */
+    public long snapshotTo(File file) throws IOException {
+        if (replicationLog == null) {
+            throw new IllegalStateException("The insertions are not replicated.");
+        }
+        final long lockedAt = lockStructure();
+        try {
+            SnapshotFile.write(file, storage, typeIndex);
+            return replicationLog.getSequence();
+        } finally {
+            unlockStructure(lockedAt);
+        }
+    }
+
+    /**
+     * Replaces the data of this service with the snapshot of a leader, see {@link #snapshotTo(File)}.
+     * The snapshot is loaded in a new store and new indexes, which then replace the current ones
+     * at once, so reads keep seeing the previous data until then. Writes wait meanwhile.
+     * Every version changes, so that no ETag of the replaced data matches.
+     * @param file
+     * @return the number of transactions loaded
+     * @throws IOException
+     */
+    public long loadReplica(File file) throws IOException {
+        if (persistence != null) {
+            throw new IllegalStateException("A follower cannot be persisted.");
+        }
+        final long lockedAt = lockStructure();
+        try {
+            final TransactionStore loadedStorage = storage.newEmpty();
+            final TypeIndex loadedTypes = new TypeIndex(typeIndex);
+            final ChildrenIndex loadedChildren = new ChildrenIndex();
+            final long count = SnapshotFile.read(file, loadedStorage, loadedTypes);
+            loadedStorage.forEachParentId((id, parentId) -> {
+                if (parentId != TransactionStore.NO_ID) {
+                    loadedChildren.add(parentId, id);
+                }
+            });
+            // the previous store is left as is for the reads still on it
+            storage = loadedStorage;
+            typeIndex = loadedTypes;
+            childrenIndex = loadedChildren;
+            for (int stripe = 0; stripe < VERSION_STRIPES; stripe++) {
+                transactionVersions.incrementAndGet(stripe);
+                childrenSumVersions.incrementAndGet(stripe);
+            }
+            return count;
+        } finally {
+            unlockStructure(lockedAt);
+        }
+    }
+
+    /**
+     * Applies insertions read from the log of the leader, in the same order.
+     * @param transactions applied by the leader already
+     * @return the number of insertions which failed here, all of them after an unexpected failure
+     */
+    public int applyReplicated(List<Transaction> transactions) {
+        final Transaction[] batch = transactions.toArray(new Transaction[0]);
+        final Throwable[] failures = new Throwable[batch.length];
+        try {
+            applyInOrder(batch, batch.length, failures);
+        } catch (RuntimeException e) {
+            // the data may differ from the leader's anywhere in the batch
+            return batch.length;
+        }
+        int failed = 0;
+        for (Throwable failure : failures) {
+            if (failure != null) {
+                failed++;
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Applies the change of a transaction kept here, caused by its children kept by another
+     * node, see {@link Partition}. Changes of missing transactions are dropped.
+     * @param delta
+     */
+    public void applyDelta(Delta delta) {
+        awaitChildrenIndexed();
+        final long id = delta.getId();
+        final Lock shared = structureLocks[shard(id)].readLock();
+        final long sharedAt = sharedTimer.lock(shared);
+        try {
+            final boolean applied;
+            final Lock[] held = lockStripes(id);
+            final long lockedAt = System.nanoTime();
+            try {
+                applied = storage.contains(id);
+                if (applied) {
+                    if (delta.getSumOfChildren() != 0) {
+                        storage.addToSumOfChildren(id, delta.getSumOfChildren());
+                    }
+                    if (delta.getAddedChild() != null) {
+                        childrenIndex.add(id, delta.getAddedChild());
+                    }
+                    if (delta.getRemovedChild() != null) {
+                        childrenIndex.remove(id, delta.getRemovedChild());
+                    }
+                    childrenSumVersions.incrementAndGet(versionStripe(id));
+                    for (TransactionListener listener : listeners) {
+                        listener.childrenSumChanged(id);
+                    }
+                }
+            } finally {
+                for (int i = held.length - 1; i >= 0; i--) {
+                    held[i].unlock();
+                }
+                stripeTimer.getHold().recordSince(lockedAt);
+            }
+            if (applied) {
+                addToAncestors(id, delta.getSubtreeSum(), false);
+            }
+        } finally {
+            sharedTimer.unlock(shared, sharedAt);
+        }
+    }
+
+    /**
+     * @param listener told of every change from now on
+     */
+    public void addListener(TransactionListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Writes the lock wait and hold times and the size of the stored data.
+     * @param metrics
+     */
+    public void writeMetrics(MetricsWriter metrics) {
+        metrics.family("transactionservice_lock_wait_seconds", "histogram", "Time spent waiting for a lock.");
+        metrics.histogram("transactionservice_lock_wait_seconds", "lock", "stripe", stripeTimer.getWait());
+        metrics.histogram("transactionservice_lock_wait_seconds", "lock", "structure_shared", sharedTimer.getWait());
+        metrics.histogram("transactionservice_lock_wait_seconds", "lock", "structure_exclusive", exclusiveTimer.getWait());
+        metrics.histogram("transactionservice_lock_wait_seconds", "lock", "move", moveTimer.getWait());
+        metrics.family("transactionservice_lock_hold_seconds", "histogram", "Time a lock is held.");
+        metrics.histogram("transactionservice_lock_hold_seconds", "lock", "stripe", stripeTimer.getHold());
+        metrics.histogram("transactionservice_lock_hold_seconds", "lock", "structure_shared", sharedTimer.getHold());
+        metrics.histogram("transactionservice_lock_hold_seconds", "lock", "structure_exclusive", exclusiveTimer.getHold());
+        metrics.histogram("transactionservice_lock_hold_seconds", "lock", "move", moveTimer.getHold());
 
-        if (validation.size() > 0) {
-            throw new InvalidTransactionException(validation);
+        metrics.family("transactionservice_shards", "gauge", "Number of shards of the data.")
+                .sample("transactionservice_shards", null, null, structureLocks.length);
+        metrics.family("transactionservice_transactions", "gauge", "Number of stored transactions.")
+                .sample("transactionservice_transactions", null, null, storage.size());
+        metrics.family("transactionservice_store_bytes", "gauge", "Estimated memory used by the stored transactions.")
+                .sample("transactionservice_store_bytes", null, null, storage.estimatedBytes());
+        metrics.family("transactionservice_type_transactions", "gauge", "Number of transactions of each type.");
+        for (TransactionType transactionType : TransactionType.values()) {
+            metrics.sample("transactionservice_type_transactions", "type", transactionType.name().toLowerCase(),
+                    typeIndex.count(transactionType));
         }
+        metrics.family("transactionservice_type_index_bytes", "gauge", "Memory used by the type index.")
+                .sample("transactionservice_type_index_bytes", null, null, typeIndex.sizeInBytes());
+    }
+
+    /**
+     * Claims the sequence of the insertion in the persistence, before it is applied: a log
+     * which cannot be written fails the insertion while nothing has changed yet.
+     * @return the sequence number of the insertion, 0 if not persisted
+     */
+    private long claim() {
+        return persistence == null ? 0 : persistence.claim();
+    }
+
+    /**
+     * @return the sequence number of the insertion in the replication log, 0 if none
+     */
+    private static long claim(ReplicationLog replication) {
+        return replication == null ? 0 : replication.claim();
+    }
 
-        // not null if a transaction with same id already exists.
+    /**
+     * Appends the applied insertion to the logs with the sequences claimed for it, once
+     * its locks are released. Every claimed sequence is published, or the logs stop there.
+     */
+    private void publish(Transaction transaction, long sequence, ReplicationLog replication, long replicated) {
+        try {
+            if (persistence != null) {
+                persistence.publish(sequence, transaction);
+            }
+        } finally {
+            if (replication != null) {
+                replication.publish(replicated, transaction);
+            }
+        }
+    }
+
+    private void awaitLogged(long sequence) {
+        if (persistence != null && sequence > 0) {
+            persistence.sync(sequence);
+        }
+    }
+
+    /**
+     * Applies a recovered {@link Transaction}, it was valid when logged.
+     */
+    private void replay(Transaction transaction) {
         final Transaction existingTransaction = storage.get(transaction.getId());
-        // Copy the object to have persistence.
-        final Transaction entity = new Transaction(transaction);
+        checkLocked(transaction, existingTransaction);
+        applyLocked(transaction, existingTransaction);
+        propagateSubtreeSum(transaction, existingTransaction, true);
+    }
 
-        // Remove previous data.
-        if (existingTransaction != null) {
-            if (existingTransaction.getParentId() != null) {
-                getEntity(existingTransaction.getParentId()).addToSumOfChildren(-existingTransaction.getAmount());
+    /**
+     * Orders the valid items of a batch so that each one comes after the last copy of its
+     * parent in the batch, and after the earlier copies of its own id which it replaces.
+     * Items on a cycle inside the batch come last, in the batch order, and are rejected on insertion.
+     */
+    private static List<Integer> batchOrder(List<Transaction> transactions, List<Integer> valid) {
+        final int size = transactions.size();
+        // number of items each one waits for, at most its previous copy and its parent
+        final int[] waiting = new int[size];
+        final int[] nextCopy = new int[size];
+        final int[] firstChild = new int[size];
+        final int[] nextSibling = new int[size];
+        Arrays.fill(nextCopy, -1);
+        Arrays.fill(firstChild, -1);
+        final Map<Long, Integer> last = new HashMap<>();
+        for (int i : valid) {
+            final Integer previous = last.put(transactions.get(i).getId(), i);
+            if (previous != null) {
+                nextCopy[previous] = i;
+                waiting[i]++;
+            }
+        }
+        for (int k = valid.size() - 1; k >= 0; k--) {
+            final int i = valid.get(k);
+            final Long parentId = transactions.get(i).getParentId();
+            final Integer parent = parentId == null ? null : last.get(parentId);
+            if (parent != null) {
+                nextSibling[i] = firstChild[parent];
+                firstChild[parent] = i;
+                waiting[i]++;
             }
-            typeIndex.get(existingTransaction.getTransactionType()).remove(existingTransaction.getId());
         }
 
-        // Add to the parent sum.
-        if (transaction.getParentId() != null) {
-            if (transaction.getParentId().equals(transaction.getId())) {
-                throw new InvalidTransactionException("Parent id is equal to transaction id.");
+        final List<Integer> order = new ArrayList<>(valid.size());
+        for (int i : valid) {
+            if (waiting[i] == 0) {
+                order.add(i);
+            }
+        }
+        for (int k = 0; k < order.size(); k++) {
+            final int i = order.get(k);
+            if (nextCopy[i] >= 0 && --waiting[nextCopy[i]] == 0) {
+                order.add(nextCopy[i]);
+            }
+            for (int child = firstChild[i]; child >= 0; child = nextSibling[child]) {
+                if (--waiting[child] == 0) {
+                    order.add(child);
+                }
             }
+        }
+        if (order.size() < valid.size()) {
+            for (int i : valid) {
+                if (waiting[i] > 0) {
+                    order.add(i);
+                }
+            }
+        }
+        return order;
+    }
 
-            final Transaction parentEntity = getEntity(transaction.getParentId());
-            if (parentEntity != null
-                    && parentEntity.getParentId() != null
-                    && parentEntity.getParentId().equals(transaction.getId())) {
+    /**
+     * Checks the constraints of a {@link Transaction} which do not depend on the stored data.
+     */
+    void validate(Transaction transaction) {
+        final List<String> violations = TransactionValidator.violations(transaction);
+        if (violations != null) {
+            throw new InvalidTransactionException(violations);
+        }
+        if (isRemote(transaction.getId())) {
+            throw new InvalidTransactionException("Transaction id " + transaction.getId() + " is kept by another node.");
+        }
+        if (transaction.getAmount().isInfinite()) {
+            throw new InvalidTransactionException("Amount is too big");
+        }
+        // NaN would spread to every sum above it.
+        if (transaction.getAmount().isNaN()) {
+            throw new InvalidTransactionException("Amount is not a number");
+        }
+        if (transaction.getParentId() != null && transaction.getParentId().equals(transaction.getId())) {
+            throw new InvalidTransactionException("Parent id is equal to transaction id.");
+        }
+    }
+
+    /**
+     * True if an existing transaction moves to another parent, changing the shape of the tree.
+     */
+    private static boolean isReparent(Transaction existingTransaction, Long parentId) {
+        return existingTransaction != null
+                && !Objects.equals(parentId, existingTransaction.getParentId());
+    }
+
+    /**
+     * Checks the insertion against the stored data, before anything changes. Either the stripes
+     * of the transaction and of its parent or the structure locks must be held exclusively.
+     */
+    private void checkLocked(Transaction transaction, Transaction existingTransaction) {
+        // A parent kept by another node is checked by the caller.
+        final Long parentId = transaction.getParentId();
+        if (parentId != null && !isRemote(parentId) && !storage.contains(parentId)) {
+            throw notFound(parentId);
+        }
+        if (parentId != null && isReparent(existingTransaction, parentId)) {
+            // A cycle through another node cannot be seen from here, nor ruled out while its
+            // transactions move: only ancestors all kept by this node are walked.
+            if (hasRemoteAncestor(parentId)) {
+                throw new InvalidTransactionException("Transaction id " + transaction.getId()
+                        + " cannot move under " + parentId + ", which descends from a transaction of another node.");
+            }
+            if (isAncestor(transaction.getId(), parentId)) {
                 throw new InvalidTransactionException("Cyclic reference. The parent id of this transaction points to on of its children");
             }
-            parentEntity.addToSumOfChildren(transaction.getAmount());
+        }
+    }
+
+    /**
+     * Applies the checked insertion, holding the same locks as {@link #checkLocked}.
+     */
+    private void applyLocked(Transaction transaction, Transaction existingTransaction) {
+        // Remove previous data.
+        if (existingTransaction != null && existingTransaction.getParentId() != null) {
+            addToSumOfChildren(existingTransaction.getParentId(), -existingTransaction.getAmount());
+        }
+
+        // Add to the parent sum.
+        if (transaction.getParentId() != null) {
+            addToSumOfChildren(transaction.getParentId(), transaction.getAmount());
         }
 
         // Insert into the storage.
-        storage.put(transaction.getId(), entity);
+        storage.put(transaction);
+
+        // Move between the children of the parents.
+        if (existingTransaction == null) {
+            if (transaction.getParentId() != null) {
+                addChild(transaction.getParentId(), transaction.getId());
+            }
+        } else if (!Objects.equals(existingTransaction.getParentId(), transaction.getParentId())) {
+            if (existingTransaction.getParentId() != null) {
+                removeChild(existingTransaction.getParentId(), existingTransaction.getId());
+            }
+            if (transaction.getParentId() != null) {
+                addChild(transaction.getParentId(), transaction.getId());
+            }
+        }
 
         // Add to the type index.
-        if (typeIndex.get(transaction.getTransactionType()) == null) {
-            typeIndex.put(transaction.getTransactionType(), new HashSet<>());
+        if (existingTransaction == null || existingTransaction.getTransactionType() != transaction.getTransactionType()) {
+            typeIndex.add(transaction.getTransactionType(), transaction.getId());
+        }
+        if (existingTransaction != null && existingTransaction.getTransactionType() != transaction.getTransactionType()) {
+            typeIndex.remove(existingTransaction.getTransactionType(), existingTransaction.getId());
         }
-        typeIndex.get(transaction.getTransactionType()).add(entity.getId());
 
-        return transaction;
+        // Publish the new versions once the data has changed.
+        transactionVersions.incrementAndGet(versionStripe(transaction.getId()));
+        if (existingTransaction != null && existingTransaction.getParentId() != null) {
+            childrenSumVersions.incrementAndGet(versionStripe(existingTransaction.getParentId()));
+        }
+        if (transaction.getParentId() != null) {
+            childrenSumVersions.incrementAndGet(versionStripe(transaction.getParentId()));
+        }
+        for (TransactionListener listener : listeners) {
+            listener.transactionChanged(transaction.getId());
+            if (existingTransaction != null && existingTransaction.getParentId() != null) {
+                listener.childrenSumChanged(existingTransaction.getParentId());
+            }
+            if (transaction.getParentId() != null) {
+                listener.childrenSumChanged(transaction.getParentId());
+            }
+        }
+    }
+
+    /**
+     * @return true if the transaction is kept by another node
+     */
+    private boolean isRemote(long id) {
+        final Partition current = partition;
+        return current != null && !current.owns(id);
+    }
+
+    /**
+     * Adds the amount to the sum of children of an existing transaction, on its node.
+     */
+    private void addToSumOfChildren(long id, double amount) {
+        if (isRemote(id)) {
+            partition.send(new Delta(id, amount, 0, null, null));
+        } else {
+            storage.addToSumOfChildren(id, amount);
+        }
+    }
+
+    private void addChild(long parentId, long childId) {
+        if (isRemote(parentId)) {
+            partition.send(new Delta(parentId, 0, 0, childId, null));
+        } else {
+            childrenIndex.add(parentId, childId);
+        }
+    }
+
+    private void removeChild(long parentId, long childId) {
+        if (isRemote(parentId)) {
+            partition.send(new Delta(parentId, 0, 0, null, childId));
+        } else {
+            childrenIndex.remove(parentId, childId);
+        }
+    }
+
+    /**
+     * Updates the subtree sum of every ancestor after an insertion, in O(depth).
+     * When moving, the existing transaction must have been read while its stripe was held
+     * to switch the parent, so that its subtree sum is the one which moves.
+     */
+    private void propagateSubtreeSum(Transaction transaction, Transaction existingTransaction, boolean exclusive) {
+        if (existingTransaction == null) {
+            addToAncestors(transaction.getParentId(), transaction.getAmount(), exclusive);
+        } else if (Objects.equals(existingTransaction.getParentId(), transaction.getParentId())) {
+            addToAncestors(transaction.getParentId(), transaction.getAmount() - existingTransaction.getAmount(), exclusive);
+        } else {
+            // The whole subtree moves along with the transaction.
+            final double subtreeSum = existingTransaction.getSubtreeSum();
+            addToAncestors(existingTransaction.getParentId(), -(existingTransaction.getAmount() + subtreeSum), exclusive);
+            addToAncestors(transaction.getParentId(), transaction.getAmount() + subtreeSum, exclusive);
+        }
+    }
+
+    /**
+     * Adds the amount to the subtree sum of the transaction and of all its ancestors.
+     * Unless exclusive, a transaction may move meanwhile: its parent is read together with
+     * the change of its sum, under its stripe, so that a move either takes the amount along
+     * to the new ancestors or leaves it to this walk up the old ones.
+     */
+    private void addToAncestors(Long transactionId, double amount, boolean exclusive) {
+        if (transactionId == null || amount == 0) {
+            return;
+        }
+        long current = transactionId;
+        while (current != TransactionStore.NO_ID) {
+            if (isRemote(current)) {
+                // its node goes on with the ancestors
+                partition.send(new Delta(current, 0, amount, null, null));
+                return;
+            }
+            if (exclusive) {
+                storage.addToSubtreeSum(current, amount);
+                current = storage.getParentId(current);
+            } else {
+                final Lock lock = locks[stripe(current)];
+                final long lockedAt = stripeTimer.lock(lock);
+                try {
+                    storage.addToSubtreeSum(current, amount);
+                    current = storage.getParentId(current);
+                } finally {
+                    stripeTimer.unlock(lock, lockedAt);
+                }
+            }
+        }
+    }
+
+    /**
+     * Walks up the parents starting from the given transaction looking for one of another node.
+     */
+    private boolean hasRemoteAncestor(long transactionId) {
+        if (partition == null) {
+            return false;
+        }
+        long current = transactionId;
+        while (current != TransactionStore.NO_ID) {
+            if (isRemote(current)) {
+                return true;
+            }
+            current = storage.getParentId(current);
+        }
+        return false;
+    }
+
+    /**
+     * Walks up the parents starting from the given transaction looking for the id.
+     */
+    private boolean isAncestor(long id, long transactionId) {
+        long current = transactionId;
+        while (current != TransactionStore.NO_ID) {
+            if (current == id) {
+                return true;
+            }
+            current = storage.getParentId(current);
+        }
+        return false;
+    }
+
+    /**
+     * Locks the stripes of the given ids in ascending order, null ids are ignored.
+     * @return the locks held, in acquisition order
+     */
+    private Lock[] lockStripes(Long... ids) {
+        int[] stripes = new int[ids.length];
+        int count = 0;
+        for (Long id : ids) {
+            if (id != null) {
+                stripes[count++] = stripe(id);
+            }
+        }
+        Arrays.sort(stripes, 0, count);
+
+        Lock[] held = new Lock[count];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (i == 0 || stripes[i] != stripes[i - 1]) {
+                held[size] = locks[stripes[i]];
+                final long start = System.nanoTime();
+                held[size++].lock();
+                stripeTimer.getWait().recordSince(start);
+            }
+        }
+        return Arrays.copyOf(held, size);
+    }
+
+    /**
+     * The stripes of a shard are the ones equal to it modulo the number of shards.
+     */
+    private static int stripe(long id) {
+        return ShardedTransactionStore.shardOf(id, LOCK_STRIPES);
+    }
+
+    private int shard(long id) {
+        return ShardedTransactionStore.shardOf(id, structureLocks.length);
+    }
+
+    /**
+     * Takes the structure locks of all the shards exclusively, in shard order.
+     * @return the {@link System#nanoTime()} at which the locks were acquired
+     */
+    private long lockStructure() {
+        final long start = System.nanoTime();
+        for (ReadWriteLock lock : structureLocks) {
+            lock.writeLock().lock();
+        }
+        final long lockedAt = System.nanoTime();
+        exclusiveTimer.getWait().record(lockedAt - start);
+        return lockedAt;
+    }
+
+    private void unlockStructure(long lockedAt) {
+        for (int i = structureLocks.length - 1; i >= 0; i--) {
+            structureLocks[i].writeLock().unlock();
+        }
+        exclusiveTimer.getHold().recordSince(lockedAt);
+    }
+
+    private static int versionStripe(long id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (VERSION_STRIPES - 1);
+    }
+
+    /**
+     * Returns a number which changes whenever the {@link Transaction} does. Read it before the
+     * transaction: the transaction is then at least as recent as the version.
+     * @param id
+     * @return
+     */
+    public long getVersion(long id) {
+        return transactionVersions.get(versionStripe(id));
+    }
+
+    /**
+     * Returns a number which changes whenever the sum of the children of a {@link Transaction}
+     * does, that is whenever one of its children changes. Read it before the sum.
+     * @param transactionId
+     * @return
+     */
+    public long getChildrenSumVersion(long transactionId) {
+        return childrenSumVersions.get(versionStripe(transactionId));
+    }
+
+    /**
+     * Returns a number which changes whenever a {@link Transaction} of any of the types is added
+     * or removed. Read it before the ids.
+     * @param transactionTypes
+     * @return
+     */
+    public long getTypeVersion(Collection<TransactionType> transactionTypes) {
+        Objects.requireNonNull(transactionTypes);
+        return typeIndex.version(transactionTypes);
     }
 
     /**
@@ -93,29 +1112,185 @@ public class TransactionService {
      * @param id
      * @return
      */
-    private Transaction getEntity(Long id) {
-        Objects.requireNonNull(id);
-        return Optional.ofNullable(storage.get(id))
-                .orElseThrow(() ->
-                        new TransactionNotFoundException("Transaction id " + String.valueOf(id) + " not found."));
+    private Transaction getEntity(long id) {
+        final Transaction transaction = storage.get(id);
+        if (transaction == null) {
+            throw notFound(id);
+        }
+        return transaction;
+    }
+
+    private static TransactionNotFoundException notFound(long id) {
+        return new TransactionNotFoundException(TransactionNotFoundException.message(id));
     }
 
     /**
      * Fetches a {@link Transaction} of the given id.
      * @param id
      */
-    public synchronized Transaction get(Long id) {
+    public Transaction get(long id) {
         return getEntity(id);
     }
 
+    /**
+     * @param id
+     * @return true if the {@link Transaction} exists, it is never removed afterwards
+     */
+    public boolean exists(long id) {
+        return storage.contains(id);
+    }
+
+    /**
+     * Fetches a {@link Transaction} of the given id, without failing if missing.
+     * @param id
+     * @return the transaction, null if missing
+     */
+    public Transaction find(long id) {
+        return storage.get(id);
+    }
+
     /**
      * Sums the amount of {@link Transaction} with same parent.
      * @param transactionId
      * @return
      */
-    public synchronized Double getChildrenSum(Long transactionId) {
-        Objects.requireNonNull(transactionId);
-        return get(transactionId).getSumOfChildren();
+    public Double getChildrenSum(Long transactionId) {
+        if (!exists(transactionId)) {
+            throw notFound(transactionId);
+        }
+        return childrenSum(transactionId);
+    }
+
+    /**
+     * Sums the amount of {@link Transaction} with same parent, reading the sum alone.
+     * @param transactionId
+     * @return the sum, undefined if the transaction is missing: check {@link #exists(long)} first
+     */
+    public double childrenSum(long transactionId) {
+        return storage.getSumOfChildren(transactionId);
+    }
+
+    /**
+     * Sums the amount of all the descendants of a {@link Transaction}.
+     * @param transactionId
+     * @return
+     */
+    public Double getSubtreeSum(Long transactionId) {
+        if (!exists(transactionId)) {
+            throw notFound(transactionId);
+        }
+        return subtreeSum(transactionId);
+    }
+
+    /**
+     * Sums the amount of all the descendants of a {@link Transaction}, reading the sum alone.
+     * @param transactionId
+     * @return the sum, undefined if the transaction is missing: check {@link #exists(long)} first
+     */
+    public double subtreeSum(long transactionId) {
+        return storage.getSubtreeSum(transactionId);
+    }
+
+    /**
+     * Lists the children of a {@link Transaction} by ascending id.
+     * @param transactionId
+     * @param after only children with a greater id are listed, may be null
+     * @param limit maximum number of children listed
+     * @return
+     */
+    public IdPage getChildren(Long transactionId, Long after, int limit) {
+        getEntity(transactionId);
+        awaitChildrenIndexed();
+        final long[] children = childrenIndex.nextAfter(transactionId, after == null ? TransactionStore.NO_ID : after, limit);
+        final List<Long> ids = new ArrayList<>(children.length);
+        for (long child : children) {
+            ids.add(child);
+        }
+        return page(ids, limit);
+    }
+
+    /**
+     * Lists the descendants of a {@link Transaction} in depth-first order, children by ascending id.
+     * Resuming after a descendant only walks back its ancestors, so a page costs
+     * about the number of children of the transactions it passes through.
+     *
+     * @param transactionId
+     * @param after the last descendant of the previous page, may be null
+     * @param limit maximum number of descendants listed
+     * @return
+     */
+    public IdPage getSubtree(Long transactionId, Long after, int limit) {
+        getEntity(transactionId);
+        awaitChildrenIndexed();
+        final Deque<SubtreeFrame> stack = new ArrayDeque<>();
+        if (after == null || after.equals(transactionId)) {
+            stack.push(new SubtreeFrame(transactionId, TransactionStore.NO_ID));
+        } else {
+            getEntity(after);
+            // path from the cursor up to the transaction
+            final List<Long> path = new ArrayList<>();
+            long current = after;
+            while (current != transactionId) {
+                if (current == TransactionStore.NO_ID) {
+                    throw new InvalidTransactionException("Transaction id " + after + " does not descend from " + transactionId + ".");
+                }
+                path.add(current);
+                current = storage.getParentId(current);
+            }
+            path.add(transactionId);
+            for (int i = path.size() - 1; i > 0; i--) {
+                // the children of path[i] up to path[i - 1] have been listed already
+                stack.push(new SubtreeFrame(path.get(i), path.get(i - 1)));
+            }
+            stack.push(new SubtreeFrame(after, TransactionStore.NO_ID));
+        }
+
+        final List<Long> ids = new ArrayList<>(Math.min(limit, 1024));
+        while (!stack.isEmpty() && ids.size() < limit) {
+            final SubtreeFrame frame = stack.peek();
+            if (frame.pending == null || frame.position == frame.pending.length) {
+                if (frame.pending != null && frame.pending.length < frame.requested) {
+                    // no more children
+                    stack.pop();
+                    continue;
+                }
+                frame.requested = limit - ids.size();
+                frame.pending = childrenIndex.nextAfter(frame.id, frame.cursor, frame.requested);
+                frame.position = 0;
+                if (frame.pending.length == 0) {
+                    stack.pop();
+                    continue;
+                }
+            }
+            final long child = frame.pending[frame.position++];
+            frame.cursor = child;
+            ids.add(child);
+            stack.push(new SubtreeFrame(child, TransactionStore.NO_ID));
+        }
+        return page(ids, limit);
+    }
+
+    private static IdPage page(List<Long> ids, int limit) {
+        return new IdPage(ids, ids.size() == limit ? ids.get(ids.size() - 1) : null);
+    }
+
+    /**
+     * A transaction being visited while listing a subtree.
+     */
+    private static final class SubtreeFrame {
+        final long id;
+        /**
+         * Last child listed.
+         */
+        long cursor;
+        long[] pending;
+        int position;
+        int requested;
+
+        SubtreeFrame(long id, long cursor) {
+            this.id = id;
+            this.cursor = cursor;
+        }
     }
 
     /**
@@ -124,8 +1299,55 @@ public class TransactionService {
      * @param transactionType
      * @return
      */
-    public synchronized Set<Long> getByType(TransactionType transactionType) {
+    public IdSet getByType(TransactionType transactionType) {
         Objects.requireNonNull(transactionType);
         return typeIndex.get(transactionType);
     }
+
+    /**
+     * Get list of {@link Transaction} of any of the given types.
+     *
+     * @param transactionTypes
+     * @return
+     */
+    public IdSet getByTypes(Collection<TransactionType> transactionTypes) {
+        Objects.requireNonNull(transactionTypes);
+        return typeIndex.union(transactionTypes);
+    }
+
+    /**
+     * Lists the ids of {@link Transaction} of any of the given types by ascending id.
+     * Each type is read in place, only the page is copied.
+     *
+     * @param transactionTypes
+     * @param after only ids greater than this are listed, may be null
+     * @param limit maximum number of ids listed
+     * @return
+     */
+    public IdPage getByTypes(Collection<TransactionType> transactionTypes, Long after, int limit) {
+        Objects.requireNonNull(transactionTypes);
+        final long from = after == null ? TransactionStore.NO_ID : after;
+        long[] merged = new long[0];
+        for (TransactionType transactionType : EnumSet.copyOf(transactionTypes)) {
+            merged = mergeSmallest(merged, typeIndex.page(transactionType, from, limit), limit);
+        }
+        final List<Long> ids = new ArrayList<>(merged.length);
+        for (long id : merged) {
+            ids.add(id);
+        }
+        return page(ids, limit);
+    }
+
+    /**
+     * Merges two ascending arrays of distinct ids, keeping at most limit of the smallest.
+     */
+    private static long[] mergeSmallest(long[] first, long[] second, int limit) {
+        final long[] merged = new long[Math.min(limit, first.length + second.length)];
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < merged.length; k++) {
+            merged[k] = j == second.length || (i < first.length && first[i] < second[j]) ? first[i++] : second[j++];
+        }
+        return merged;
+    }
 }
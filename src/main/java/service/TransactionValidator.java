@@ -0,0 +1,51 @@
+package service;
+
+import model.Transaction;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the constraints declared on {@link Transaction} without reflection, with the
+ * messages Hibernate Validator gives for them. A valid transaction allocates nothing.
+ * Kept in line with the annotations of {@link Transaction}, see TransactionValidatorTest.
+ *
+ * Created by simone on 08/03/16.
+ */
+public final class TransactionValidator {
+
+    private static final String NOT_NULL = " may not be null";
+    private static final String NOT_NEGATIVE = " must be greater than or equal to 0";
+
+    private TransactionValidator() {
+    }
+
+    /**
+     * @param transaction
+     * @return the violations as "property message", null if there are none
+     */
+    public static List<String> violations(Transaction transaction) {
+        final Long id = transaction.getId();
+        final Long parentId = transaction.getParentId();
+        if (id != null && id >= 0 && transaction.getAmount() != null && (parentId == null || parentId >= 0)
+                && transaction.getTransactionType() != null) {
+            return null;
+        }
+        final List<String> violations = new ArrayList<>(2);
+        if (id == null) {
+            violations.add("id" + NOT_NULL);
+        } else if (id < 0) {
+            violations.add("id" + NOT_NEGATIVE);
+        }
+        if (transaction.getAmount() == null) {
+            violations.add("amount" + NOT_NULL);
+        }
+        if (parentId != null && parentId < 0) {
+            violations.add("parentId" + NOT_NEGATIVE);
+        }
+        if (transaction.getTransactionType() == null) {
+            violations.add("transactionType" + NOT_NULL);
+        }
+        return violations;
+    }
+}
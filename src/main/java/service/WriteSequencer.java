@@ -0,0 +1,244 @@
+package service;
+
+import metrics.MetricsWriter;
+import model.Transaction;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands insertions to a single writer thread through a bounded ring buffer, so that
+ * concurrent writers queue up instead of contending for the locks of {@link TransactionService}.
+ *
+ * Writers claim a slot by sequence number, fill it and publish it; they wait when the
+ * buffer is full. The writer thread applies every published slot it finds at once, in
+ * sequence order, holding the structure locks exclusively a single time, and waits for the
+ * log once for all of them if persistence is enabled. Each writer is released once its
+ * insertion is applied, and durable if so configured, or with its own failure. Reads go on
+ * meanwhile. An unexpected failure stops the writer thread: the insertions of its batch,
+ * the pending and the later ones fail.
+ *
+ * Created by simone on 05/03/16.
+ */
+public class WriteSequencer {
+
+    /**
+     * Times the writer thread looks for new slots before parking.
+     */
+    private static final int SPINS = 100;
+
+    private final TransactionService transactionService;
+    private final Slot[] ring;
+    private final int mask;
+    /**
+     * Last sequence claimed by a writer.
+     */
+    private final AtomicLong claimed = new AtomicLong(-1);
+    /**
+     * Last sequence applied, its slot and the ones before can be claimed again.
+     */
+    private volatile long applied = -1;
+    private volatile boolean parked;
+    private volatile boolean running = true;
+    /**
+     * Why the writer thread stopped, null while it runs.
+     */
+    private volatile Throwable stopped;
+    private final Thread writer;
+
+    private final Transaction[] batch;
+    private final Throwable[] failures;
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+
+    private static final class Slot {
+        /**
+         * Sequence of the command in the slot, written last by the writer which claimed it.
+         */
+        volatile long published = -1;
+        Transaction transaction;
+        CompletableFuture<Transaction> done;
+    }
+
+    /**
+     * Starts the writer thread.
+     * @param transactionService
+     * @param capacity number of slots, a power of two
+     */
+    public WriteSequencer(TransactionService transactionService, int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity must be a power of two: " + capacity);
+        }
+        this.transactionService = transactionService;
+        this.ring = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            ring[i] = new Slot();
+        }
+        this.mask = capacity - 1;
+        this.batch = new Transaction[capacity];
+        this.failures = new Throwable[capacity];
+        this.writer = new Thread(this::run, "write-sequencer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Inserts a {@link Transaction} through the writer thread, see {@link TransactionService#insert(Transaction)}.
+     * @param transaction
+     * @return the transaction, once applied
+     */
+    public Transaction insert(Transaction transaction) {
+        // Checked here, in parallel, the writer only checks against the stored data.
+        transactionService.validate(transaction);
+        if (!running) {
+            throw new IllegalStateException("The sequencer is closed.");
+        }
+        checkWriter();
+
+        final long sequence = claimed.incrementAndGet();
+        while (sequence - ring.length > applied) {
+            checkWriter();
+            LockSupport.parkNanos(1000);
+        }
+        final Slot slot = ring[(int) sequence & mask];
+        final CompletableFuture<Transaction> done = new CompletableFuture<>();
+        slot.transaction = transaction;
+        slot.done = done;
+        slot.published = sequence;
+        if (parked) {
+            LockSupport.unpark(writer);
+        }
+        // Published after the writer failed the pending slots.
+        if (stopped != null) {
+            done.completeExceptionally(writerStopped());
+        }
+
+        try {
+            return done.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private void checkWriter() {
+        if (stopped != null) {
+            throw writerStopped();
+        }
+    }
+
+    private IllegalStateException writerStopped() {
+        return new IllegalStateException("The sequencer writer stopped.", stopped);
+    }
+
+    /**
+     * Applies the insertions already claimed and stops the writer thread. Insertions
+     * must not be started meanwhile.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        boolean interrupted = false;
+        while (writer.isAlive()) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Writes the number of insertions and of batches applied, and of the pending ones.
+     */
+    public void writeMetrics(MetricsWriter metrics) {
+        metrics.family("transactionservice_sequencer_writes_total", "counter", "Insertions applied by the sequencer.")
+                .sample("transactionservice_sequencer_writes_total", null, null, writes.sum());
+        metrics.family("transactionservice_sequencer_batches_total", "counter", "Batches of insertions applied by the sequencer.")
+                .sample("transactionservice_sequencer_batches_total", null, null, batches.sum());
+        metrics.family("transactionservice_sequencer_pending", "gauge", "Insertions waiting for the sequencer.")
+                .sample("transactionservice_sequencer_pending", null, null, Math.max(0, claimed.get() - applied));
+    }
+
+    private void run() {
+        try {
+            runWriter();
+        } catch (Throwable e) {
+            stopped = e;
+            // Writers publishing from now on see the flag and fail by themselves.
+            for (Slot slot : ring) {
+                if (slot.published > applied) {
+                    final CompletableFuture<Transaction> done = slot.done;
+                    if (done != null) {
+                        done.completeExceptionally(writerStopped());
+                    }
+                }
+            }
+        }
+    }
+
+    private void runWriter() {
+        int idle = 0;
+        while (true) {
+            final long first = applied + 1;
+            int count = 0;
+            while (count < ring.length && ring[(int) (first + count) & mask].published == first + count) {
+                count++;
+            }
+            if (count > 0) {
+                apply(first, count);
+                idle = 0;
+            } else if (!running && claimed.get() < first) {
+                return;
+            } else if (++idle < SPINS) {
+                Thread.yield();
+            } else {
+                parked = true;
+                // A writer publishing meanwhile sees the flag and unparks.
+                if (ring[(int) first & mask].published != first && running) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+    }
+
+    /**
+     * Applies the published slots from the given sequence, then releases their writers
+     * and the slots.
+     */
+    private void apply(long first, int count) {
+        for (int i = 0; i < count; i++) {
+            batch[i] = ring[(int) (first + i) & mask].transaction;
+        }
+        transactionService.applyInOrder(batch, count, failures);
+        for (int i = 0; i < count; i++) {
+            final Slot slot = ring[(int) (first + i) & mask];
+            final CompletableFuture<Transaction> done = slot.done;
+            final Throwable error = failures[i];
+            slot.transaction = null;
+            slot.done = null;
+            failures[i] = null;
+            if (error == null) {
+                done.complete(batch[i]);
+            } else {
+                done.completeExceptionally(error);
+            }
+            batch[i] = null;
+        }
+        writes.add(count);
+        batches.increment();
+        applied = first + count - 1;
+    }
+}
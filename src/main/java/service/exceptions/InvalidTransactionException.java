@@ -3,8 +3,11 @@ package service.exceptions;
 import model.Transaction;
 
 import javax.validation.ConstraintViolation;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Thrown when trying to insert a transaction which is invalid.
@@ -14,11 +17,18 @@ import java.util.Set;
 public class InvalidTransactionException extends RuntimeException {
 
     private Set<ConstraintViolation<Transaction>> errors = new HashSet<>();
+    /**
+     * Violations found without Hibernate Validator, as "property message".
+     */
+    private List<String> violations = Collections.emptyList();
     private String message;
 
     public InvalidTransactionException(Set<ConstraintViolation<Transaction>> errors) {
         this.errors = errors;
     }
+    public InvalidTransactionException(List<String> violations) {
+        this.violations = violations;
+    }
     public InvalidTransactionException(String message) {
         this.message = message;
     }
@@ -42,4 +52,19 @@ public class InvalidTransactionException extends RuntimeException {
         this.errors = errors;
     }
 
+    /**
+     * @return the violations as "property message" followed by the message, if any
+     */
+    public List<String> getMessages() {
+        List<String> messages = errors
+                .stream()
+                .map(c -> c.getPropertyPath() + " " + c.getMessage())
+                .collect(Collectors.toList());
+        messages.addAll(violations);
+        if (message != null) {
+            messages.add(message);
+        }
+        return messages;
+    }
+
 }
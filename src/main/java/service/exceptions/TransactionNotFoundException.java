@@ -3,15 +3,27 @@ package service.exceptions;
 /**
  * Thrown when a transaction Id cannot be found.
  *
+ * A missing id is an answer rather than a failure, so the exception does not capture
+ * the stack trace, which costs far more than the lookup.
+ *
  * Created by simone on 13/02/16.
  */
 public class TransactionNotFoundException extends RuntimeException {
     private String message;
 
     public TransactionNotFoundException(String message) {
+        super(message, null, false, false);
         this.message = message;
     }
 
+    /**
+     * @param id
+     * @return the message telling that the transaction id cannot be found
+     */
+    public static String message(long id) {
+        return "Transaction id " + id + " not found.";
+    }
+
     @Override
     public String getMessage() {
         return message;
@@ -0,0 +1,60 @@
+package service.index;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps a parent id to the ids of its children.
+ *
+ * The children of a parent are changed only while holding the write lock of
+ * that parent, so there is a single writer per set.
+ *
+ * Created by simone on 25/02/16.
+ */
+public class ChildrenIndex {
+
+    private static final long[] NONE = new long[0];
+
+    private final Map<Long, LongHashSet> children = new ConcurrentHashMap<>();
+
+    public void add(long parentId, long childId) {
+        children.computeIfAbsent(parentId, id -> new LongHashSet()).add(childId);
+    }
+
+    public void remove(long parentId, long childId) {
+        final LongHashSet set = children.get(parentId);
+        if (set != null) {
+            set.remove(childId);
+            if (set.isEmpty()) {
+                children.remove(parentId, set);
+            }
+        }
+    }
+
+    /**
+     * Removes every parent, to load other data. Nothing else must use the index meanwhile.
+     */
+    public void clear() {
+        children.clear();
+    }
+
+    /**
+     * @param parentId
+     * @return the number of children of the parent
+     */
+    public int count(long parentId) {
+        final LongHashSet set = children.get(parentId);
+        return set == null ? 0 : set.size();
+    }
+
+    /**
+     * @param parentId
+     * @param after exclusive lower bound of the children ids
+     * @param limit
+     * @return the smallest children ids greater than after, in ascending order
+     */
+    public long[] nextAfter(long parentId, long after, int limit) {
+        final LongHashSet set = children.get(parentId);
+        return set == null ? NONE : set.nextAfter(after, limit);
+    }
+}
@@ -0,0 +1,212 @@
+package service.index;
+
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.PeekableLongIterator;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Immutable set of transaction ids backed by compressed bitmaps, iterated in
+ * ascending order. Use {@link #longIterator()} to avoid boxing.
+ *
+ * The ids can be split in disjoint bitmaps, such as the shards of a type or the
+ * types of a union, which are merged while iterating instead of being copied.
+ * Each bitmap can come with ids of its own left out, the recent removals of its type.
+ *
+ * The version changes whenever the ids it was taken from do, so two sets of the
+ * same types with the same version hold the same ids.
+ *
+ * Created by simone on 26/02/16.
+ */
+public class IdSet extends AbstractSet<Long> {
+
+    private final Roaring64Bitmap[] parts;
+    /**
+     * Ids of the part with the same index which are not in the set, null if none.
+     */
+    private final Roaring64Bitmap[] removed;
+    private final long version;
+
+    /**
+     * @param parts disjoint, not changed afterwards
+     * @param removed ids of the part with the same index left out, null if none, not changed afterwards
+     * @param version
+     */
+    IdSet(Roaring64Bitmap[] parts, Roaring64Bitmap[] removed, long version) {
+        this.parts = parts;
+        this.removed = removed;
+        this.version = version;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    Roaring64Bitmap[] parts() {
+        return parts;
+    }
+
+    Roaring64Bitmap[] removed() {
+        return removed;
+    }
+
+    @Override
+    public int size() {
+        long size = 0;
+        for (int i = 0; i < parts.length; i++) {
+            size += parts[i].getLongCardinality() - (removed[i] == null ? 0 : removed[i].getLongCardinality());
+        }
+        return (int) Math.min(Integer.MAX_VALUE, size);
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].getLongCardinality() > (removed[i] == null ? 0 : removed[i].getLongCardinality())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof Long)) {
+            return false;
+        }
+        final long id = (Long) o;
+        for (int i = 0; i < parts.length; i++) {
+            if (parts[i].contains(id)) {
+                return removed[i] == null || !removed[i].contains(id);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Iterator<Long> iterator() {
+        final LongIterator iterator = longIterator();
+        return new Iterator<Long>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public Long next() {
+                return iterator.next();
+            }
+        };
+    }
+
+    public LongIterator longIterator() {
+        if (parts.length == 1) {
+            return iterator(0);
+        }
+        final PeekableLongIterator[] iterators = new PeekableLongIterator[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            iterators[i] = iterator(i);
+        }
+        return new MergingIterator(iterators);
+    }
+
+    private PeekableLongIterator iterator(int part) {
+        final PeekableLongIterator iterator = parts[part].getLongIterator();
+        return removed[part] == null ? iterator : new ExcludingIterator(iterator, removed[part]);
+    }
+
+    /**
+     * Skips the ids of a bitmap which are left out.
+     */
+    static final class ExcludingIterator implements PeekableLongIterator {
+        private final PeekableLongIterator iterator;
+        private final Roaring64Bitmap excluded;
+
+        ExcludingIterator(PeekableLongIterator iterator, Roaring64Bitmap excluded) {
+            this.iterator = iterator;
+            this.excluded = excluded;
+        }
+
+        private void skip() {
+            while (iterator.hasNext() && excluded.contains(iterator.peekNext())) {
+                iterator.next();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            skip();
+            return iterator.hasNext();
+        }
+
+        @Override
+        public long next() {
+            skip();
+            return iterator.next();
+        }
+
+        @Override
+        public long peekNext() {
+            skip();
+            return iterator.peekNext();
+        }
+
+        @Override
+        public void advanceIfNeeded(long minval) {
+            iterator.advanceIfNeeded(minval);
+        }
+
+        @Override
+        public PeekableLongIterator clone() {
+            return new ExcludingIterator(iterator.clone(), excluded);
+        }
+    }
+
+    /**
+     * Iterates disjoint bitmaps in ascending order, taking the smallest next id of all of them
+     * at each step. There are few of them, so a linear scan beats a heap.
+     */
+    private static final class MergingIterator implements LongIterator {
+        private final PeekableLongIterator[] iterators;
+
+        MergingIterator(PeekableLongIterator[] iterators) {
+            this.iterators = iterators;
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (PeekableLongIterator iterator : iterators) {
+                if (iterator.hasNext()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public long next() {
+            PeekableLongIterator smallest = null;
+            for (PeekableLongIterator iterator : iterators) {
+                if (iterator.hasNext() && (smallest == null || iterator.peekNext() < smallest.peekNext())) {
+                    smallest = iterator;
+                }
+            }
+            if (smallest == null) {
+                throw new NoSuchElementException();
+            }
+            return smallest.next();
+        }
+
+        @Override
+        public LongIterator clone() {
+            final PeekableLongIterator[] clones = new PeekableLongIterator[iterators.length];
+            for (int i = 0; i < clones.length; i++) {
+                clones[i] = iterators[i].clone();
+            }
+            return new MergingIterator(clones);
+        }
+    }
+}
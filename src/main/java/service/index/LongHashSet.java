@@ -0,0 +1,201 @@
+package service.index;
+
+import java.util.Arrays;
+
+/**
+ * Set of non-negative longs in a single open-addressing array, about 11 bytes
+ * per element instead of the ~50 of a {@code HashSet<Long>}. Removal uses
+ * backward shifting, so there are no tombstones and both operations stay O(1).
+ *
+ * All methods synchronize on the set: a set is written by one thread at a time
+ * and read briefly, so the monitor is practically never contended.
+ *
+ * Created by simone on 25/02/16.
+ */
+public class LongHashSet {
+
+    private static final long EMPTY = -1L;
+    private static final int MIN_CAPACITY = 4;
+
+    private long[] table;
+    private int size;
+
+    public LongHashSet() {
+        table = newTable(MIN_CAPACITY);
+    }
+
+    /**
+     * @param value a non-negative value
+     * @return true if the value was not in the set
+     */
+    public synchronized boolean add(long value) {
+        if ((size + 1) * 4L > table.length * 3L) {
+            rehash(table.length << 1);
+        }
+        final int mask = table.length - 1;
+        int slot = slot(value, mask);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == value) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = value;
+        size++;
+        return true;
+    }
+
+    /**
+     * @param value
+     * @return true if the value was in the set
+     */
+    public synchronized boolean remove(long value) {
+        final int mask = table.length - 1;
+        int slot = slot(value, mask);
+        while (table[slot] != value) {
+            if (table[slot] == EMPTY) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        // Shift back the following entries which would not be found anymore.
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (table[next] != EMPTY) {
+            final int home = slot(table[next], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = EMPTY;
+        size--;
+        if (size * 8L < table.length && table.length > MIN_CAPACITY) {
+            rehash(table.length >> 1);
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(long value) {
+        final int mask = table.length - 1;
+        int slot = slot(value, mask);
+        while (table[slot] != EMPTY) {
+            if (table[slot] == value) {
+                return true;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return false;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the values, in no particular order
+     */
+    public synchronized long[] toArray() {
+        final long[] values = new long[size];
+        int count = 0;
+        for (long value : table) {
+            if (value != EMPTY) {
+                values[count++] = value;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Selects the smallest values greater than the given one in a single pass,
+     * in O(n log limit).
+     * @param after exclusive lower bound
+     * @param limit maximum number of values returned
+     * @return the values in ascending order
+     */
+    public synchronized long[] nextAfter(long after, int limit) {
+        // max-heap of the smallest values seen so far
+        final long[] heap = new long[Math.min(limit, size)];
+        int count = 0;
+        for (long value : table) {
+            if (value == EMPTY || value <= after) {
+                continue;
+            }
+            if (count < heap.length) {
+                heap[count] = value;
+                siftUp(heap, count++);
+            } else if (count > 0 && value < heap[0]) {
+                heap[0] = value;
+                siftDown(heap, count);
+            }
+        }
+        final long[] values = Arrays.copyOf(heap, count);
+        Arrays.sort(values);
+        return values;
+    }
+
+    private void rehash(int capacity) {
+        final long[] old = table;
+        table = newTable(capacity);
+        final int mask = capacity - 1;
+        for (long value : old) {
+            if (value != EMPTY) {
+                int slot = slot(value, mask);
+                while (table[slot] != EMPTY) {
+                    slot = (slot + 1) & mask;
+                }
+                table[slot] = value;
+            }
+        }
+    }
+
+    private static long[] newTable(int capacity) {
+        final long[] table = new long[capacity];
+        Arrays.fill(table, EMPTY);
+        return table;
+    }
+
+    private static int slot(long value, int mask) {
+        final long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private static void siftUp(long[] heap, int index) {
+        while (index > 0) {
+            final int parent = (index - 1) >> 1;
+            if (heap[parent] >= heap[index]) {
+                return;
+            }
+            swap(heap, parent, index);
+            index = parent;
+        }
+    }
+
+    private static void siftDown(long[] heap, int count) {
+        int index = 0;
+        while (true) {
+            final int left = 2 * index + 1;
+            if (left >= count) {
+                return;
+            }
+            final int right = left + 1;
+            final int largest = right < count && heap[right] > heap[left] ? right : left;
+            if (heap[index] >= heap[largest]) {
+                return;
+            }
+            swap(heap, index, largest);
+            index = largest;
+        }
+    }
+
+    private static void swap(long[] heap, int i, int j) {
+        final long value = heap[i];
+        heap[i] = heap[j];
+        heap[j] = value;
+    }
+}
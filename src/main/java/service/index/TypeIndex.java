@@ -0,0 +1,463 @@
+package service.index;
+
+import model.TransactionType;
+import service.store.ShardedTransactionStore;
+import org.roaringbitmap.longlong.LongIterator;
+import org.roaringbitmap.longlong.PeekableLongIterator;
+import org.roaringbitmap.longlong.Roaring64Bitmap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Maps each {@link TransactionType} to the ids of its transactions, kept as
+ * roaring bitmaps: runs and dense ranges of ids cost a few bits each instead of
+ * the ~50 bytes of a boxed entry in a {@code HashSet<Long>}.
+ *
+ * Each type has its own lock and a version, bumped by every change. Readers get
+ * immutable snapshots and never copy: a snapshot freezes the bitmaps of its version,
+ * shared by all the readers of the same version. Writes with no snapshot taken change
+ * the bitmap in place. Once it is frozen, they go to a small delta of the ids added and
+ * removed since instead, which a snapshot holds along with the bitmap: a write after a
+ * read copies the delta, bounded by {@link #MAX_DELTA} ids, never the whole bitmap. The
+ * delta is folded into a new bitmap once full, a single copy every {@link #MAX_DELTA}
+ * changes. Pages are read in place under the read lock.
+ *
+ * The ids of each type can be split in shards by id hash, see
+ * {@link ShardedTransactionStore#shardOf(long, int)}, each with its own lock and
+ * version, so that writers of different shards do not contend. The snapshot of a
+ * type holds the bitmaps of its shards, merged while iterating: the version of a
+ * type is the sum of the versions of its shards.
+ *
+ * Created by simone on 26/02/16.
+ */
+public class TypeIndex {
+
+    /**
+     * Changes kept apart from a frozen bitmap before copying it.
+     */
+    static final int MAX_DELTA = 4096;
+
+    private final Map<TransactionType, Type> types = new EnumMap<>(TransactionType.class);
+    private final int shards;
+
+    public TypeIndex() {
+        this(1);
+    }
+
+    /**
+     * @param shards number of shards of the ids of each type, a power of two
+     */
+    public TypeIndex(int shards) {
+        if (shards < 1 || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("The number of shards must be a power of two: " + shards);
+        }
+        this.shards = shards;
+        for (TransactionType transactionType : TransactionType.values()) {
+            types.put(transactionType, new Type(shards));
+        }
+    }
+
+    /**
+     * Empty index replacing another one, with as many shards. Its versions follow the ones
+     * of the replaced index, so that no version of the replaced ids is reused.
+     * @param replaced not changed meanwhile
+     */
+    public TypeIndex(TypeIndex replaced) {
+        this(replaced.shards);
+        for (TransactionType transactionType : TransactionType.values()) {
+            final Entry[] entries = types.get(transactionType).shards;
+            final Entry[] replacedEntries = replaced.types.get(transactionType).shards;
+            for (int shard = 0; shard < entries.length; shard++) {
+                entries[shard].version = replacedEntries[shard].version + 1;
+            }
+        }
+    }
+
+    public void add(TransactionType transactionType, long id) {
+        final Entry entry = entry(transactionType, id);
+        entry.lock.writeLock().lock();
+        try {
+            entry.add(id);
+            entry.version++;
+        } finally {
+            entry.lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(TransactionType transactionType, long id) {
+        final Entry entry = entry(transactionType, id);
+        entry.lock.writeLock().lock();
+        try {
+            entry.remove(id);
+            entry.version++;
+        } finally {
+            entry.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param transactionType
+     * @return a snapshot of the ids of the type
+     */
+    public IdSet get(TransactionType transactionType) {
+        return snapshot(types.get(transactionType));
+    }
+
+    /**
+     * @param transactionTypes
+     * @return a snapshot of the ids of any of the types
+     */
+    public IdSet union(Collection<TransactionType> transactionTypes) {
+        final List<Roaring64Bitmap> parts = new ArrayList<>(transactionTypes.size() * shards);
+        final List<Roaring64Bitmap> removed = new ArrayList<>(transactionTypes.size() * shards);
+        long version = 0;
+        for (TransactionType transactionType : transactionTypes) {
+            final IdSet snapshot = snapshot(types.get(transactionType));
+            Collections.addAll(parts, snapshot.parts());
+            Collections.addAll(removed, snapshot.removed());
+            version += snapshot.getVersion();
+        }
+        return new IdSet(parts.toArray(new Roaring64Bitmap[parts.size()]),
+                removed.toArray(new Roaring64Bitmap[removed.size()]), version);
+    }
+
+    /**
+     * @param transactionTypes
+     * @return a number which changes whenever the ids of any of the types do
+     */
+    public long version(Collection<TransactionType> transactionTypes) {
+        long version = 0;
+        for (TransactionType transactionType : transactionTypes) {
+            version += types.get(transactionType).version();
+        }
+        return version;
+    }
+
+    /**
+     * Reads a page of ids in place, without copying the bitmap.
+     * @param transactionType
+     * @param after exclusive lower bound of the ids
+     * @param limit
+     * @return the smallest ids of the type greater than after, in ascending order
+     */
+    public long[] page(TransactionType transactionType, long after, int limit) {
+        final Entry[] entries = types.get(transactionType).shards;
+        if (entries.length == 1) {
+            return page(entries[0], after, limit);
+        }
+        long[] merged = new long[0];
+        for (Entry entry : entries) {
+            final long[] page = page(entry, after, limit);
+            final long[] both = Arrays.copyOf(merged, merged.length + page.length);
+            System.arraycopy(page, 0, both, merged.length, page.length);
+            Arrays.sort(both);
+            merged = both.length > limit ? Arrays.copyOf(both, limit) : both;
+        }
+        return merged;
+    }
+
+    private static long[] page(Entry entry, long after, int limit) {
+        final long[] page = new long[limit];
+        int count = 0;
+        entry.lock.readLock().lock();
+        try {
+            if (after < Long.MAX_VALUE) {
+                final PeekableLongIterator ids = new IdSet.ExcludingIterator(
+                        entry.ids.getLongIteratorFrom(after + 1), entry.removed);
+                final PeekableLongIterator added = entry.added.getLongIteratorFrom(after + 1);
+                while (count < limit && (ids.hasNext() || added.hasNext())) {
+                    page[count++] = !added.hasNext() || ids.hasNext() && ids.peekNext() < added.peekNext()
+                            ? ids.next() : added.next();
+                }
+            }
+        } finally {
+            entry.lock.readLock().unlock();
+        }
+        return count == limit ? page : Arrays.copyOf(page, count);
+    }
+
+    /**
+     * @param transactionType
+     * @return the number of transactions of the type
+     */
+    public long count(TransactionType transactionType) {
+        long count = 0;
+        for (Entry entry : types.get(transactionType).shards) {
+            entry.lock.readLock().lock();
+            try {
+                count += entry.ids.getLongCardinality() + entry.added.getLongCardinality()
+                        - entry.removed.getLongCardinality();
+            } finally {
+                entry.lock.readLock().unlock();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return the memory used by the bitmaps, in bytes
+     */
+    public long sizeInBytes() {
+        long bytes = 0;
+        for (Type type : types.values()) {
+            for (Entry entry : type.shards) {
+                entry.lock.readLock().lock();
+                try {
+                    bytes += entry.ids.getLongSizeInBytes() + entry.added.getLongSizeInBytes()
+                            + entry.removed.getLongSizeInBytes();
+                } finally {
+                    entry.lock.readLock().unlock();
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Writes the bitmaps of all the types, in their portable format. The shards of a type
+     * are written merged, as a single bitmap.
+     * @param output
+     * @throws IOException
+     */
+    public void writeTo(DataOutput output) throws IOException {
+        output.writeInt(types.size());
+        for (Map.Entry<TransactionType, Type> typeEntry : types.entrySet()) {
+            output.writeInt(typeEntry.getKey().ordinal());
+            final IdSet snapshot = snapshot(typeEntry.getValue());
+            final Roaring64Bitmap[] parts = snapshot.parts();
+            if (parts.length == 1 && snapshot.removed()[0] == null) {
+                parts[0].serialize(output);
+                continue;
+            }
+            final Roaring64Bitmap merged = new Roaring64Bitmap();
+            for (Roaring64Bitmap part : parts) {
+                merged.or(part);
+            }
+            // the removed ids are each in a single part
+            for (Roaring64Bitmap removed : snapshot.removed()) {
+                if (removed != null) {
+                    merged.andNot(removed);
+                }
+            }
+            merged.serialize(output);
+        }
+    }
+
+    /**
+     * Replaces the bitmaps of the types with the ones written by {@link #writeTo(DataOutput)}.
+     * @param input
+     * @throws IOException
+     */
+    public void readFrom(DataInput input) throws IOException {
+        final TransactionType[] transactionTypes = TransactionType.values();
+        final int count = input.readInt();
+        for (int i = 0; i < count; i++) {
+            final Entry[] entries = types.get(transactionTypes[input.readInt()]).shards;
+            final Roaring64Bitmap ids = new Roaring64Bitmap();
+            ids.deserialize(input);
+            final Roaring64Bitmap[] parts = new Roaring64Bitmap[entries.length];
+            if (parts.length == 1) {
+                parts[0] = ids;
+            } else {
+                for (int shard = 0; shard < parts.length; shard++) {
+                    parts[shard] = new Roaring64Bitmap();
+                }
+                final LongIterator iterator = ids.getLongIterator();
+                while (iterator.hasNext()) {
+                    final long id = iterator.next();
+                    parts[ShardedTransactionStore.shardOf(id, shards)].addLong(id);
+                }
+            }
+            for (int shard = 0; shard < parts.length; shard++) {
+                final Entry entry = entries[shard];
+                entry.lock.writeLock().lock();
+                try {
+                    entry.reset(parts[shard]);
+                    entry.version++;
+                } finally {
+                    entry.lock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    private Entry entry(TransactionType transactionType, long id) {
+        return types.get(transactionType).shards[ShardedTransactionStore.shardOf(id, shards)];
+    }
+
+    /**
+     * @return the snapshot of the current version of the type, holding the bitmaps of its shards
+     */
+    private static IdSet snapshot(Type type) {
+        if (type.shards.length == 1) {
+            return snapshot(type.shards[0]);
+        }
+        final IdSet published = type.snapshot;
+        if (published != null && published.getVersion() == type.version()) {
+            return published;
+        }
+        final List<Roaring64Bitmap> parts = new ArrayList<>(type.shards.length);
+        final List<Roaring64Bitmap> removed = new ArrayList<>(type.shards.length);
+        long version = 0;
+        for (Entry entry : type.shards) {
+            final IdSet snapshot = snapshot(entry);
+            Collections.addAll(parts, snapshot.parts());
+            Collections.addAll(removed, snapshot.removed());
+            version += snapshot.getVersion();
+        }
+        final IdSet snapshot = new IdSet(parts.toArray(new Roaring64Bitmap[parts.size()]),
+                removed.toArray(new Roaring64Bitmap[removed.size()]), version);
+        type.snapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * @return the snapshot of the current version of the entry, freezing its bitmaps if none was taken yet
+     */
+    private static IdSet snapshot(Entry entry) {
+        final IdSet published = entry.snapshot;
+        if (published != null && published.getVersion() == entry.version) {
+            return published;
+        }
+        entry.lock.readLock().lock();
+        try {
+            entry.frozen = true;
+            entry.deltaFrozen = true;
+            final IdSet snapshot = entry.changes == 0
+                    ? new IdSet(new Roaring64Bitmap[]{entry.ids}, new Roaring64Bitmap[1], entry.version)
+                    : new IdSet(new Roaring64Bitmap[]{entry.ids, entry.added},
+                            new Roaring64Bitmap[]{entry.removed, null}, entry.version);
+            entry.snapshot = snapshot;
+            return snapshot;
+        } finally {
+            entry.lock.readLock().unlock();
+        }
+    }
+
+    private static final class Type {
+        final Entry[] shards;
+        /**
+         * Last merged snapshot taken, possibly of an older version. Versions only grow, so
+         * their sum tells the versions of the shards apart.
+         */
+        volatile IdSet snapshot;
+
+        Type(int shards) {
+            this.shards = new Entry[shards];
+            for (int i = 0; i < shards; i++) {
+                this.shards[i] = new Entry();
+            }
+        }
+
+        long version() {
+            long version = 0;
+            for (Entry entry : shards) {
+                version += entry.version;
+            }
+            return version;
+        }
+    }
+
+    private static final class Entry {
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        /**
+         * Replaced, never changed, once frozen.
+         */
+        Roaring64Bitmap ids = new Roaring64Bitmap();
+        /**
+         * Ids added since the bitmap was frozen, none of them in it, and ids of the
+         * bitmap removed since. Empty while it is not frozen.
+         */
+        Roaring64Bitmap added = new Roaring64Bitmap();
+        Roaring64Bitmap removed = new Roaring64Bitmap();
+        /**
+         * Changes of the delta since it was empty, the same id possibly counted twice.
+         */
+        int changes;
+        /**
+         * True if a snapshot holds the bitmap, until the delta is folded, and true if one holds
+         * the delta, until the next change copies it. Set under the read lock by any reader,
+         * so volatile, and cleared under the write lock.
+         */
+        volatile boolean frozen;
+        volatile boolean deltaFrozen;
+        /**
+         * Number of changes of the ids, only written under the write lock.
+         */
+        volatile long version;
+        /**
+         * Last snapshot taken, possibly of an older version.
+         */
+        volatile IdSet snapshot;
+
+        /**
+         * Called under the write lock, as the other changes.
+         */
+        void add(long id) {
+            prepareChange();
+            if (!frozen) {
+                ids.addLong(id);
+            } else if (removed.contains(id)) {
+                removed.removeLong(id);
+            } else if (!ids.contains(id)) {
+                added.addLong(id);
+            }
+        }
+
+        void remove(long id) {
+            prepareChange();
+            if (!frozen) {
+                ids.removeLong(id);
+            } else if (added.contains(id)) {
+                added.removeLong(id);
+            } else if (ids.contains(id)) {
+                removed.addLong(id);
+            }
+        }
+
+        /**
+         * Folds the delta into a copy of the bitmap once full, or copies it if a snapshot holds it.
+         */
+        private void prepareChange() {
+            if (!frozen) {
+                return;
+            }
+            if (changes >= MAX_DELTA) {
+                final Roaring64Bitmap folded = ids.clone();
+                folded.or(added);
+                folded.andNot(removed);
+                reset(folded);
+                return;
+            }
+            if (deltaFrozen) {
+                added = added.clone();
+                removed = removed.clone();
+                deltaFrozen = false;
+            }
+            changes++;
+        }
+
+        /**
+         * Replaces the ids, with an empty delta.
+         */
+        void reset(Roaring64Bitmap ids) {
+            this.ids = ids;
+            added = new Roaring64Bitmap();
+            removed = new Roaring64Bitmap();
+            changes = 0;
+            frozen = false;
+            deltaFrozen = false;
+        }
+    }
+}
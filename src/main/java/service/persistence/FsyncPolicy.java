@@ -0,0 +1,22 @@
+package service.persistence;
+
+/**
+ * When the write-ahead log is forced to disk.
+ *
+ * Created by simone on 28/02/16.
+ */
+public enum FsyncPolicy {
+    /**
+     * Every insert returns once it is on disk. Concurrent inserts share one fsync.
+     */
+    ALWAYS,
+    /**
+     * The log is forced to disk periodically, a crash loses at most the last interval.
+     */
+    INTERVAL,
+    /**
+     * The log is handed to the operating system periodically and never forced,
+     * it survives a crash of the process but not of the machine.
+     */
+    NEVER
+}
@@ -0,0 +1,218 @@
+package service.persistence;
+
+import model.Transaction;
+import service.index.TypeIndex;
+import service.store.TransactionStore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps the data in a directory as the latest snapshot and the logs written since,
+ * numbered by generation:
+ *
+ *     snapshot-{generation}.bin   the data before the log of the same generation
+ *     wal-{generation}.log        the insertions since
+ *
+ * Recovery loads the latest snapshot and replays only the logs which follow it.
+ * Taking a snapshot starts a new generation and deletes the older files.
+ *
+ * Created by simone on 28/02/16.
+ */
+public class Persistence implements Closeable {
+
+    private static final Pattern FILE_NAME = Pattern.compile("(snapshot|wal)-(\\d+)\\.(bin|log)");
+
+    private final File directory;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalMillis;
+    private final long snapshotIntervalMillis;
+    private ScheduledExecutorService snapshots;
+
+    private long generation;
+    /**
+     * Replaced under the exclusive lock of the service on snapshots.
+     */
+    private volatile WriteAheadLog log;
+
+    /**
+     * @param directory created if missing
+     * @param fsyncPolicy
+     * @param fsyncIntervalMillis period of the background writes of the log
+     * @param snapshotIntervalMillis period of the snapshots, 0 to take them only on demand
+     */
+    public Persistence(File directory, FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, long snapshotIntervalMillis) {
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.snapshotIntervalMillis = snapshotIntervalMillis;
+    }
+
+    /**
+     * Loads the latest snapshot into the empty storage and type index, then passes every
+     * logged insertion since to the replay, in order. A new log is started afterwards.
+     * The children index is left to the caller, see {@link SnapshotFile}.
+     *
+     * @param storage
+     * @param typeIndex
+     * @param replay applies a logged insertion
+     * @return the number of transactions read from the snapshot and the logs
+     * @throws IOException
+     */
+    public long recover(TransactionStore storage, TypeIndex typeIndex, Consumer<Transaction> replay)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create the data directory " + directory);
+        }
+
+        long snapshotGeneration = -1;
+        long lastGeneration = 0;
+        for (File file : files()) {
+            final long fileGeneration = generationOf(file);
+            lastGeneration = Math.max(lastGeneration, fileGeneration);
+            if (file.getName().startsWith("snapshot")) {
+                snapshotGeneration = Math.max(snapshotGeneration, fileGeneration);
+            }
+        }
+
+        long recovered = 0;
+        if (snapshotGeneration >= 0) {
+            recovered += SnapshotFile.read(snapshotFile(snapshotGeneration), storage, typeIndex);
+        }
+        for (File file : files()) {
+            if (file.getName().startsWith("wal") && generationOf(file) >= snapshotGeneration) {
+                recovered += WriteAheadLog.replay(file, replay);
+            }
+        }
+
+        // Never append after a record which might be torn.
+        generation = lastGeneration + 1;
+        log = new WriteAheadLog(logFile(generation), fsyncPolicy, fsyncIntervalMillis, 0);
+        return recovered;
+    }
+
+    /**
+     * Runs the task periodically, if snapshots are periodic.
+     * @param task takes a snapshot
+     */
+    public synchronized void scheduleSnapshots(Runnable task) {
+        if (snapshotIntervalMillis <= 0 || snapshots != null) {
+            return;
+        }
+        snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            final Thread thread = new Thread(runnable, "snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // Retried on the next period, the logs keep the data meanwhile.
+            }
+        }, snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Claims the sequence of an insertion in the log, see {@link WriteAheadLog#claim()}.
+     * @return the sequence number to publish and to wait for
+     */
+    public long claim() {
+        return log.claim();
+    }
+
+    /**
+     * Appends the insertion to the log, see {@link WriteAheadLog#publish(long, Transaction)}.
+     * @param sequence claimed for it
+     * @param transaction
+     */
+    public void publish(long sequence, Transaction transaction) {
+        log.publish(sequence, transaction);
+    }
+
+    /**
+     * Waits until the insertion is durable, see {@link WriteAheadLog#sync(long)}.
+     * Sequence numbers carry over to the next log, which starts durable.
+     * @param sequence
+     */
+    public void sync(long sequence) {
+        log.sync(sequence);
+    }
+
+    /**
+     * Starts a new generation with a snapshot of the data. Nothing must change the
+     * data meanwhile.
+     * @param storage
+     * @param typeIndex
+     * @return the number of transactions written
+     * @throws IOException
+     */
+    public synchronized long snapshot(TransactionStore storage, TypeIndex typeIndex) throws IOException {
+        final WriteAheadLog previous = log;
+        previous.close();
+        final long next = generation + 1;
+        log = new WriteAheadLog(logFile(next), fsyncPolicy, fsyncIntervalMillis, previous.getSequence());
+        generation = next;
+
+        final long count = SnapshotFile.write(snapshotFile(next), storage, typeIndex);
+        // durable once written, directory included, so the older generations are no longer needed
+        for (File file : files()) {
+            if (generationOf(file) < next && !file.delete()) {
+                throw new IOException("Cannot delete " + file);
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (snapshots != null) {
+            snapshots.shutdown();
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private File snapshotFile(long generation) {
+        return new File(directory, String.format("snapshot-%016d.bin", generation));
+    }
+
+    private File logFile(long generation) {
+        return new File(directory, String.format("wal-%016d.log", generation));
+    }
+
+    /**
+     * @return the snapshots and logs, by ascending generation
+     */
+    private List<File> files() {
+        final List<File> files = new ArrayList<>();
+        final File[] listed = directory.listFiles();
+        if (listed != null) {
+            for (File file : listed) {
+                if (FILE_NAME.matcher(file.getName()).matches()) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort((first, second) -> Long.compare(generationOf(first), generationOf(second)));
+        return files;
+    }
+
+    private static long generationOf(File file) {
+        final Matcher matcher = FILE_NAME.matcher(file.getName());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException("Not a data file: " + file);
+        }
+        return Long.parseLong(matcher.group(2));
+    }
+}
@@ -0,0 +1,283 @@
+package service.persistence;
+
+import model.Transaction;
+import model.TransactionType;
+import org.roaringbitmap.longlong.LongIterator;
+import service.index.TypeIndex;
+import service.store.OffHeapTransactionStore;
+import service.store.ShardedTransactionStore;
+import service.store.TransactionStore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.EnumSet;
+
+/**
+ * Compact binary image of the stored transactions, along with their sums, and of
+ * the type index:
+ *
+ *     magic (4) | version (4) | image offset (8) | type index | transactions
+ *
+ * The transactions of an {@link OffHeapTransactionStore} are written as the image of
+ * its tables (version 2), starting at the page aligned image offset. Opening the
+ * snapshot with the same store maps the image, so reads are served straight away and
+ * pages are loaded on first access. A {@link ShardedTransactionStore} of off-heap shards
+ * writes one image per shard (version 3), each page aligned, after their offsets:
+ *
+ *     shard count (4) | image offset of each shard (8)
+ *
+ * They are mapped by a store with as many off-heap shards. Other stores write a list of
+ * records (version 1) ended by {@link TransactionStore#NO_ID}, each one laid out as
+ *
+ *     id (8) | amount (8) | parentId (8) | sumOfChildren (8) | subtreeSum (8) | type ordinal (4)
+ *
+ * Any version can be loaded in any store. The children index is not part of the
+ * snapshot, it is rebuilt from the parent ids.
+ *
+ * Created by simone on 28/02/16.
+ */
+public class SnapshotFile {
+
+    private static final int MAGIC = 0x54584E53;
+    private static final int RECORDS_VERSION = 1;
+    private static final int IMAGE_VERSION = 2;
+    private static final int SHARD_IMAGES_VERSION = 3;
+    private static final int IMAGE_OFFSET_POSITION = 8;
+    private static final int PAGE_SIZE = 4096;
+    static final int RECORD_SIZE = 44;
+    private static final int RECORDS_PER_CHUNK = 1024;
+
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * Writes the snapshot to a temporary file, then moves it in place, so that the file
+     * is either missing or complete, and syncs the directory, so that the file stays once
+     * written. Nothing must change the data meanwhile.
+     * @param file
+     * @param storage
+     * @param typeIndex
+     * @return the number of transactions written
+     * @throws IOException
+     */
+    public static long write(File file, TransactionStore storage, TypeIndex typeIndex) throws IOException {
+        final File temporary = new File(file.getPath() + ".tmp");
+        final OffHeapTransactionStore[] images = images(storage);
+        final int version = images == null ? RECORDS_VERSION
+                : storage instanceof ShardedTransactionStore ? SHARD_IMAGES_VERSION : IMAGE_VERSION;
+        long count = 0;
+
+        try (FileOutputStream fileOutput = new FileOutputStream(temporary);
+             DataOutputStream output = new DataOutputStream(
+                     new BufferedOutputStream(fileOutput, RECORD_SIZE * RECORDS_PER_CHUNK))) {
+            output.writeInt(MAGIC);
+            output.writeInt(version);
+            output.writeLong(0);
+            typeIndex.writeTo(output);
+
+            if (images != null) {
+                output.flush();
+                final FileChannel channel = fileOutput.getChannel();
+                final long imageOffset = pageAligned(channel.position());
+                writeLong(channel, imageOffset, IMAGE_OFFSET_POSITION);
+                if (version == IMAGE_VERSION) {
+                    channel.position(imageOffset);
+                    images[0].writeTo(channel);
+                } else {
+                    final ByteBuffer offsets = ByteBuffer.allocate(4 + 8 * images.length);
+                    offsets.putInt(images.length);
+                    long position = imageOffset + offsets.capacity();
+                    for (OffHeapTransactionStore shard : images) {
+                        position = pageAligned(position);
+                        offsets.putLong(position);
+                        channel.position(position);
+                        position += shard.writeTo(channel);
+                    }
+                    offsets.flip();
+                    while (offsets.hasRemaining()) {
+                        channel.write(offsets, imageOffset + offsets.position());
+                    }
+                }
+                count = storage.size();
+            } else {
+                count = writeRecords(output, storage, typeIndex);
+            }
+            output.flush();
+            fileOutput.getFD().sync();
+        }
+        Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(file.getAbsoluteFile().getParentFile());
+        return count;
+    }
+
+    /**
+     * @return the off-heap stores holding the transactions, null if some are not
+     */
+    private static OffHeapTransactionStore[] images(TransactionStore storage) {
+        if (storage instanceof OffHeapTransactionStore) {
+            return new OffHeapTransactionStore[]{(OffHeapTransactionStore) storage};
+        }
+        if (!(storage instanceof ShardedTransactionStore)) {
+            return null;
+        }
+        final ShardedTransactionStore sharded = (ShardedTransactionStore) storage;
+        final OffHeapTransactionStore[] shards = new OffHeapTransactionStore[sharded.getShardCount()];
+        for (int i = 0; i < shards.length; i++) {
+            if (!(sharded.getShard(i) instanceof OffHeapTransactionStore)) {
+                return null;
+            }
+            shards[i] = (OffHeapTransactionStore) sharded.getShard(i);
+        }
+        return shards;
+    }
+
+    private static long pageAligned(long position) {
+        return (position + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    private static void writeLong(FileChannel channel, long value, long position) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(8);
+        buffer.putLong(0, value);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Makes the entries of a directory durable, such as a file just renamed into it:
+     * syncing the file alone does not. Until then a crash can lose the rename.
+     * @param directory
+     * @throws IOException
+     */
+    private static void syncDirectory(File directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Loads a snapshot into empty storage and type index.
+     * @param file
+     * @param storage
+     * @param typeIndex
+     * @return the number of transactions read
+     * @throws IOException
+     */
+    public static long read(File file, TransactionStore storage, TypeIndex typeIndex) throws IOException {
+        // Copy-on-write mappings need a writable channel, the file itself is never written.
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+             DataInputStream input = new DataInputStream(
+                     new BufferedInputStream(Channels.newInputStream(channel), RECORD_SIZE * RECORDS_PER_CHUNK))) {
+            final int magic = input.readInt();
+            final int version = input.readInt();
+            final long imageOffset = input.readLong();
+            if (magic != MAGIC || version < RECORDS_VERSION || version > SHARD_IMAGES_VERSION) {
+                throw new IOException("Not a snapshot: " + file);
+            }
+            typeIndex.readFrom(input);
+
+            if (version == RECORDS_VERSION) {
+                return readRecords(input, storage);
+            }
+            final long[] offsets = version == IMAGE_VERSION ? new long[]{imageOffset} : readOffsets(channel, imageOffset);
+            final OffHeapTransactionStore[] images = images(storage);
+            if (images != null && images.length == offsets.length) {
+                for (int i = 0; i < images.length; i++) {
+                    images[i].mapFrom(channel, offsets[i]);
+                }
+                return storage.size();
+            }
+            long count = 0;
+            for (long offset : offsets) {
+                final OffHeapTransactionStore mapped = new OffHeapTransactionStore();
+                mapped.mapFrom(channel, offset);
+                mapped.forEachParentId((id, parentId) -> copy(mapped.get(id), storage));
+                count += mapped.size();
+            }
+            return count;
+        }
+    }
+
+    private static long[] readOffsets(FileChannel channel, long position) throws IOException {
+        final ByteBuffer count = ByteBuffer.allocate(4);
+        readFully(channel, count, position);
+        final ByteBuffer offsets = ByteBuffer.allocate(8 * count.getInt(0));
+        readFully(channel, offsets, position + 4);
+        final long[] result = new long[offsets.capacity() / 8];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = offsets.getLong(8 * i);
+        }
+        return result;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated image offsets.");
+            }
+        }
+    }
+
+    private static long writeRecords(DataOutputStream output, TransactionStore storage, TypeIndex typeIndex)
+            throws IOException {
+        final byte[] chunk = new byte[RECORD_SIZE * RECORDS_PER_CHUNK];
+        final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+        long count = 0;
+
+        // Every transaction has exactly one type.
+        final LongIterator ids = typeIndex.union(EnumSet.allOf(TransactionType.class)).longIterator();
+        while (ids.hasNext()) {
+            final Transaction transaction = storage.get(ids.next());
+            buffer.putLong(transaction.getId());
+            buffer.putDouble(transaction.getAmount());
+            buffer.putLong(transaction.getParentId() == null ? TransactionStore.NO_ID : transaction.getParentId());
+            buffer.putDouble(transaction.getSumOfChildren());
+            buffer.putDouble(transaction.getSubtreeSum());
+            buffer.putInt(transaction.getTransactionType().ordinal());
+            count++;
+            if (!buffer.hasRemaining()) {
+                output.write(chunk);
+                buffer.clear();
+            }
+        }
+        output.write(chunk, 0, buffer.position());
+        output.writeLong(TransactionStore.NO_ID);
+        return count;
+    }
+
+    private static long readRecords(DataInputStream input, TransactionStore storage) throws IOException {
+        final byte[] record = new byte[RECORD_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        long count = 0;
+        while (true) {
+            final long id = input.readLong();
+            if (id == TransactionStore.NO_ID) {
+                return count;
+            }
+            input.readFully(record, 8, RECORD_SIZE - 8);
+            final long parentId = buffer.getLong(16);
+            final Transaction transaction = new Transaction(id, buffer.getDouble(8),
+                    parentId == TransactionStore.NO_ID ? null : parentId, TYPES[buffer.getInt(40)]);
+            transaction.setSumOfChildren(buffer.getDouble(24));
+            transaction.setSubtreeSum(buffer.getDouble(32));
+            copy(transaction, storage);
+            count++;
+        }
+    }
+
+    /**
+     * Stores a new transaction along with its sums.
+     */
+    private static void copy(Transaction transaction, TransactionStore storage) {
+        storage.put(transaction);
+        storage.addToSumOfChildren(transaction.getId(), transaction.getSumOfChildren());
+        storage.addToSubtreeSum(transaction.getId(), transaction.getSubtreeSum());
+    }
+}
@@ -0,0 +1,337 @@
+package service.persistence;
+
+import model.Transaction;
+import model.TransactionType;
+import service.store.TransactionStore;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of the inserted transactions, one fixed-width record each:
+ *
+ *     id (8) | amount (8) | parentId (8) | type ordinal (4) | crc32 (4)
+ *
+ * A sequence is claimed while the locks of the insertion are held, so that dependent
+ * insertions get them in the order applied, and the insertion is published afterwards,
+ * out of those locks. Published insertions are copied to a buffer in memory in sequence
+ * order, by whoever publishes the next one missing. The buffer is written
+ * out, along with everything appended meanwhile, by the first caller waiting for
+ * durability (group commit) or periodically by a background thread, depending
+ * on the {@link FsyncPolicy}.
+ *
+ * A record torn by a crash fails its checksum and ends the replay.
+ *
+ * Created by simone on 28/02/16.
+ */
+public class WriteAheadLog implements Closeable {
+
+    static final int RECORD_SIZE = 32;
+    private static final int CHECKED_SIZE = RECORD_SIZE - 4;
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+    /**
+     * Insertions published and not yet copied to the buffer.
+     */
+    private static final int RING_SIZE = 1024;
+
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private final FileChannel channel;
+    private final FsyncPolicy policy;
+    /**
+     * Writes the buffer out periodically, unless every insert already does.
+     */
+    private final ScheduledExecutorService flusher;
+
+    private final CRC32 crc = new CRC32();
+    /**
+     * Records appended and not yet written. Swapped with the spare buffer while writing.
+     */
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    /**
+     * Published insertions by sequence, until copied to the buffer.
+     */
+    private final AtomicReferenceArray<Transaction> ring = new AtomicReferenceArray<>(RING_SIZE);
+    /**
+     * Sequence numbers of the last claimed record, of the last copied to the buffer, along
+     * with all the ones before, and of the last written one.
+     */
+    private final AtomicLong claimed;
+    private volatile long appended;
+    private long written;
+    /**
+     * True while a caller is writing, the others wait for it.
+     */
+    private boolean writing;
+    private volatile IOException failure;
+
+    /**
+     * Opens the log, appending to the file if it exists.
+     * @param file
+     * @param policy
+     * @param intervalMillis period of the background writes, unused if the policy is {@link FsyncPolicy#ALWAYS}
+     * @param sequence sequence number of the last durable record, the log continues from it
+     * @throws IOException
+     */
+    public WriteAheadLog(File file, FsyncPolicy policy, long intervalMillis, long sequence) throws IOException {
+        this.claimed = new AtomicLong(sequence);
+        this.appended = sequence;
+        this.written = sequence;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.policy = policy;
+        if (policy == FsyncPolicy.ALWAYS) {
+            flusher = null;
+        } else {
+            flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                final Thread thread = new Thread(runnable, "wal-flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+            flusher.scheduleWithFixedDelay(this::flushAppended, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Claims the sequence of a record. Records are replayed in the order they are claimed,
+     * each claimed sequence must be published.
+     * @return the sequence number of the record
+     * @throws UncheckedIOException if the log cannot be written any more
+     */
+    public long claim() {
+        if (failure != null) {
+            throw new UncheckedIOException("The write-ahead log cannot be written.", failure);
+        }
+        return claimed.incrementAndGet();
+    }
+
+    /**
+     * Appends the record of the transaction, with its claimed sequence, to the buffer along
+     * with the ones following it which are published already. Waits meanwhile only if as
+     * many records as the ring holds are claimed before it and not yet published.
+     * @param sequence
+     * @param transaction
+     */
+    public void publish(long sequence, Transaction transaction) {
+        while (sequence - RING_SIZE > appended) {
+            LockSupport.parkNanos(1000);
+        }
+        ring.set((int) sequence & (RING_SIZE - 1), transaction);
+        // Copied by whoever publishes the first missing record, possibly this one.
+        if (ring.get((int) (appended + 1) & (RING_SIZE - 1)) != null) {
+            copyPublished();
+        }
+    }
+
+    private synchronized void copyPublished() {
+        final long before = appended;
+        while (true) {
+            final int slot = (int) (appended + 1) & (RING_SIZE - 1);
+            final Transaction transaction = ring.get(slot);
+            if (transaction == null) {
+                break;
+            }
+            write(transaction);
+            ring.set(slot, null);
+            appended++;
+        }
+        if (appended != before) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Copies the record of the transaction to the buffer.
+     */
+    private void write(Transaction transaction) {
+        if (pending.remaining() < RECORD_SIZE) {
+            final ByteBuffer grown = ByteBuffer.allocate(pending.capacity() * 2);
+            pending.flip();
+            grown.put(pending);
+            pending = grown;
+        }
+        final int start = pending.position();
+        pending.putLong(transaction.getId());
+        pending.putDouble(transaction.getAmount());
+        pending.putLong(transaction.getParentId() == null ? TransactionStore.NO_ID : transaction.getParentId());
+        pending.putInt(transaction.getTransactionType().ordinal());
+        crc.reset();
+        crc.update(pending.array(), start, CHECKED_SIZE);
+        pending.putInt((int) crc.getValue());
+    }
+
+    /**
+     * @return the sequence number of the last record copied to the buffer, once every
+     * claimed one is published it is the last one claimed
+     */
+    public long getSequence() {
+        return appended;
+    }
+
+    /**
+     * Waits until the record is as durable as the policy requires, it does not wait
+     * unless the policy is {@link FsyncPolicy#ALWAYS}.
+     * @param sequence
+     */
+    public void sync(long sequence) {
+        if (policy == FsyncPolicy.ALWAYS) {
+            try {
+                flush(sequence);
+            } catch (IOException e) {
+                throw new UncheckedIOException("The write-ahead log cannot be written.", e);
+            }
+        }
+    }
+
+    /**
+     * Writes out and forces to disk every record appended so far, whatever the policy.
+     * @throws IOException
+     */
+    public void syncAll() throws IOException {
+        final long sequence;
+        synchronized (this) {
+            sequence = appended;
+        }
+        flush(sequence);
+        channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+        }
+        try {
+            syncAll();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes the buffer out unless the sequence is already written. Only one caller
+     * writes at a time, taking everything appended so far. The others wait for it
+     * and find their record written, or write the records appended meanwhile.
+     */
+    private void flush(long sequence) throws IOException {
+        final ByteBuffer batch;
+        final long target;
+        synchronized (this) {
+            while (true) {
+                if (failure != null) {
+                    throw failure;
+                }
+                if (written >= sequence) {
+                    return;
+                }
+                // the records before it are still being published
+                if (!writing && appended >= sequence) {
+                    break;
+                }
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            writing = true;
+            batch = pending;
+            pending = spare;
+            target = appended;
+        }
+
+        try {
+            batch.flip();
+            while (batch.hasRemaining()) {
+                channel.write(batch);
+            }
+            if (policy != FsyncPolicy.NEVER) {
+                channel.force(false);
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                failure = e;
+                writing = false;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            batch.clear();
+            spare = batch;
+            written = target;
+            writing = false;
+            notifyAll();
+        }
+    }
+
+    private void flushAppended() {
+        try {
+            final long sequence;
+            synchronized (this) {
+                sequence = appended;
+            }
+            flush(sequence);
+        } catch (IOException e) {
+            // Kept as the failure, next appends fail.
+        }
+    }
+
+    /**
+     * Reads the records of a log in order, up to the first torn or corrupted one.
+     * @param file
+     * @param consumer
+     * @return the number of records read
+     * @throws IOException
+     */
+    public static long replay(File file, Consumer<Transaction> consumer) throws IOException {
+        final byte[] record = new byte[RECORD_SIZE];
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        final CRC32 crc = new CRC32();
+        long count = 0;
+        try (InputStream input = new BufferedInputStream(new FileInputStream(file), INITIAL_BUFFER_SIZE)) {
+            while (readFully(input, record)) {
+                crc.reset();
+                crc.update(record, 0, CHECKED_SIZE);
+                if ((int) crc.getValue() != buffer.getInt(CHECKED_SIZE)) {
+                    break;
+                }
+                final long parentId = buffer.getLong(16);
+                final int ordinal = buffer.getInt(24);
+                consumer.accept(new Transaction(buffer.getLong(0), buffer.getDouble(8),
+                        parentId == TransactionStore.NO_ID ? null : parentId,
+                        ordinal >= 0 && ordinal < TYPES.length ? TYPES[ordinal] : null));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return false if the input ends before the record is complete
+     */
+    private static boolean readFully(InputStream input, byte[] record) throws IOException {
+        int read = 0;
+        while (read < record.length) {
+            final int n = input.read(record, read, record.length - read);
+            if (n < 0) {
+                return false;
+            }
+            read += n;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,112 @@
+package service.store;
+
+import model.Transaction;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps {@link Transaction} objects in a concurrent map on the heap.
+ *
+ * Stored objects are never changed: every write replaces the entry with a changed
+ * copy, so a reader always gets all the fields of a single version. Readers get a
+ * copy of their own.
+ *
+ * Created by simone on 20/02/16.
+ */
+public class MapTransactionStore implements TransactionStore {
+
+    /**
+     * Rough heap cost of one entry: map node, boxed key and the entity with its boxed fields.
+     */
+    private static final long BYTES_PER_ENTRY = 208L;
+
+    private final Map<Long, Transaction> storage = new ConcurrentHashMap<>();
+
+    @Override
+    public Transaction get(long id) {
+        final Transaction entity = storage.get(id);
+        return entity == null ? null : withSums(entity, entity.getSumOfChildren(), entity.getSubtreeSum());
+    }
+
+    @Override
+    public boolean contains(long id) {
+        return storage.containsKey(id);
+    }
+
+    @Override
+    public long getParentId(long id) {
+        final Transaction entity = storage.get(id);
+        return entity == null || entity.getParentId() == null ? NO_ID : entity.getParentId();
+    }
+
+    @Override
+    public double getSumOfChildren(long id) {
+        final Transaction entity = storage.get(id);
+        return entity == null ? Double.NaN : entity.getSumOfChildren();
+    }
+
+    @Override
+    public double getSubtreeSum(long id) {
+        final Transaction entity = storage.get(id);
+        return entity == null ? Double.NaN : entity.getSubtreeSum();
+    }
+
+    @Override
+    public void put(Transaction transaction) {
+        // Copy the object to have persistence.
+        final Transaction existing = storage.get(transaction.getId());
+        storage.put(transaction.getId(), existing == null
+                ? new Transaction(transaction)
+                : withSums(transaction, existing.getSumOfChildren(), existing.getSubtreeSum()));
+    }
+
+    @Override
+    public void addToSumOfChildren(long id, double amount) {
+        final Transaction entity = storage.get(id);
+        storage.put(id, withSums(entity, entity.getSumOfChildren() + amount, entity.getSubtreeSum()));
+    }
+
+    @Override
+    public void addToSubtreeSum(long id, double amount) {
+        final Transaction entity = storage.get(id);
+        storage.put(id, withSums(entity, entity.getSumOfChildren(), entity.getSubtreeSum() + amount));
+    }
+
+    @Override
+    public void forEachParentId(ParentIdConsumer consumer) {
+        for (Transaction entity : storage.values()) {
+            consumer.accept(entity.getId(), entity.getParentId() == null ? NO_ID : entity.getParentId());
+        }
+    }
+
+    @Override
+    public void clear() {
+        storage.clear();
+    }
+
+    @Override
+    public TransactionStore newEmpty() {
+        return new MapTransactionStore();
+    }
+
+    @Override
+    public int size() {
+        return storage.size();
+    }
+
+    @Override
+    public long estimatedBytes() {
+        return storage.size() * BYTES_PER_ENTRY;
+    }
+
+    /**
+     * @return a copy of the transaction with the given sums
+     */
+    private static Transaction withSums(Transaction transaction, double sumOfChildren, double subtreeSum) {
+        final Transaction copy = new Transaction(transaction);
+        copy.setSumOfChildren(sumOfChildren);
+        copy.setSubtreeSum(subtreeSum);
+        return copy;
+    }
+}
@@ -0,0 +1,466 @@
+package service.store;
+
+import model.Transaction;
+import model.TransactionType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Keeps transactions as fixed-width records in direct memory, outside of the heap.
+ *
+ * The store is split in segments, each one an open-addressing table with linear
+ * probing keyed by the primitive id. A record is laid out as
+ *
+ *     id (8) | amount (8) | parentId (8) | sumOfChildren (8) | subtreeSum (8) | type ordinal (4) | padding (4)
+ *
+ * Readers use optimistic reads of the segment and retry only if a writer
+ * touched the same segment in the meantime. {@link Transaction} objects are
+ * built on {@link #get(long)} only.
+ *
+ * The tables can be written out as an image and mapped back as they are, see
+ * {@link #writeTo(FileChannel)} and {@link #mapFrom(FileChannel, long)}.
+ *
+ * Created by simone on 20/02/16.
+ */
+public class OffHeapTransactionStore implements TransactionStore {
+
+    static final int RECORD_SIZE = 48;
+    private static final int ID_OFFSET = 0;
+    private static final int AMOUNT_OFFSET = 8;
+    private static final int PARENT_OFFSET = 16;
+    private static final int SUM_OFFSET = 24;
+    private static final int SUBTREE_OFFSET = 32;
+    private static final int TYPE_OFFSET = 40;
+
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_SEGMENT_CAPACITY = 1024;
+    /**
+     * Largest table which still fits in a single buffer.
+     */
+    private static final int MAX_SEGMENT_CAPACITY = 1 << 25;
+
+    /**
+     * Size of the image header, holding the capacity and the size of every segment.
+     * Page aligned, so that the tables which follow are too.
+     */
+    private static final int IMAGE_HEADER_SIZE = 4096;
+
+    private static final TransactionType[] TYPES = TransactionType.values();
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public OffHeapTransactionStore() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    @Override
+    public Transaction get(long id) {
+        final long hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final StampedLock lock = segment.lock;
+
+        long stamp = lock.tryOptimisticRead();
+        Transaction transaction = segment.read(id, hash);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                transaction = segment.read(id, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return transaction;
+    }
+
+    @Override
+    public boolean contains(long id) {
+        final long hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final StampedLock lock = segment.lock;
+
+        long stamp = lock.tryOptimisticRead();
+        boolean found = segment.find(id, hash) >= 0;
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                found = segment.find(id, hash) >= 0;
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public long getParentId(long id) {
+        final long hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final StampedLock lock = segment.lock;
+
+        long stamp = lock.tryOptimisticRead();
+        long parentId = segment.readParentId(id, hash);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                parentId = segment.readParentId(id, hash);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return parentId;
+    }
+
+    @Override
+    public double getSumOfChildren(long id) {
+        return readSum(id, SUM_OFFSET);
+    }
+
+    @Override
+    public double getSubtreeSum(long id) {
+        return readSum(id, SUBTREE_OFFSET);
+    }
+
+    private double readSum(long id, int field) {
+        final long hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final StampedLock lock = segment.lock;
+
+        long stamp = lock.tryOptimisticRead();
+        double sum = segment.readDouble(id, hash, field);
+        if (!lock.validate(stamp)) {
+            stamp = lock.readLock();
+            try {
+                sum = segment.readDouble(id, hash, field);
+            } finally {
+                lock.unlockRead(stamp);
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public void put(Transaction transaction) {
+        final long id = transaction.getId();
+        final long hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final long stamp = segment.lock.writeLock();
+        try {
+            segment.write(id, hash, transaction);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void addToSumOfChildren(long id, double amount) {
+        final long hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final long stamp = segment.lock.writeLock();
+        try {
+            segment.addTo(id, hash, SUM_OFFSET, amount);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void addToSubtreeSum(long id, double amount) {
+        final long hash = hash(id);
+        final Segment segment = segmentFor(hash);
+        final long stamp = segment.lock.writeLock();
+        try {
+            segment.addTo(id, hash, SUBTREE_OFFSET, amount);
+        } finally {
+            segment.lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void forEachParentId(ParentIdConsumer consumer) {
+        for (Segment segment : segments) {
+            final long stamp = segment.lock.readLock();
+            try {
+                final Table t = segment.table;
+                for (int slot = 0; slot <= t.mask; slot++) {
+                    final int offset = slot * RECORD_SIZE;
+                    final long id = t.buffer.getLong(offset + ID_OFFSET);
+                    if (id != NO_ID) {
+                        consumer.accept(id, t.buffer.getLong(offset + PARENT_OFFSET));
+                    }
+                }
+            } finally {
+                segment.lock.unlockRead(stamp);
+            }
+        }
+    }
+
+    /**
+     * Writes the image of the tables at the position of the channel: a page with the
+     * capacity and the size of each segment, then the tables as they are in memory.
+     * Nothing must change the store meanwhile.
+     * @param channel
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    public long writeTo(FileChannel channel) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(IMAGE_HEADER_SIZE);
+        for (Segment segment : segments) {
+            header.putInt(segment.table.capacity());
+            header.putInt(segment.size);
+        }
+        long written = writeFully(channel, header);
+        for (Segment segment : segments) {
+            written += writeFully(channel, segment.table.buffer.duplicate());
+        }
+        return written;
+    }
+
+    /**
+     * Replaces the tables of an empty store with an image written by {@link #writeTo(FileChannel)},
+     * mapped copy-on-write: pages are read from the file the first time they are accessed, and
+     * changes are kept in memory only.
+     * @param channel
+     * @param position of the image in the file
+     * @throws IOException
+     */
+    public void mapFrom(FileChannel channel, long position) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(IMAGE_HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, position + header.position()) < 0) {
+                throw new EOFException("Truncated image header.");
+            }
+        }
+        header.flip();
+        long tablePosition = position + IMAGE_HEADER_SIZE;
+        for (Segment segment : segments) {
+            final int capacity = header.getInt();
+            final int size = header.getInt();
+            final long stamp = segment.lock.writeLock();
+            try {
+                segment.table = new Table(
+                        channel.map(FileChannel.MapMode.PRIVATE, tablePosition, (long) capacity * RECORD_SIZE),
+                        capacity);
+                segment.size = size;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+            tablePosition += (long) capacity * RECORD_SIZE;
+        }
+    }
+
+    private static long writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += channel.write(buffer);
+        }
+        return written;
+    }
+
+    @Override
+    public void clear() {
+        for (Segment segment : segments) {
+            final long stamp = segment.lock.writeLock();
+            try {
+                segment.table = new Table(INITIAL_SEGMENT_CAPACITY);
+                segment.size = 0;
+            } finally {
+                segment.lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    @Override
+    public TransactionStore newEmpty() {
+        return new OffHeapTransactionStore();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    @Override
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += (long) segment.table.capacity() * RECORD_SIZE;
+        }
+        return bytes;
+    }
+
+    private Segment segmentFor(long hash) {
+        return segments[(int) (hash >>> 58) & (SEGMENTS - 1)];
+    }
+
+    private static long hash(long id) {
+        final long h = id * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Open-addressing table guarded by a single {@link StampedLock}.
+     */
+    private static final class Segment {
+
+        final StampedLock lock = new StampedLock();
+        /**
+         * Replaced as a whole on resize, so a reader always sees a consistent table.
+         */
+        volatile Table table = new Table(INITIAL_SEGMENT_CAPACITY);
+        volatile int size;
+
+        /**
+         * @return the byte offset of the record, -1 if not found
+         */
+        int find(long id, long hash) {
+            return find(table, id, hash);
+        }
+
+        static int find(Table t, long id, long hash) {
+            int slot = (int) hash & t.mask;
+            for (int probes = 0; probes <= t.mask; probes++) {
+                final int offset = slot * RECORD_SIZE;
+                final long stored = t.buffer.getLong(offset + ID_OFFSET);
+                if (stored == id) {
+                    return offset;
+                }
+                if (stored == NO_ID) {
+                    return -1;
+                }
+                slot = (slot + 1) & t.mask;
+            }
+            return -1;
+        }
+
+        Transaction read(long id, long hash) {
+            final Table t = table;
+            final int offset = find(t, id, hash);
+            if (offset < 0) {
+                return null;
+            }
+            final ByteBuffer buffer = t.buffer;
+            final long parentId = buffer.getLong(offset + PARENT_OFFSET);
+            final int ordinal = buffer.getInt(offset + TYPE_OFFSET);
+            final Transaction transaction = new Transaction(id,
+                    buffer.getDouble(offset + AMOUNT_OFFSET),
+                    parentId == NO_ID ? null : parentId,
+                    ordinal >= 0 && ordinal < TYPES.length ? TYPES[ordinal] : null);
+            transaction.setSumOfChildren(buffer.getDouble(offset + SUM_OFFSET));
+            transaction.setSubtreeSum(buffer.getDouble(offset + SUBTREE_OFFSET));
+            return transaction;
+        }
+
+        long readParentId(long id, long hash) {
+            final Table t = table;
+            final int offset = find(t, id, hash);
+            if (offset < 0) {
+                return NO_ID;
+            }
+            return t.buffer.getLong(offset + PARENT_OFFSET);
+        }
+
+        double readDouble(long id, long hash, int field) {
+            final Table t = table;
+            final int offset = find(t, id, hash);
+            if (offset < 0) {
+                return Double.NaN;
+            }
+            return t.buffer.getDouble(offset + field);
+        }
+
+        void write(long id, long hash, Transaction transaction) {
+            int offset = find(id, hash);
+            if (offset < 0) {
+                if ((size + 1) * 4L > (table.mask + 1) * 3L) {
+                    resize();
+                }
+                offset = insertSlot(table, hash);
+                table.buffer.putLong(offset + ID_OFFSET, id);
+                table.buffer.putDouble(offset + SUM_OFFSET, 0.0);
+                table.buffer.putDouble(offset + SUBTREE_OFFSET, 0.0);
+                size++;
+            }
+            final ByteBuffer buffer = table.buffer;
+            buffer.putDouble(offset + AMOUNT_OFFSET, transaction.getAmount());
+            buffer.putLong(offset + PARENT_OFFSET, transaction.getParentId() == null ? NO_ID : transaction.getParentId());
+            buffer.putInt(offset + TYPE_OFFSET, transaction.getTransactionType().ordinal());
+        }
+
+        void addTo(long id, long hash, int field, double amount) {
+            final int offset = find(id, hash);
+            if (offset < 0) {
+                throw new IllegalStateException("Transaction id " + id + " not stored.");
+            }
+            final ByteBuffer buffer = table.buffer;
+            buffer.putDouble(offset + field, buffer.getDouble(offset + field) + amount);
+        }
+
+        private static int insertSlot(Table t, long hash) {
+            int slot = (int) hash & t.mask;
+            while (t.buffer.getLong(slot * RECORD_SIZE + ID_OFFSET) != NO_ID) {
+                slot = (slot + 1) & t.mask;
+            }
+            return slot * RECORD_SIZE;
+        }
+
+        private void resize() {
+            final Table old = table;
+            final int capacity = (old.mask + 1) << 1;
+            if (capacity > MAX_SEGMENT_CAPACITY) {
+                throw new IllegalStateException("Transaction store segment is full.");
+            }
+            final Table resized = new Table(capacity);
+            for (int slot = 0; slot <= old.mask; slot++) {
+                final int from = slot * RECORD_SIZE;
+                final long id = old.buffer.getLong(from + ID_OFFSET);
+                if (id != NO_ID) {
+                    final int to = insertSlot(resized, hash(id));
+                    for (int i = 0; i < RECORD_SIZE; i += 8) {
+                        resized.buffer.putLong(to + i, old.buffer.getLong(from + i));
+                    }
+                }
+            }
+            table = resized;
+        }
+    }
+
+    /**
+     * A direct buffer of records and its slot mask.
+     */
+    private static final class Table {
+
+        final ByteBuffer buffer;
+        final int mask;
+
+        Table(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity * RECORD_SIZE);
+            mask = capacity - 1;
+            for (int slot = 0; slot < capacity; slot++) {
+                buffer.putLong(slot * RECORD_SIZE + ID_OFFSET, NO_ID);
+            }
+        }
+
+        /**
+         * @param buffer holding a whole table already
+         */
+        Table(ByteBuffer buffer, int capacity) {
+            this.buffer = buffer;
+            mask = capacity - 1;
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+    }
+}
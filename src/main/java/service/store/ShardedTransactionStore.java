@@ -0,0 +1,134 @@
+package service.store;
+
+import model.Transaction;
+
+/**
+ * Splits the transactions among stores by id hash, each store holding one shard.
+ *
+ * The shard of an id is given by {@link #shardOf(long, int)}, which the type index
+ * and the locks of {@link service.TransactionService} use too, so that a shard owns
+ * all the data of its ids.
+ *
+ * Created by simone on 05/03/16.
+ */
+public class ShardedTransactionStore implements TransactionStore {
+
+    private final TransactionStore[] shards;
+
+    /**
+     * @param shards empty stores, a power of two of them
+     */
+    public ShardedTransactionStore(TransactionStore... shards) {
+        if (shards.length < 1 || Integer.bitCount(shards.length) != 1) {
+            throw new IllegalArgumentException("The number of shards must be a power of two: " + shards.length);
+        }
+        this.shards = shards.clone();
+    }
+
+    /**
+     * @param id
+     * @param shards number of shards, a power of two
+     * @return the shard of the id
+     */
+    public static int shardOf(long id, int shards) {
+        final long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & (shards - 1);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard index of the shard, see {@link #shardOf(long, int)}
+     * @return the store holding the shard
+     */
+    public TransactionStore getShard(int shard) {
+        return shards[shard];
+    }
+
+    @Override
+    public Transaction get(long id) {
+        return shard(id).get(id);
+    }
+
+    @Override
+    public boolean contains(long id) {
+        return shard(id).contains(id);
+    }
+
+    @Override
+    public long getParentId(long id) {
+        return shard(id).getParentId(id);
+    }
+
+    @Override
+    public double getSumOfChildren(long id) {
+        return shard(id).getSumOfChildren(id);
+    }
+
+    @Override
+    public double getSubtreeSum(long id) {
+        return shard(id).getSubtreeSum(id);
+    }
+
+    @Override
+    public void put(Transaction transaction) {
+        shard(transaction.getId()).put(transaction);
+    }
+
+    @Override
+    public void addToSumOfChildren(long id, double amount) {
+        shard(id).addToSumOfChildren(id, amount);
+    }
+
+    @Override
+    public void addToSubtreeSum(long id, double amount) {
+        shard(id).addToSubtreeSum(id, amount);
+    }
+
+    @Override
+    public void forEachParentId(ParentIdConsumer consumer) {
+        for (TransactionStore shard : shards) {
+            shard.forEachParentId(consumer);
+        }
+    }
+
+    @Override
+    public void clear() {
+        for (TransactionStore shard : shards) {
+            shard.clear();
+        }
+    }
+
+    @Override
+    public TransactionStore newEmpty() {
+        final TransactionStore[] empty = new TransactionStore[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            empty[i] = shards[i].newEmpty();
+        }
+        return new ShardedTransactionStore(empty);
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (TransactionStore shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    @Override
+    public long estimatedBytes() {
+        long bytes = 0;
+        for (TransactionStore shard : shards) {
+            bytes += shard.estimatedBytes();
+        }
+        return bytes;
+    }
+
+    private TransactionStore shard(long id) {
+        return shards[shardOf(id, shards.length)];
+    }
+}
@@ -0,0 +1,112 @@
+package service.store;
+
+import model.Transaction;
+
+/**
+ * Storage engine behind {@link service.TransactionService}.
+ *
+ * Implementations must allow reads concurrently with writes. Writes on the same
+ * id are serialized by the service, so a store only has to keep its own
+ * structure consistent.
+ *
+ * Created by simone on 20/02/16.
+ */
+public interface TransactionStore {
+
+    /**
+     * Marker for a missing id, transaction ids are never negative.
+     */
+    long NO_ID = -1L;
+
+    /**
+     * Returns a copy of the stored {@link Transaction} or null if the id does not exist.
+     * All its fields, sums included, are read from the same version of the transaction.
+     * @param id
+     * @return
+     */
+    Transaction get(long id);
+
+    /**
+     * @param id
+     * @return true if a transaction with the given id is stored
+     */
+    boolean contains(long id);
+
+    /**
+     * @param id
+     * @return the parent id of the transaction, {@link #NO_ID} if it has none or does not exist
+     */
+    long getParentId(long id);
+
+    /**
+     * Reads the sum of children without copying the transaction.
+     * @param id
+     * @return the sum, NaN if the id does not exist. A sum which overflowed can be NaN too,
+     * {@link #contains(long)} tells them apart
+     */
+    double getSumOfChildren(long id);
+
+    /**
+     * Reads the subtree sum without copying the transaction.
+     * @param id
+     * @return the sum, NaN if the id does not exist. A sum which overflowed can be NaN too,
+     * {@link #contains(long)} tells them apart
+     */
+    double getSubtreeSum(long id);
+
+    /**
+     * Stores a copy of the {@link Transaction}. If a transaction with the same id
+     * exists it is replaced, keeping its sum of children and subtree sum.
+     * @param transaction
+     */
+    void put(Transaction transaction);
+
+    /**
+     * Adds the amount to the sum of children of an existing transaction.
+     * @param id
+     * @param amount
+     */
+    void addToSumOfChildren(long id, double amount);
+
+    /**
+     * Adds the amount to the subtree sum of an existing transaction.
+     * @param id
+     * @param amount
+     */
+    void addToSubtreeSum(long id, double amount);
+
+    /**
+     * Visits the id and the parent id of every stored transaction, in no particular order.
+     * Transactions changed meanwhile may or may not be visited.
+     * @param consumer
+     */
+    void forEachParentId(ParentIdConsumer consumer);
+
+    /**
+     * Removes every transaction, to load other data. Nothing else must use the store meanwhile.
+     */
+    void clear();
+
+    /**
+     * @return an empty store of the same kind, split in as many shards
+     */
+    TransactionStore newEmpty();
+
+    /**
+     * @return the number of stored transactions
+     */
+    int size();
+
+    /**
+     * @return an estimate of the memory used by the stored data, in bytes
+     */
+    long estimatedBytes();
+
+    /**
+     * Receives an id and its parent id, {@link #NO_ID} if it has none, without boxing.
+     */
+    @FunctionalInterface
+    interface ParentIdConsumer {
+        void accept(long id, long parentId);
+    }
+}
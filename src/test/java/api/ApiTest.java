@@ -13,7 +13,12 @@ import spark.SparkBase;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNotNull;
+import static junit.framework.TestCase.assertNull;
+import static junit.framework.TestCase.assertTrue;
 import static net.javacrumbs.jsonunit.fluent.JsonFluentAssert.assertThatJson;
 
 /**
@@ -133,9 +138,189 @@ public class ApiTest {
         assertEquals(404, response.getStatus());
     }
 
+    @Test
+    public void invalidTransactionSubtreeSumGet() throws IOException, ServletException {
+        HttpServletResponse response = mockServer.mockRequest("GET", "/transactionservice/subtreesum/1/", "");
+        assertEquals(404, response.getStatus());
+        assertThatJson(response.getOutputStream().toString())
+                .node("errors[0]").isEqualTo("Transaction id 1 not found.");
+    }
+
     @Test
     public void invalidTransactionTypeGet() throws IOException, ServletException {
         HttpServletResponse response = mockServer.mockRequest("GET", "/transactionservice/type/boats/", "");
         assertEquals(404, response.getStatus());
     }
+
+    @Test
+    public void validBatchPut() throws IOException, ServletException {
+        HttpServletResponse response = mockServer.mockRequest("PUT", "/transactionservice/transactions/",
+                "[{\"id\": 2, \"parentId\": 1, \"transactionType\" : \"CARS\", \"amount\": 5.0}," +
+                        "{\"id\": 1, \"transactionType\" : \"CARS\", \"amount\": 10.0}," +
+                        "{\"id\": 3, \"amount\": 10.0}]");
+        assertEquals(200, response.getStatus());
+        assertThatJson(response.getOutputStream().toString()).isArray().ofLength(3);
+        assertThatJson(response.getOutputStream().toString()).node("[0].status").isEqualTo("ok");
+        assertThatJson(response.getOutputStream().toString()).node("[1].status").isEqualTo("ok");
+        assertThatJson(response.getOutputStream().toString()).node("[2].status").isEqualTo("nok");
+        assertEquals(5.0, transactionService.getChildrenSum(1L));
+    }
+
+    @Test
+    public void validNdjsonBatchPut() throws IOException, ServletException {
+        HttpServletResponse response = mockServer.mockRequest("PUT", "/transactionservice/transactions/",
+                "{\"id\": 1, \"transactionType\" : \"CARS\", \"amount\": 10.0}\n" +
+                        "{\"id\": 2, \"parentId\": 1, \"transactionType\" : \"CARS\", \"amount\": 5.0}\n");
+        assertEquals(200, response.getStatus());
+        assertThatJson(response.getOutputStream().toString()).isArray().ofLength(2);
+        assertEquals(5.0, transactionService.getChildrenSum(1L));
+    }
+
+    @Test
+    public void invalidJSONBatchPut() throws IOException, ServletException {
+        HttpServletResponse response = mockServer.mockRequest("PUT", "/transactionservice/transactions/",
+                "[{\"id\": 1, \"transactionType\" : \"CARS\", \"amount\": 10.0}, <hi>");
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void validStreamPut() throws IOException, ServletException {
+        StringBuilder body = new StringBuilder("{\"id\": 0, \"transactionType\" : \"CARS\", \"amount\": 1.0}\n");
+        for (int i = 1; i <= 2500; i++) {
+            body.append("{\"id\": ").append(i).append(", \"parentId\": 0, \"transactionType\" : \"CARS\", \"amount\": 1.0}\n");
+        }
+        body.append("{\"id\": 2501, \"parentId\": 3000, \"transactionType\" : \"CARS\", \"amount\": 1.0}\n");
+        HttpServletResponse response = mockServer.mockRequest("PUT", "/transactionservice/transactions/stream/", body.toString());
+        assertEquals(200, response.getStatus());
+
+        String[] lines = response.getOutputStream().toString().split("\n");
+        assertEquals(4, lines.length);
+        assertThatJson(lines[0]).node("processed").isEqualTo(1000);
+        assertThatJson(lines[2]).node("errors").isArray().ofLength(1);
+        assertThatJson(lines[3]).node("status").isEqualTo("ok");
+        assertThatJson(lines[3]).node("processed").isEqualTo(2502);
+        assertThatJson(lines[3]).node("failed").isEqualTo(1);
+        assertEquals(2500.0, transactionService.getChildrenSum(0L));
+    }
+
+    @Test
+    public void invalidJSONStreamPut() throws IOException, ServletException {
+        HttpServletResponse response = mockServer.mockRequest("PUT", "/transactionservice/transactions/stream/",
+                "{\"id\": 1, \"transactionType\" : \"CARS\", \"amount\": 10.0}\n<hi>");
+        assertEquals(400, response.getStatus());
+    }
+
+    @Test
+    public void validMultipleTypeGet() throws IOException, ServletException {
+        transactionService.insert(new Transaction(3L, 10.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.AUDIO));
+        transactionService.insert(new Transaction(2L, 10.0, null, TransactionType.VIDEO));
+        HttpServletResponse response = mockServer.mockRequest("GET", "/transactionservice/type/cars,audio/", "");
+        assertEquals(200, response.getStatus());
+        JsonAssert.assertJsonEquals("[1, 3]", response.getOutputStream().toString());
+    }
+
+    @Test
+    public void metricsGet() throws IOException, ServletException {
+        mockServer.mockRequest("PUT", "/transactionservice/transaction/1/", "{\"amount\": 10.0, \"transactionType\" : \"CARS\"}");
+        mockServer.mockRequest("GET", "/transactionservice/transaction/1/", "");
+        mockServer.mockRequest("GET", "/transactionservice/transaction/2/", "");
+        HttpServletResponse response = mockServer.mockRequest("GET", "/metrics", "");
+        assertEquals(200, response.getStatus());
+        final String metrics = response.getOutputStream().toString();
+        assertTrue(metrics.contains("transactionservice_request_duration_seconds_count{route=\"get_transaction\"} 2\n"));
+        assertTrue(metrics.contains("transactionservice_request_duration_seconds_count{route=\"put_transaction\"} 1\n"));
+        assertTrue(metrics.contains("transactionservice_errors_total{exception=\"TransactionNotFoundException\"} 1\n"));
+        assertTrue(metrics.contains("transactionservice_transactions 1\n"));
+        assertTrue(metrics.contains("transactionservice_type_transactions{type=\"cars\"} 1\n"));
+        assertTrue(metrics.contains("transactionservice_lock_wait_seconds_count{lock=\"stripe\"} 1\n"));
+    }
+
+    @Test
+    public void conditionalGet() throws IOException, ServletException {
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 5.0, 1L, TransactionType.CARS));
+        HttpServletResponse response = mockServer.mockRequest("GET", "/transactionservice/sum/1/", "");
+        final String sumTag = response.getHeader("ETag");
+        response = mockServer.mockRequest("GET", "/transactionservice/transaction/2/", "");
+        final String transactionTag = response.getHeader("ETag");
+        response = mockServer.mockRequest("GET", "/transactionservice/type/cars/", "");
+        final String typeTag = response.getHeader("ETag");
+
+        response = mockServer.mockRequest("GET", "/transactionservice/sum/1/", "",
+                Collections.singletonMap("If-None-Match", sumTag));
+        assertEquals(304, response.getStatus());
+        assertEquals("", response.getOutputStream().toString());
+        response = mockServer.mockRequest("GET", "/transactionservice/sum/1/", "",
+                Collections.singletonMap("If-None-Match", "\"other\" ,W/" + sumTag + " "));
+        assertEquals(304, response.getStatus());
+        response = mockServer.mockRequest("GET", "/transactionservice/sum/1/", "",
+                Collections.singletonMap("If-None-Match", "\"other\", " + sumTag.substring(1)));
+        assertEquals(200, response.getStatus());
+
+        // a new child changes the sum and the type, not the other transaction
+        transactionService.insert(new Transaction(3L, 1.0, 1L, TransactionType.CARS));
+        response = mockServer.mockRequest("GET", "/transactionservice/sum/1/", "",
+                Collections.singletonMap("If-None-Match", sumTag));
+        assertEquals(200, response.getStatus());
+        assertThatJson(response.getOutputStream().toString()).node("amount").isEqualTo(6.0);
+        response = mockServer.mockRequest("GET", "/transactionservice/type/cars/", "",
+                Collections.singletonMap("If-None-Match", typeTag));
+        assertEquals(200, response.getStatus());
+        response = mockServer.mockRequest("GET", "/transactionservice/transaction/2/", "",
+                Collections.singletonMap("If-None-Match", transactionTag));
+        assertEquals(304, response.getStatus());
+    }
+
+    @Test
+    public void conditionalMissingGet() throws IOException, ServletException {
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        for (String path : Arrays.asList("/transactionservice/transaction/", "/transactionservice/sum/")) {
+            HttpServletResponse response = mockServer.mockRequest("GET", path + "2/", "",
+                    Collections.singletonMap("If-None-Match", "*"));
+            assertEquals(404, response.getStatus());
+            assertNull(response.getHeader("ETag"));
+            response = mockServer.mockRequest("GET", path + "1/", "",
+                    Collections.singletonMap("If-None-Match", "*"));
+            assertEquals(304, response.getStatus());
+            assertNotNull(response.getHeader("ETag"));
+        }
+    }
+
+    @Test
+    public void cachedGet() throws IOException, ServletException {
+        // off by default
+        mockServer.clear();
+        System.setProperty(Api.CACHE_BYTES_PROPERTY, String.valueOf(1L << 20));
+        try {
+            new Api(transactionService);
+        } finally {
+            System.clearProperty(Api.CACHE_BYTES_PROPERTY);
+        }
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 5.0, 1L, TransactionType.CARS));
+        for (int i = 0; i < 2; i++) {
+            HttpServletResponse response = mockServer.mockRequest("GET", "/transactionservice/sum/1/", "");
+            assertThatJson(response.getOutputStream().toString()).node("amount").isEqualTo(5.0);
+            response = mockServer.mockRequest("GET", "/transactionservice/transaction/2/", "");
+            assertThatJson(response.getOutputStream().toString()).node("amount").isEqualTo(5.0);
+        }
+
+        // moving the child drops the sums of both parents and the child itself
+        transactionService.insert(new Transaction(3L, 1.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 7.0, 3L, TransactionType.CARS));
+        HttpServletResponse response = mockServer.mockRequest("GET", "/transactionservice/sum/1/", "");
+        assertThatJson(response.getOutputStream().toString()).node("amount").isEqualTo(0.0);
+        response = mockServer.mockRequest("GET", "/transactionservice/sum/3/", "");
+        assertThatJson(response.getOutputStream().toString()).node("amount").isEqualTo(7.0);
+        response = mockServer.mockRequest("GET", "/transactionservice/transaction/2/", "");
+        assertThatJson(response.getOutputStream().toString()).node("parentId").isEqualTo(3);
+
+        response = mockServer.mockRequest("GET", "/metrics", "");
+        final String metrics = response.getOutputStream().toString();
+        assertTrue(metrics.contains("transactionservice_cache_hits_total{cache=\"transaction\"} 1\n"));
+        assertTrue(metrics.contains("transactionservice_cache_hits_total{cache=\"sum\"} 1\n"));
+        assertTrue(metrics.contains("transactionservice_cache_misses_total{cache=\"sum\"} 3\n"));
+        assertTrue(metrics.contains("transactionservice_cache_entries{cache=\"sum\"} 2\n"));
+    }
 }
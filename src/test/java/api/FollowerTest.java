@@ -0,0 +1,145 @@
+package api;
+
+import metrics.MetricsWriter;
+import model.Transaction;
+import model.TransactionType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import service.TransactionService;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests a follower against a leader serving its log and its snapshots over HTTP, with the
+ * HTTP server of the JDK so that Spark is left to the other tests.
+ *
+ * Created by simone on 09/03/16.
+ */
+public class FollowerTest {
+
+    private final TransactionService leader = new TransactionService();
+    private final Replication leaderReplication = Replication.leader(8);
+    private final TransactionService follower = new TransactionService();
+    private Replication followerReplication;
+    private com.sun.net.httpserver.HttpServer server;
+    /**
+     * Answers the requests for the log with 503, as a leader out of reach.
+     */
+    private volatile boolean logDown;
+
+    private interface Answer {
+        void write(HttpServletResponse response) throws Exception;
+    }
+
+    @Before
+    public void startLeader() throws IOException {
+        leaderReplication.start(leader);
+        server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext(Replication.SNAPSHOT_PATH, exchange ->
+                answer(exchange, response -> leaderReplication.writeSnapshot(leader, response)));
+        server.createContext(Replication.LOG_PATH, exchange -> {
+            if (logDown) {
+                exchange.sendResponseHeaders(HttpServletResponse.SC_SERVICE_UNAVAILABLE, -1);
+                exchange.close();
+                return;
+            }
+            final Map<String, String> query = new HashMap<>();
+            for (String parameter : exchange.getRequestURI().getQuery().split("&")) {
+                final String[] pair = parameter.split("=");
+                query.put(pair[0], pair[1]);
+            }
+            answer(exchange, response -> leaderReplication.writeLog(Long.parseLong(query.get("after")),
+                    Integer.parseInt(query.get("limit")), Long.parseLong(query.get("wait")), response));
+        });
+        server.start();
+    }
+
+    @After
+    public void stop() {
+        if (followerReplication != null) {
+            followerReplication.close();
+        }
+        server.stop(0);
+    }
+
+    @Test
+    public void fellOffTheLogTest() throws Exception {
+        leader.insert(new Transaction(1L, 1.0, null, TransactionType.CARS));
+        followerReplication = Replication.follower("localhost:" + server.getAddress().getPort());
+        followerReplication.start(follower);
+        assertTrue(follower.exists(1L));
+
+        // more insertions than the log keeps while the follower cannot read it
+        logDown = true;
+        for (long id = 2; id <= 20; id++) {
+            leader.insert(new Transaction(id, 1.0, 1L, TransactionType.CARS));
+        }
+        logDown = false;
+        leader.insert(new Transaction(21L, 1.0, 1L, TransactionType.AUDIO));
+
+        await(() -> follower.exists(21L) && !followerReplication.isDiverged());
+        assertEquals(leader.getChildrenSum(1L), follower.getChildrenSum(1L));
+        assertEquals(leader.getChildren(1L, null, 100).getIds(), follower.getChildren(1L, null, 100).getIds());
+        assertEquals(20, follower.getByType(TransactionType.CARS).size());
+        final MetricsWriter metrics = new MetricsWriter();
+        followerReplication.writeMetrics(metrics);
+        assertTrue(metrics.toString().contains("transactionservice_replication_resyncs_total 1\n"));
+
+        // and follows again from the new snapshot
+        leader.insert(new Transaction(22L, 1.0, 21L, TransactionType.AUDIO));
+        await(() -> follower.exists(22L));
+        assertEquals(1.0, follower.getChildrenSum(21L));
+        assertFalse(followerReplication.isDiverged());
+    }
+
+    /**
+     * Answers the exchange with what the leader writes on a servlet response.
+     */
+    private static void answer(com.sun.net.httpserver.HttpExchange exchange, Answer answer) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final int[] status = {HttpServletResponse.SC_OK};
+        final HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+                body.write(b);
+            }
+        });
+        Mockito.doAnswer(invocation -> status[0] = (Integer) invocation.getArguments()[0])
+                .when(response).setStatus(Mockito.anyInt());
+        try {
+            answer.write(response);
+        } catch (Exception e) {
+            status[0] = HttpServletResponse.SC_INTERNAL_SERVER_ERROR;
+        }
+        exchange.sendResponseHeaders(status[0], body.size() == 0 ? -1 : body.size());
+        try (OutputStream output = exchange.getResponseBody()) {
+            body.writeTo(output);
+        }
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.nanoTime() < deadline);
+            TimeUnit.MILLISECONDS.sleep(20);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package api;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import spark.Spark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * Tests the routes of Spark served over HTTP by {@link HttpServer}, in both execution modes.
+ * The virtual mode is skipped before Java 21.
+ *
+ * Created by simone on 09/03/16.
+ */
+public class HttpServerTest {
+
+    private static final int MAX_THREADS = 8;
+
+    /**
+     * Released at the end of each test, the routes are added once for all of them.
+     */
+    private static volatile CountDownLatch release = new CountDownLatch(1);
+
+    private HttpServer server;
+
+    @After
+    public void stop() throws Exception {
+        release.countDown();
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void poolTest() throws Exception {
+        start(ServerSettings.ExecutionMode.POOL);
+        assertEquals("false", get("/httpservertest/virtual"));
+        assertEquals(404, connect("/httpservertest/missing").getResponseCode());
+    }
+
+    @Test
+    public void virtualTest() throws Exception {
+        Assume.assumeTrue("Virtual threads need Java 21", virtualThreadsAvailable());
+        start(ServerSettings.ExecutionMode.VIRTUAL);
+        assertEquals("true", get("/httpservertest/virtual"));
+        assertEquals(404, connect("/httpservertest/missing").getResponseCode());
+
+        // more blocked handlers than pool threads
+        release = new CountDownLatch(1);
+        final ExecutorService clients = Executors.newFixedThreadPool(MAX_THREADS * 2);
+        try {
+            final List<Future<String>> blocked = new ArrayList<>();
+            for (int i = 0; i < MAX_THREADS * 2; i++) {
+                blocked.add(clients.submit(() -> get("/httpservertest/blocked")));
+            }
+            assertEquals("true", get("/httpservertest/virtual"));
+            release.countDown();
+            for (Future<String> response : blocked) {
+                assertEquals("released", response.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            clients.shutdownNow();
+        }
+    }
+
+    private void start(ServerSettings.ExecutionMode executionMode) throws Exception {
+        server = new HttpServer(new ServerSettings(MAX_THREADS, 2, 30000, 0, 1, 1, executionMode), 0);
+        server.start(() -> {
+            Spark.get("/httpservertest/virtual", (req, res) -> String.valueOf(isVirtual()));
+            Spark.get("/httpservertest/blocked", (req, res) -> {
+                release.await(10, TimeUnit.SECONDS);
+                return "released";
+            });
+        });
+    }
+
+    private HttpURLConnection connect(String path) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getPort() + path)
+                .openConnection();
+        connection.setConnectTimeout(10000);
+        connection.setReadTimeout(10000);
+        return connection;
+    }
+
+    private String get(String path) throws IOException {
+        final HttpURLConnection connection = connect(path);
+        assertEquals(200, connection.getResponseCode());
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try (InputStream input = connection.getInputStream()) {
+            final byte[] buffer = new byte[1024];
+            for (int read; (read = input.read(buffer)) > 0; ) {
+                body.write(buffer, 0, read);
+            }
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static boolean virtualThreadsAvailable() {
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Calls Thread.isVirtual(), which is missing before Java 21.
+     */
+    private static boolean isVirtual() {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+}
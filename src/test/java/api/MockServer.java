@@ -17,7 +17,10 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Optional;
 
 import static org.mockito.Mockito.mock;
@@ -89,11 +92,34 @@ public class MockServer {
     }
 
     public HttpServletResponse mockRequest(String method, String endpoint, String body) throws IOException, ServletException {
+        return mockRequest(method, endpoint, body, Collections.emptyMap());
+    }
+
+    /**
+     * Sends a request with the given headers. The headers set on the response can be read back.
+     */
+    public HttpServletResponse mockRequest(String method, String endpoint, String body, Map<String, String> headers) throws IOException, ServletException {
         HttpServletRequest request = mock(HttpServletRequest.class);
         HttpServletResponse response = mock(HttpServletResponse.class);
 
         when(request.getPathInfo()).thenReturn(endpoint);
         when(request.getMethod()).thenReturn(method);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            when(request.getHeader(header.getKey())).thenReturn(header.getValue());
+        }
+
+        final Map<String, String> responseHeaders = new HashMap<>();
+        Mockito.doAnswer(new Answer<Void>() {
+            public Void answer(InvocationOnMock invocation) {
+                responseHeaders.put((String) invocation.getArguments()[0], (String) invocation.getArguments()[1]);
+                return null;
+            }
+        }).when(response).addHeader(Mockito.anyString(), Mockito.anyString());
+        when(response.getHeader(Mockito.anyString())).thenAnswer(new Answer<String>() {
+            public String answer(InvocationOnMock invocation) {
+                return responseHeaders.get(invocation.getArguments()[0]);
+            }
+        });
 
         when(request.getInputStream()).thenReturn(new DelegatingServletInputStream(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8))));
         when(request.getHeaders("Accept-Content")).thenReturn(new Enumeration<String>() {
@@ -0,0 +1,65 @@
+package benchmark;
+
+import model.Transaction;
+import model.TransactionType;
+import service.TransactionService;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares the throughput of single inserts against batches of growing size.
+ *
+ *     java -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.BatchInsertBenchmark 1000000
+ *
+ * Created by simone on 22/02/16.
+ */
+public class BatchInsertBenchmark {
+
+    private static final int[] BATCH_SIZES = {1, 10, 100, 1000, 10000};
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        final List<Transaction> transactions = transactions(count);
+
+        // warm up
+        runSingle(transactions);
+        runBatches(transactions, 1000);
+
+        System.out.printf("%-10s %,12.0f tx/s%n", "single", runSingle(transactions));
+        for (int batchSize : BATCH_SIZES) {
+            System.out.printf("%-10s %,12.0f tx/s%n", "batch " + batchSize, runBatches(transactions, batchSize));
+        }
+    }
+
+    private static double runSingle(List<Transaction> transactions) {
+        final TransactionService service = new TransactionService();
+        final long start = System.nanoTime();
+        for (Transaction transaction : transactions) {
+            service.insert(transaction);
+        }
+        return transactions.size() * 1e9 / (System.nanoTime() - start);
+    }
+
+    private static double runBatches(List<Transaction> transactions, int batchSize) {
+        final TransactionService service = new TransactionService();
+        final long start = System.nanoTime();
+        for (int from = 0; from < transactions.size(); from += batchSize) {
+            service.insertAll(transactions.subList(from, Math.min(from + batchSize, transactions.size())));
+        }
+        return transactions.size() * 1e9 / (System.nanoTime() - start);
+    }
+
+    /**
+     * A forest of binary trees, each transaction follows its parent.
+     */
+    static List<Transaction> transactions(int count) {
+        final TransactionType[] types = TransactionType.values();
+        final List<Transaction> transactions = new ArrayList<>(count);
+        for (long id = 0; id < count; id++) {
+            final Long parentId = id % 1000 == 0 ? null : id - id % 1000 + (id % 1000 - 1) / 2;
+            transactions.add(new Transaction(id, 1.0, parentId, types[(int) (id % types.length)]));
+        }
+        return transactions;
+    }
+}
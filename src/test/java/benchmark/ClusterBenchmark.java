@@ -0,0 +1,283 @@
+package benchmark;
+
+import api.Cluster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Starts clusters of growing size as local processes and measures the throughput of
+ * a closed loop of clients against each: half insertions under a parent, most often kept
+ * by another node, and half reads of transactions and sums. Once the changes sent between
+ * the nodes are all applied, the sums of the parents are checked against the amounts
+ * inserted.
+ *
+ * Settings are system properties:
+ * <ul>
+ *     <li>nodes: sizes of the clusters, "1,2,4" by default</li>
+ *     <li>duration: seconds measured for each cluster, after as many seconds of warm up, 10 by default</li>
+ *     <li>clients: client threads, 32 by default</li>
+ *     <li>routing: "client" to send each request to the node of its transaction, "any" to send it
+ *     to any node, which forwards it. "client" by default</li>
+ *     <li>port: port of the first node, the others follow, 4600 by default</li>
+ *     <li>server.java, server.args: as for {@link LoadGenerator}</li>
+ * </ul>
+ *
+ *     java -Dnodes=1,2,4 -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.ClusterBenchmark
+ *
+ * Created by simone on 06/03/16.
+ */
+public class ClusterBenchmark {
+
+    /**
+     * Transactions without a parent, spread over the nodes by the range.
+     */
+    private static final int ROOTS = 1000;
+    private static final int RANGE = 100;
+    private static final Pattern PENDING = Pattern.compile("transactionservice_cluster_deltas_pending\\{[^}]*} (\\S+)");
+
+    private final int duration = Integer.getInteger("duration", 10);
+    private final int clients = Integer.getInteger("clients", 32);
+    private final boolean anyNode = "any".equals(System.getProperty("routing", "client"));
+    private final int firstPort = Integer.getInteger("port", 4600);
+
+    public static void main(String[] args) throws Exception {
+        final ClusterBenchmark benchmark = new ClusterBenchmark();
+        System.setProperty("http.maxConnections", String.valueOf(benchmark.clients));
+        double base = 0;
+        for (String nodes : System.getProperty("nodes", "1,2,4").split(",")) {
+            final double throughput = benchmark.run(Integer.parseInt(nodes.trim()));
+            if (base == 0) {
+                base = throughput;
+            }
+            System.out.printf("%2s nodes %,10.0f requests/s  %5.2fx%n", nodes.trim(), throughput, throughput / base);
+        }
+    }
+
+    private double run(int size) throws Exception {
+        final StringBuilder addresses = new StringBuilder();
+        for (int node = 0; node < size; node++) {
+            addresses.append(node == 0 ? "" : ",").append("localhost:").append(firstPort + node);
+        }
+        final List<Process> servers = new ArrayList<>();
+        try {
+            for (int node = 0; node < size; node++) {
+                servers.add(start(node, addresses.toString()));
+            }
+            for (int node = 0; node < size; node++) {
+                awaitNode(node);
+            }
+            for (long id = 0; id < ROOTS; id++) {
+                put(node(id, size, new Random()), id, 1.0, null);
+            }
+
+            final AtomicLong nextId = new AtomicLong(ROOTS);
+            final DoubleAdder[] sums = new DoubleAdder[ROOTS];
+            for (int i = 0; i < ROOTS; i++) {
+                sums[i] = new DoubleAdder();
+            }
+            // warm up
+            load(size, duration, nextId, sums);
+            final double throughput = load(size, duration, nextId, sums);
+
+            awaitDeltas(size);
+            int wrong = 0;
+            for (long id = 0; id < ROOTS; id++) {
+                if (Math.abs(sum(node(id, size, new Random()), id) - sums[(int) id].sum()) > 1e-6) {
+                    wrong++;
+                }
+            }
+            if (wrong > 0) {
+                System.out.printf("  %d sums out of %d are wrong%n", wrong, ROOTS);
+            }
+            return throughput;
+        } finally {
+            for (Process server : servers) {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    private Process start(int node, String addresses) throws IOException {
+        final List<String> command = new ArrayList<>(Arrays.asList(
+                System.getProperty("server.java", new File(System.getProperty("java.home"), "bin/java").getPath()),
+                "-Dtransactionservice.port=" + (firstPort + node),
+                "-D" + Cluster.NODES_PROPERTY + "=" + addresses,
+                "-D" + Cluster.NODE_PROPERTY + "=" + node,
+                "-D" + Cluster.RANGE_PROPERTY + "=" + RANGE));
+        if (!System.getProperty("server.args", "").trim().isEmpty()) {
+            command.addAll(Arrays.asList(System.getProperty("server.args").trim().split("\\s+")));
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "Main"));
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "cluster-node-" + node + ".log"))
+                .start();
+    }
+
+    /**
+     * Runs the clients for some seconds.
+     * @return the requests per second
+     */
+    private double load(int size, int seconds, AtomicLong nextId, DoubleAdder[] sums) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong errors = new AtomicLong();
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        final List<Future<Long>> counts = new ArrayList<>();
+        for (int client = 0; client < clients; client++) {
+            final long seed = client;
+            counts.add(executor.submit(() -> {
+                final Random random = new Random(seed);
+                long requests = 0;
+                while (running.get()) {
+                    final boolean ok;
+                    if (random.nextBoolean()) {
+                        final long id = nextId.getAndIncrement();
+                        final int parentId = random.nextInt(ROOTS);
+                        final double amount = random.nextInt(100);
+                        ok = put(node(id, size, random), id, amount, (long) parentId);
+                        if (ok) {
+                            sums[parentId].add(amount);
+                        }
+                    } else {
+                        final long id = random.nextInt(ROOTS);
+                        ok = get(node(id, size, random), (random.nextBoolean() ? "/transaction/" : "/sum/") + id + "/");
+                    }
+                    if (!ok) {
+                        errors.incrementAndGet();
+                    }
+                    requests++;
+                }
+                return requests;
+            }));
+        }
+        final long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        long requests = 0;
+        for (Future<Long> count : counts) {
+            requests += count.get();
+        }
+        final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        executor.shutdown();
+        if (errors.get() > 0) {
+            System.out.printf("  %,d errors%n", errors.get());
+        }
+        return requests / elapsedSeconds;
+    }
+
+    /**
+     * @return the node to send a request about the transaction to
+     */
+    private int node(long id, int size, Random random) {
+        return anyNode ? random.nextInt(size) : (int) (id / RANGE % size);
+    }
+
+    private boolean put(int node, long id, double amount, Long parentId) {
+        try {
+            final HttpURLConnection connection = open(node, "/transactionservice/transaction/" + id + "/");
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            final String body = "{\"amount\": " + amount + ", "
+                    + (parentId != null ? "\"parentId\": " + parentId + ", " : "")
+                    + "\"transactionType\": \"CARS\"}";
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            return read(connection) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean get(int node, String path) {
+        try {
+            return read(open(node, "/transactionservice" + path)) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private double sum(int node, long id) throws IOException {
+        final String body = read(open(node, "/transactionservice/sum/" + id + "/"));
+        final Matcher amount = Pattern.compile("\"amount\"\\s*:\\s*([-0-9.Ee]+)").matcher(body == null ? "" : body);
+        return amount.find() ? Double.parseDouble(amount.group(1)) : Double.NaN;
+    }
+
+    /**
+     * Waits until no node has changes left to send.
+     */
+    private void awaitDeltas(int size) throws Exception {
+        int idle = 0;
+        for (int attempt = 0; attempt < 600; attempt++) {
+            double pending = 0;
+            for (int node = 0; node < size; node++) {
+                final Matcher matcher = PENDING.matcher(read(open(node, "/metrics")));
+                while (matcher.find()) {
+                    pending += Double.parseDouble(matcher.group(1));
+                }
+            }
+            // twice in a row, as a batch being taken off the queue is not counted
+            idle = pending == 0 ? idle + 1 : 0;
+            if (idle == 2) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("The changes between the nodes were not applied.");
+    }
+
+    private void awaitNode(int node) throws InterruptedException {
+        for (int attempt = 0; attempt < 300; attempt++) {
+            try {
+                if (read(open(node, "/transactionservice/type/cars/?local")) != null) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not started yet
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("Node " + node + " did not start.");
+    }
+
+    private HttpURLConnection open(int node, String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + (firstPort + node) + path).openConnection();
+    }
+
+    /**
+     * Reads the whole response, so that the connection is kept alive.
+     * @return the body, null if the request failed
+     */
+    private static String read(HttpURLConnection connection) throws IOException {
+        final int status = connection.getResponseCode();
+        try (InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            final StringBuilder body = new StringBuilder();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while (input != null && (read = input.read(buffer)) >= 0) {
+                body.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+            return status < 400 ? body.toString() : null;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package benchmark;
+
+import api.ServerSettings;
+import org.HdrHistogram.Histogram;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load test against the real server, started as a separate process once for each
+ * setting of its threading.
+ *
+ * Requests are sent at a fixed rate whatever the response times (open loop): request i
+ * is due at start + i / rate, and its latency is measured from that time, not from the
+ * time it could actually be sent. A slow server is then charged for the requests it
+ * delays too, instead of slowing the generator down and hiding them (coordinated omission).
+ *
+ * Settings are system properties:
+ * <ul>
+ *     <li>rate: requests per second, 2000 by default</li>
+ *     <li>duration: seconds measured for each setting, after as many seconds of warm up, 20 by default</li>
+ *     <li>mix: weights of the requests, "get=60,put=20,sum=15,type=5" by default</li>
+ *     <li>pools: threading settings as [virtual:]maxThreads/minThreads/timeOutMillis[/queue[/acceptors/selectors]],
+ *     "8/2/30000,32/8/30000" by default. With "virtual:" the requests are handled on virtual threads</li>
+ *     <li>server.java: java executable of the server, e.g. a Java 21 one for virtual threads</li>
+ *     <li>server.args: more JVM options of the server, separated by spaces</li>
+ *     <li>preload: transactions inserted before the test, 100000 by default</li>
+ *     <li>clients: client threads, 64 by default</li>
+ * </ul>
+ *
+ *     java -Drate=5000 -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.LoadGenerator
+ *
+ * Created by simone on 02/03/16.
+ */
+public class LoadGenerator {
+
+    private static final String BASE_URL = "http://localhost:4567/transactionservice";
+    private static final String[] OPERATIONS = {"get", "put", "sum", "type"};
+    private static final String[] TYPES = {"shopping", "cars", "audio", "video", "generic"};
+    private static final long HIGHEST_LATENCY = TimeUnit.MINUTES.toNanos(1);
+
+    private final int rate = Integer.getInteger("rate", 2000);
+    private final int duration = Integer.getInteger("duration", 20);
+    private final int preload = Integer.getInteger("preload", 100000);
+    private final int clients = Integer.getInteger("clients", 64);
+    private final int[] weights = weights(System.getProperty("mix", "get=60,put=20,sum=15,type=5"));
+
+    public static void main(String[] args) throws Exception {
+        final LoadGenerator generator = new LoadGenerator();
+        System.setProperty("http.maxConnections", String.valueOf(generator.clients));
+        for (String pool : System.getProperty("pools", "8/2/30000,32/8/30000").split(",")) {
+            generator.run(pool.trim());
+        }
+    }
+
+    private void run(String setting) throws Exception {
+        final boolean virtual = setting.startsWith("virtual:");
+        final String[] pool = setting.substring(virtual ? "virtual:".length() : 0).split("/");
+        final List<String> command = new ArrayList<>(Arrays.asList(
+                System.getProperty("server.java", new File(System.getProperty("java.home"), "bin/java").getPath()),
+                "-D" + ServerSettings.MAX_THREADS_PROPERTY + "=" + pool[0],
+                "-D" + ServerSettings.MIN_THREADS_PROPERTY + "=" + pool[1],
+                "-D" + ServerSettings.TIMEOUT_PROPERTY + "=" + pool[2],
+                "-D" + ServerSettings.EXECUTION_PROPERTY + "=" + (virtual ? "virtual" : "pool")));
+        if (!System.getProperty("server.args", "").trim().isEmpty()) {
+            command.addAll(Arrays.asList(System.getProperty("server.args").trim().split("\\s+")));
+        }
+        if (pool.length > 3) {
+            command.add("-D" + ServerSettings.QUEUE_PROPERTY + "=" + pool[3]);
+        }
+        if (pool.length > 5) {
+            command.add("-D" + ServerSettings.ACCEPTORS_PROPERTY + "=" + pool[4]);
+            command.add("-D" + ServerSettings.SELECTORS_PROPERTY + "=" + pool[5]);
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "Main"));
+        final Process server = new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "load-server.log"))
+                .start();
+        try {
+            awaitServer();
+            for (long id = 0; id < preload; id++) {
+                request("put", id, new Random(id));
+            }
+            System.out.printf("%s at %,d requests/s%n", setting, rate);
+            // warm up
+            load(duration);
+            final Histogram[] histograms = load(duration);
+
+            final Histogram all = new Histogram(HIGHEST_LATENCY, 3);
+            for (int operation = 0; operation < OPERATIONS.length; operation++) {
+                if (histograms[operation].getTotalCount() > 0) {
+                    print(OPERATIONS[operation], histograms[operation]);
+                    all.add(histograms[operation]);
+                }
+            }
+            print("all", all);
+        } finally {
+            server.destroy();
+            server.waitFor();
+        }
+    }
+
+    /**
+     * Sends requests at the given rate for some seconds.
+     * @return the latencies of each operation
+     */
+    private Histogram[] load(int seconds) throws Exception {
+        final long total = (long) rate * seconds;
+        final long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        final AtomicLong next = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final ExecutorService executor = Executors.newFixedThreadPool(clients);
+        final List<Future<Histogram[]>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+
+        for (int client = 0; client < clients; client++) {
+            final long seed = client;
+            futures.add(executor.submit(() -> {
+                final Random random = new Random(seed);
+                final Histogram[] histograms = histograms();
+                for (long i = next.getAndIncrement(); i < total; i = next.getAndIncrement()) {
+                    final long due = start + i * intervalNanos;
+                    for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    final int operation = pick(random);
+                    if (!request(OPERATIONS[operation], random.nextInt(preload), random)) {
+                        errors.incrementAndGet();
+                    }
+                    histograms[operation].recordValue(Math.min(System.nanoTime() - due, HIGHEST_LATENCY));
+                }
+                return histograms;
+            }));
+        }
+
+        final Histogram[] histograms = histograms();
+        for (Future<Histogram[]> future : futures) {
+            final Histogram[] clientHistograms = future.get();
+            for (int operation = 0; operation < OPERATIONS.length; operation++) {
+                histograms[operation].add(clientHistograms[operation]);
+            }
+        }
+        executor.shutdown();
+        final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("  %,d requests in %.1f s, %,.0f requests/s, %,d errors%n",
+                total, elapsedSeconds, total / elapsedSeconds, errors.get());
+        return histograms;
+    }
+
+    /**
+     * @return false if the request failed
+     */
+    private static boolean request(String operation, long id, Random random) {
+        try {
+            final HttpURLConnection connection;
+            switch (operation) {
+                case "put":
+                    connection = (HttpURLConnection) new URL(BASE_URL + "/transaction/" + id + "/").openConnection();
+                    connection.setRequestMethod("PUT");
+                    connection.setDoOutput(true);
+                    final String body = "{\"amount\": " + random.nextInt(1000) + ", "
+                            + (id >= 100 ? "\"parentId\": " + id % 100 + ", " : "")
+                            + "\"transactionType\": \"" + TYPES[(int) (id % TYPES.length)].toUpperCase() + "\"}";
+                    try (OutputStream output = connection.getOutputStream()) {
+                        output.write(body.getBytes(StandardCharsets.UTF_8));
+                    }
+                    break;
+                case "sum":
+                    connection = (HttpURLConnection) new URL(BASE_URL + "/sum/" + id + "/").openConnection();
+                    break;
+                case "type":
+                    connection = (HttpURLConnection) new URL(BASE_URL + "/type/"
+                            + TYPES[random.nextInt(TYPES.length)] + "/?limit=100&after=" + id).openConnection();
+                    break;
+                default:
+                    connection = (HttpURLConnection) new URL(BASE_URL + "/transaction/" + id + "/").openConnection();
+            }
+            final int status = connection.getResponseCode();
+            // Reads the whole response, so that the connection is kept alive.
+            try (InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+                final byte[] buffer = new byte[8192];
+                while (input != null && input.read(buffer) >= 0) {
+                    // discard
+                }
+            }
+            return status < 400;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private static void awaitServer() throws InterruptedException {
+        for (int attempt = 0; attempt < 300; attempt++) {
+            try {
+                final HttpURLConnection connection =
+                        (HttpURLConnection) new URL(BASE_URL + "/type/cars/").openConnection();
+                if (connection.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                    connection.getInputStream().close();
+                    return;
+                }
+            } catch (IOException e) {
+                // not started yet
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("The server did not start.");
+    }
+
+    private int pick(Random random) {
+        int value = random.nextInt(weights[weights.length - 1]);
+        int operation = 0;
+        while (value >= weights[operation]) {
+            operation++;
+        }
+        return operation;
+    }
+
+    /**
+     * @return the cumulative weights of the operations
+     */
+    private static int[] weights(String mix) {
+        final int[] weights = new int[OPERATIONS.length];
+        for (String entry : mix.split(",")) {
+            final String[] pair = entry.trim().split("=");
+            for (int operation = 0; operation < OPERATIONS.length; operation++) {
+                if (OPERATIONS[operation].equals(pair[0])) {
+                    weights[operation] = Integer.parseInt(pair[1]);
+                }
+            }
+        }
+        for (int operation = 1; operation < OPERATIONS.length; operation++) {
+            weights[operation] += weights[operation - 1];
+        }
+        return weights;
+    }
+
+    private static Histogram[] histograms() {
+        final Histogram[] histograms = new Histogram[OPERATIONS.length];
+        for (int operation = 0; operation < OPERATIONS.length; operation++) {
+            histograms[operation] = new Histogram(HIGHEST_LATENCY, 3);
+        }
+        return histograms;
+    }
+
+    private static void print(String name, Histogram histogram) {
+        System.out.printf("  %-5s %,9d  p50 %,9.0f us  p99 %,9.0f us  p99.9 %,9.0f us  max %,9.0f us%n",
+                name, histogram.getTotalCount(),
+                histogram.getValueAtPercentile(50) / 1e3,
+                histogram.getValueAtPercentile(99) / 1e3,
+                histogram.getValueAtPercentile(99.9) / 1e3,
+                histogram.getMaxValue() / 1e3);
+    }
+}
@@ -0,0 +1,94 @@
+package benchmark;
+
+import model.Transaction;
+import model.TransactionType;
+import service.TransactionService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how much moving transactions to other parents slows down the other writers:
+ * writer threads insert leaves under a fixed set of transactions while a mover thread
+ * keeps moving some of those between roots, as fast as it can or not at all.
+ *
+ * Settings are system properties:
+ * <ul>
+ *     <li>threads: writer threads, 4 by default</li>
+ *     <li>duration: seconds measured for each setting, after as many seconds of warm up, 5 by default</li>
+ * </ul>
+ *
+ *     java -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.MoveContentionBenchmark
+ *
+ * Created by simone on 09/03/16.
+ */
+public class MoveContentionBenchmark {
+
+    private static final int ROOTS = 100;
+    private static final int PARENTS = 10000;
+
+    private static final int THREADS = Integer.getInteger("threads", 4);
+    private static final int DURATION = Integer.getInteger("duration", 5);
+
+    public static void main(String[] args) throws Exception {
+        for (boolean moving : new boolean[]{false, true}) {
+            final TransactionService service = new TransactionService();
+            for (long id = 0; id < ROOTS; id++) {
+                service.insert(new Transaction(id, 1.0, null, TransactionType.CARS));
+            }
+            for (long id = ROOTS; id < ROOTS + PARENTS; id++) {
+                service.insert(new Transaction(id, 1.0, id % ROOTS, TransactionType.CARS));
+            }
+            final AtomicLong nextId = new AtomicLong(ROOTS + PARENTS);
+            // warm up
+            run(service, moving, nextId);
+            final long[] counts = run(service, moving, nextId);
+            System.out.printf("%-10s inserts %,10.0f/s  moves %,10.0f/s%n", moving ? "moving" : "not moving",
+                    (double) counts[0] / DURATION, (double) counts[1] / DURATION);
+        }
+    }
+
+    /**
+     * @return the inserts and the moves done in the duration
+     */
+    private static long[] run(TransactionService service, boolean moving, AtomicLong nextId) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final LongAdder inserts = new LongAdder();
+        final LongAdder moves = new LongAdder();
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            threads.add(new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    service.insert(new Transaction(nextId.getAndIncrement(), 1.0,
+                            (long) ROOTS + random.nextInt(PARENTS), TransactionType.CARS));
+                    inserts.increment();
+                }
+            }));
+        }
+        if (moving) {
+            threads.add(new Thread(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running.get()) {
+                    service.insert(new Transaction((long) ROOTS + random.nextInt(PARENTS), 1.0,
+                            (long) random.nextInt(ROOTS), TransactionType.CARS));
+                    moves.increment();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        TimeUnit.SECONDS.sleep(DURATION);
+        running.set(false);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return new long[]{inserts.sum(), moves.sum()};
+    }
+}
@@ -0,0 +1,127 @@
+package benchmark;
+
+import model.Transaction;
+import model.TransactionType;
+import service.TransactionService;
+import service.persistence.FsyncPolicy;
+import service.persistence.Persistence;
+import service.store.OffHeapTransactionStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Measures the insert latency added by the write-ahead log under each fsync policy,
+ * from one and from several threads sharing the fsyncs, and the recovery time per
+ * million transactions from the log alone and from a snapshot.
+ *
+ *     java -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.PersistenceBenchmark
+ *
+ * Created by simone on 28/02/16.
+ */
+public class PersistenceBenchmark {
+
+    private static final int TRANSACTIONS = 200000;
+    private static final int SYNCED_TRANSACTIONS = 5000;
+    private static final int RECOVERED_TRANSACTIONS = 1000000;
+    private static final int THREADS = 8;
+
+    public static void main(String[] args) throws Exception {
+        // warm up
+        for (int i = 0; i < 5; i++) {
+            insert(null, TRANSACTIONS, 1);
+            insert(FsyncPolicy.NEVER, TRANSACTIONS, 1);
+        }
+        System.out.println();
+
+        for (int threads : new int[]{1, THREADS}) {
+            insert(null, TRANSACTIONS, threads);
+            insert(FsyncPolicy.NEVER, TRANSACTIONS, threads);
+            insert(FsyncPolicy.INTERVAL, TRANSACTIONS, threads);
+            insert(FsyncPolicy.ALWAYS, SYNCED_TRANSACTIONS * threads, threads);
+        }
+
+        recover();
+    }
+
+    private static void insert(FsyncPolicy fsyncPolicy, int transactions, int threads) throws Exception {
+        final File directory = Files.createTempDirectory("wal").toFile();
+        final TransactionService service = open(directory, fsyncPolicy);
+        service.insert(new Transaction(0L, 1.0, null, TransactionType.GENERIC));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<?>> futures = new ArrayList<>();
+        final long start = System.nanoTime();
+        for (int thread = 0; thread < threads; thread++) {
+            final int first = thread;
+            futures.add(executor.submit(() -> {
+                for (long id = first + 1; id <= transactions; id += threads) {
+                    service.insert(new Transaction(id, 1.0, parentOf(id), TransactionType.CARS));
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        final double insertNanos = (double) (System.nanoTime() - start) * threads / transactions;
+        service.close();
+
+        System.out.printf("%-9s %d threads  insert %,10.0f ns%n",
+                fsyncPolicy == null ? "memory" : fsyncPolicy.name().toLowerCase(), threads, insertNanos);
+        delete(directory);
+    }
+
+    private static void recover() throws IOException {
+        final File directory = Files.createTempDirectory("wal").toFile();
+        TransactionService service = open(directory, FsyncPolicy.NEVER);
+        service.insert(new Transaction(0L, 1.0, null, TransactionType.GENERIC));
+        for (long id = 1; id < RECOVERED_TRANSACTIONS; id++) {
+            service.insert(new Transaction(id, 1.0, parentOf(id), TransactionType.values()[(int) (id % 5)]));
+        }
+        service.close();
+
+        long start = System.nanoTime();
+        service = open(directory, FsyncPolicy.NEVER);
+        final double logMillis = (System.nanoTime() - start) / 1e6;
+
+        service.snapshot();
+        service.close();
+        start = System.nanoTime();
+        service = open(directory, FsyncPolicy.NEVER);
+        final double snapshotMillis = (System.nanoTime() - start) / 1e6;
+        service.close();
+
+        System.out.printf("recovery of %,d transactions  log %,8.0f ms  snapshot %,8.0f ms  (root sum %,.0f)%n",
+                RECOVERED_TRANSACTIONS, logMillis, snapshotMillis, service.getSubtreeSum(0L));
+        delete(directory);
+    }
+
+    /**
+     * A wide tree of 1000 levels of depth at most.
+     */
+    private static long parentOf(long id) {
+        return id < 1000 ? 0L : id % 1000;
+    }
+
+    private static TransactionService open(File directory, FsyncPolicy fsyncPolicy) {
+        return new TransactionService(new OffHeapTransactionStore(),
+                fsyncPolicy == null ? null : new Persistence(directory, fsyncPolicy, 100, 0));
+    }
+
+    private static void delete(File directory) {
+        final File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.delete();
+    }
+}
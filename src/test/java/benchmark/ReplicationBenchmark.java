@@ -0,0 +1,270 @@
+package benchmark;
+
+import api.Replication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Starts a leader and a growing number of followers as local processes, and measures
+ * the throughput of a closed loop of readers spread over the followers (over the leader
+ * alone without followers) while a writer inserts into the leader at a fixed rate. Once
+ * the writes stop, waits for the followers to catch up and checks their sums against
+ * the leader.
+ *
+ * Settings are system properties:
+ * <ul>
+ *     <li>followers: numbers of followers, "0,1,2,4" by default</li>
+ *     <li>duration: seconds measured for each setting, after as many seconds of warm up, 10 by default</li>
+ *     <li>clients: reader threads, 32 by default</li>
+ *     <li>writes: insertions per second sent to the leader, 500 by default</li>
+ *     <li>staleness: bound of the reads in milliseconds, unbounded by default</li>
+ *     <li>port: port of the leader, the followers follow, 4700 by default</li>
+ *     <li>server.java, server.args: as for {@link LoadGenerator}</li>
+ * </ul>
+ *
+ *     java -Dfollowers=0,1,2,4 -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.ReplicationBenchmark
+ *
+ * Created by simone on 07/03/16.
+ */
+public class ReplicationBenchmark {
+
+    /**
+     * Transactions without a parent, which the others pick from.
+     */
+    private static final int ROOTS = 1000;
+    private static final Pattern LAG = Pattern.compile("(?m)^transactionservice_replication_lag_transactions (\\S+)");
+    private static final Pattern STALENESS = Pattern.compile("(?m)^transactionservice_replication_staleness_seconds (\\S+)");
+    private static final Pattern AMOUNT = Pattern.compile("\"amount\"\\s*:\\s*([-0-9.Ee]+)");
+
+    private final int duration = Integer.getInteger("duration", 10);
+    private final int clients = Integer.getInteger("clients", 32);
+    private final int writes = Integer.getInteger("writes", 500);
+    private final String staleness = System.getProperty("staleness");
+    private final int leaderPort = Integer.getInteger("port", 4700);
+
+    public static void main(String[] args) throws Exception {
+        final ReplicationBenchmark benchmark = new ReplicationBenchmark();
+        System.setProperty("http.maxConnections", String.valueOf(benchmark.clients + 1));
+        double base = 0;
+        for (String followers : System.getProperty("followers", "0,1,2,4").split(",")) {
+            final double throughput = benchmark.run(Integer.parseInt(followers.trim()));
+            if (base == 0) {
+                base = throughput;
+            }
+            System.out.printf("%2s followers %,10.0f reads/s  %5.2fx%n", followers.trim(), throughput, throughput / base);
+        }
+    }
+
+    private double run(int followers) throws Exception {
+        final List<Process> servers = new ArrayList<>();
+        try {
+            servers.add(start(0, "-D" + Replication.ROLE_PROPERTY + "=leader"));
+            awaitServer(leaderPort);
+            for (long id = 0; id < ROOTS; id++) {
+                put(leaderPort, id, 1.0, null);
+            }
+            for (int follower = 1; follower <= followers; follower++) {
+                servers.add(start(follower, "-D" + Replication.ROLE_PROPERTY + "=follower",
+                        "-D" + Replication.LEADER_PROPERTY + "=localhost:" + leaderPort));
+            }
+            for (int follower = 1; follower <= followers; follower++) {
+                awaitServer(leaderPort + follower);
+            }
+
+            final AtomicLong nextId = new AtomicLong(ROOTS);
+            // warm up
+            load(followers, nextId);
+            final double throughput = load(followers, nextId);
+
+            for (int follower = 1; follower <= followers; follower++) {
+                System.out.printf("  follower %d: %s s stale at most now, %s insertions behind%n", follower,
+                        metric(leaderPort + follower, STALENESS), metric(leaderPort + follower, LAG));
+            }
+            for (int follower = 1; follower <= followers; follower++) {
+                awaitCaughtUp(leaderPort + follower);
+                int wrong = 0;
+                for (long id = 0; id < ROOTS; id++) {
+                    if (!sum(leaderPort, id).equals(sum(leaderPort + follower, id))) {
+                        wrong++;
+                    }
+                }
+                if (wrong > 0) {
+                    System.out.printf("  %d sums out of %d differ on follower %d%n", wrong, ROOTS, follower);
+                }
+            }
+            return throughput;
+        } finally {
+            for (Process server : servers) {
+                server.destroy();
+                server.waitFor();
+            }
+        }
+    }
+
+    private Process start(int server, String... properties) throws IOException {
+        final List<String> command = new ArrayList<>(Arrays.asList(
+                System.getProperty("server.java", new File(System.getProperty("java.home"), "bin/java").getPath()),
+                "-Dtransactionservice.port=" + (leaderPort + server)));
+        command.addAll(Arrays.asList(properties));
+        if (!System.getProperty("server.args", "").trim().isEmpty()) {
+            command.addAll(Arrays.asList(System.getProperty("server.args").trim().split("\\s+")));
+        }
+        command.addAll(Arrays.asList("-cp", System.getProperty("java.class.path"), "Main"));
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(System.getProperty("java.io.tmpdir"), "replication-" + server + ".log"))
+                .start();
+    }
+
+    /**
+     * Runs the readers and the writer for the duration.
+     * @return the reads per second
+     */
+    private double load(int followers, AtomicLong nextId) throws Exception {
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong errors = new AtomicLong();
+        final ExecutorService executor = Executors.newFixedThreadPool(clients + 1);
+        final String query = staleness == null ? "" : "?staleness=" + staleness;
+
+        final Future<?> writer = executor.submit(() -> {
+            final Random random = new Random();
+            final long interval = TimeUnit.SECONDS.toNanos(1) / writes;
+            long next = System.nanoTime();
+            while (running.get()) {
+                if (!put(leaderPort, nextId.getAndIncrement(), random.nextInt(100), (long) random.nextInt(ROOTS))) {
+                    errors.incrementAndGet();
+                }
+                next += interval;
+                final long delay = next - System.nanoTime();
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+            }
+            return null;
+        });
+        final List<Future<Long>> counts = new ArrayList<>();
+        for (int client = 0; client < clients; client++) {
+            final int port = followers == 0 ? leaderPort : leaderPort + 1 + client % followers;
+            counts.add(executor.submit(() -> {
+                final Random random = new Random();
+                long reads = 0;
+                while (running.get()) {
+                    final String path = (random.nextBoolean() ? "/transaction/" : "/sum/") + random.nextInt(ROOTS) + "/";
+                    if (read(open(port, "/transactionservice" + path + query)) == null) {
+                        errors.incrementAndGet();
+                    }
+                    reads++;
+                }
+                return reads;
+            }));
+        }
+        final long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(duration);
+        running.set(false);
+        long reads = 0;
+        for (Future<Long> count : counts) {
+            reads += count.get();
+        }
+        final double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        writer.get();
+        executor.shutdown();
+        if (errors.get() > 0) {
+            System.out.printf("  %,d errors%n", errors.get());
+        }
+        return reads / elapsedSeconds;
+    }
+
+    private boolean put(int port, long id, double amount, Long parentId) {
+        try {
+            final HttpURLConnection connection = open(port, "/transactionservice/transaction/" + id + "/");
+            connection.setRequestMethod("PUT");
+            connection.setDoOutput(true);
+            final String body = "{\"amount\": " + amount + ", "
+                    + (parentId != null ? "\"parentId\": " + parentId + ", " : "")
+                    + "\"transactionType\": \"CARS\"}";
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+            return read(connection) != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private String sum(int port, long id) throws IOException {
+        final Matcher amount = AMOUNT.matcher(String.valueOf(read(open(port, "/transactionservice/sum/" + id + "/"))));
+        return amount.find() ? amount.group(1) : "";
+    }
+
+    private String metric(int port, Pattern pattern) throws IOException {
+        final Matcher matcher = pattern.matcher(String.valueOf(read(open(port, "/metrics"))));
+        return matcher.find() ? matcher.group(1) : "?";
+    }
+
+    /**
+     * Waits until the follower has every insertion of the leader.
+     */
+    private void awaitCaughtUp(int port) throws Exception {
+        for (int attempt = 0; attempt < 600; attempt++) {
+            // the lag is as last heard, give the follower time to hear again
+            Thread.sleep(500);
+            if (Double.parseDouble(metric(port, LAG)) == 0) {
+                return;
+            }
+        }
+        throw new IllegalStateException("The follower on port " + port + " did not catch up.");
+    }
+
+    private void awaitServer(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < 300; attempt++) {
+            try {
+                if (read(open(port, "/transactionservice/type/cars/")) != null) {
+                    return;
+                }
+            } catch (IOException e) {
+                // not started yet
+            }
+            Thread.sleep(100);
+        }
+        throw new IllegalStateException("The server on port " + port + " did not start.");
+    }
+
+    private HttpURLConnection open(int port, String path) throws IOException {
+        return (HttpURLConnection) new URL("http://localhost:" + port + path).openConnection();
+    }
+
+    /**
+     * Reads the whole response, so that the connection is kept alive.
+     * @return the body, null if the request failed
+     */
+    private static String read(HttpURLConnection connection) throws IOException {
+        final int status = connection.getResponseCode();
+        try (InputStream input = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            final StringBuilder body = new StringBuilder();
+            final byte[] buffer = new byte[8192];
+            int read;
+            while (input != null && (read = input.read(buffer)) >= 0) {
+                body.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+            }
+            return status < 400 ? body.toString() : null;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package benchmark;
+
+import model.Transaction;
+import model.TransactionType;
+import service.TransactionService;
+import service.store.MapTransactionStore;
+import service.store.ShardedTransactionStore;
+import service.store.TransactionStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures the insert throughput of the service split in 1 to 64 shards, with as many
+ * writer threads as cores unless given. Most transactions have a parent, which is on
+ * another shard most of the time, so the cross shard updates of the sums are counted.
+ *
+ *     java -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.ShardScalingBenchmark [seconds] [threads]
+ *
+ * Created by simone on 05/03/16.
+ */
+public class ShardScalingBenchmark {
+
+    private static final int[] SHARDS = {1, 2, 4, 8, 16, 32, 64};
+    /**
+     * Transactions without a parent, which the others pick from.
+     */
+    private static final int ROOTS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        final int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        // warm up
+        run(1, threads, 2);
+        run(SHARDS[SHARDS.length - 1], threads, 2);
+
+        System.out.printf("%d threads%n", threads);
+        double base = 0;
+        for (int shards : SHARDS) {
+            final double throughput = run(shards, threads, seconds);
+            if (base == 0) {
+                base = throughput;
+            }
+            System.out.printf("%3d shards %,12.0f tx/s  %5.2fx%n", shards, throughput, throughput / base);
+        }
+    }
+
+    private static double run(int shards, int threads, int seconds) throws Exception {
+        final TransactionStore[] stores = new TransactionStore[shards];
+        for (int i = 0; i < shards; i++) {
+            stores[i] = new MapTransactionStore();
+        }
+        final TransactionService service = new TransactionService(new ShardedTransactionStore(stores), null, shards);
+        final TransactionType[] types = TransactionType.values();
+        for (long id = 0; id < ROOTS; id++) {
+            service.insert(new Transaction(id, 1.0, null, types[(int) (id % types.length)]));
+        }
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final List<Future<Long>> counts = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            final long first = ROOTS + t;
+            counts.add(executor.submit(() -> {
+                final ThreadLocalRandom random = ThreadLocalRandom.current();
+                long inserted = 0;
+                // ids interleaved between the threads
+                for (long id = first; running.get(); id += threads) {
+                    final Long parentId = random.nextInt(10) == 0 ? null : (long) random.nextInt(ROOTS);
+                    service.insert(new Transaction(id, 1.0, parentId, types[(int) (id % types.length)]));
+                    inserted++;
+                }
+                return inserted;
+            }));
+        }
+        final long start = System.nanoTime();
+        TimeUnit.SECONDS.sleep(seconds);
+        running.set(false);
+        long inserted = 0;
+        for (Future<Long> count : counts) {
+            inserted += count.get();
+        }
+        final long elapsed = System.nanoTime() - start;
+        executor.shutdown();
+        return inserted * 1e9 / elapsed;
+    }
+}
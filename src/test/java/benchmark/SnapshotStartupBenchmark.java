@@ -0,0 +1,80 @@
+package benchmark;
+
+import model.Transaction;
+import model.TransactionType;
+import service.TransactionService;
+import service.persistence.FsyncPolicy;
+import service.persistence.Persistence;
+import service.store.MapTransactionStore;
+import service.store.OffHeapTransactionStore;
+import service.store.TransactionStore;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Measures the start up time from a snapshot: mapping the image into the off-heap store
+ * against copying it into a store on the heap. Reports when the first reads are served
+ * and when the children index is rebuilt, which writes wait for.
+ * The number of transactions can be given as argument.
+ *
+ *     java -Xmx4g -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.SnapshotStartupBenchmark 5000000
+ *
+ * Created by simone on 29/02/16.
+ */
+public class SnapshotStartupBenchmark {
+
+    private static final int READS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        final int transactions = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+        final File directory = Files.createTempDirectory("snapshot").toFile();
+
+        TransactionService service = open(directory, new OffHeapTransactionStore());
+        final TransactionType[] types = TransactionType.values();
+        service.insert(new Transaction(0L, 1.0, null, TransactionType.GENERIC));
+        for (long id = 1; id < transactions; id++) {
+            service.insert(new Transaction(id, 1.0, id < 1000 ? 0L : id % 1000, types[(int) (id % types.length)]));
+        }
+        service.snapshot();
+        service.close();
+        System.out.printf("snapshot of %,d transactions, %,d MB%n", transactions,
+                directory.listFiles((dir, name) -> name.startsWith("snapshot"))[0].length() >> 20);
+
+        // warm up
+        start(directory, new OffHeapTransactionStore(), transactions);
+
+        start(directory, new OffHeapTransactionStore(), transactions);
+        start(directory, new MapTransactionStore(), transactions);
+
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    private static void start(File directory, TransactionStore storage, int transactions) {
+        final long start = System.nanoTime();
+        final TransactionService service = open(directory, storage);
+        final double openMillis = (System.nanoTime() - start) / 1e6;
+
+        final Random random = new Random(42);
+        double sum = 0;
+        for (int i = 0; i < READS; i++) {
+            sum += service.get((long) random.nextInt(transactions)).getAmount();
+        }
+        final double readMillis = (System.nanoTime() - start) / 1e6;
+
+        service.getChildren(0L, null, 1);
+        final double indexedMillis = (System.nanoTime() - start) / 1e6;
+        service.close();
+
+        System.out.printf("%-24s open %,8.0f ms  %,d random reads %,8.0f ms  children indexed %,8.0f ms  (%,.0f)%n",
+                storage.getClass().getSimpleName(), openMillis, READS, readMillis, indexedMillis, sum);
+    }
+
+    private static TransactionService open(File directory, TransactionStore storage) {
+        return new TransactionService(storage, new Persistence(directory, FsyncPolicy.NEVER, 1000, 0));
+    }
+}
@@ -0,0 +1,65 @@
+package benchmark;
+
+import model.Transaction;
+import model.TransactionType;
+import service.store.MapTransactionStore;
+import service.store.OffHeapTransactionStore;
+import service.store.TransactionStore;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.function.Supplier;
+
+/**
+ * Compares the memory footprint of the heap and off-heap transaction stores.
+ *
+ *     mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt
+ *     java -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.StoreFootprintBenchmark 10000000
+ *
+ * Created by simone on 20/02/16.
+ */
+public class StoreFootprintBenchmark {
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+        measure("heap", MapTransactionStore::new, count);
+        measure("offheap", OffHeapTransactionStore::new, count);
+    }
+
+    private static void measure(String name, Supplier<TransactionStore> factory, int count) {
+        final long heapBefore = usedHeap();
+        final long directBefore = usedDirect();
+        final long start = System.nanoTime();
+
+        TransactionStore store = factory.get();
+        final TransactionType[] types = TransactionType.values();
+        for (long id = 0; id < count; id++) {
+            store.put(new Transaction(id, (double) id, id == 0 ? null : id / 2, types[(int) (id % types.length)]));
+        }
+        final long elapsed = System.nanoTime() - start;
+
+        final long heap = usedHeap() - heapBefore;
+        final long direct = usedDirect() - directBefore;
+        System.out.printf("%-8s %,12d entries  heap %,15d B  direct %,15d B  %6.1f B/entry  load %,6d ms%n",
+                name, store.size(), heap, direct, (double) (heap + direct) / count, elapsed / 1000000);
+        // keep the store reachable until measured
+        store.size();
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static long usedDirect() {
+        long used = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            used += pool.getMemoryUsed();
+        }
+        return used;
+    }
+}
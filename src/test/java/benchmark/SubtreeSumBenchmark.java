@@ -0,0 +1,63 @@
+package benchmark;
+
+import model.Transaction;
+import model.TransactionType;
+import service.TransactionService;
+
+/**
+ * Measures the cost of keeping subtree sums up to date on deep and on wide trees.
+ * Inserts walk up every ancestor, so their cost grows with the depth while the
+ * query stays constant.
+ *
+ *     java -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.SubtreeSumBenchmark
+ *
+ * Created by simone on 24/02/16.
+ */
+public class SubtreeSumBenchmark {
+
+    private static final int TRANSACTIONS = 100000;
+    private static final int QUERIES = 1000000;
+
+    public static void main(String[] args) {
+        // warm up
+        run("warm up", 100);
+        run("warm up", 1);
+
+        for (int depth : new int[]{1, 10, 100, 1000}) {
+            run("depth " + depth, depth);
+        }
+    }
+
+    /**
+     * Builds chains of the given depth, a depth of 1 is a single wide tree.
+     */
+    private static void run(String name, int depth) {
+        final TransactionService service = new TransactionService();
+        final TransactionType[] types = TransactionType.values();
+
+        long start = System.nanoTime();
+        service.insert(new Transaction(0L, 1.0, null, TransactionType.GENERIC));
+        for (long id = 1; id < TRANSACTIONS; id++) {
+            final long parentId = (id - 1) % depth == 0 ? 0L : id - 1;
+            service.insert(new Transaction(id, 1.0, parentId, types[(int) (id % types.length)]));
+        }
+        final double insertNanos = (double) (System.nanoTime() - start) / TRANSACTIONS;
+
+        // replace the deepest transactions, moving them across chains
+        start = System.nanoTime();
+        for (long id = TRANSACTIONS - 1000; id < TRANSACTIONS; id++) {
+            service.insert(new Transaction(id, 2.0, depth == 1 ? 0L : id - depth, types[(int) (id % types.length)]));
+        }
+        final double moveNanos = (double) (System.nanoTime() - start) / 1000;
+
+        start = System.nanoTime();
+        double total = 0;
+        for (int i = 0; i < QUERIES; i++) {
+            total += service.getSubtreeSum((long) (i % TRANSACTIONS));
+        }
+        final double queryNanos = (double) (System.nanoTime() - start) / QUERIES;
+
+        System.out.printf("%-12s insert %,10.0f ns  move %,12.0f ns  query %,6.0f ns  (root %,.0f, total %,.0f)%n",
+                name, insertNanos, moveNanos, queryNanos, service.getSubtreeSum(0L), total);
+    }
+}
@@ -0,0 +1,54 @@
+package benchmark;
+
+import model.TransactionType;
+import service.index.TypeIndex;
+
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the heap used by the bitmap type index with the former map of hash sets.
+ *
+ *     java -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.TypeIndexFootprintBenchmark 10000000
+ *
+ * Created by simone on 26/02/16.
+ */
+public class TypeIndexFootprintBenchmark {
+
+    public static void main(String[] args) {
+        final int count = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+        final TransactionType[] types = TransactionType.values();
+
+        long before = usedHeap();
+        final TypeIndex index = new TypeIndex();
+        for (long id = 0; id < count; id++) {
+            index.add(types[(int) (id % 7 % types.length)], id);
+        }
+        final long bitmapBytes = usedHeap() - before;
+        System.out.printf("bitmaps   %,15d B  %6.1f B/id  (reported %,d B)%n",
+                bitmapBytes, (double) bitmapBytes / count, index.sizeInBytes());
+        index.count(TransactionType.CARS);
+
+        before = usedHeap();
+        final Map<TransactionType, Set<Long>> sets = new EnumMap<>(TransactionType.class);
+        for (TransactionType transactionType : types) {
+            sets.put(transactionType, new HashSet<>());
+        }
+        for (long id = 0; id < count; id++) {
+            sets.get(types[(int) (id % 7 % types.length)]).add(id);
+        }
+        final long setBytes = usedHeap() - before;
+        System.out.printf("hash sets %,15d B  %6.1f B/id%n", setBytes, (double) setBytes / count);
+        sets.clear();
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,42 @@
+package benchmark;
+
+import model.TransactionType;
+import service.index.TypeIndex;
+
+/**
+ * Measures writes to the type index alternated with reads of the same type, which
+ * freeze its bitmap each time. The cost of a pair should not grow with the size.
+ *
+ *     java -cp target/classes:target/test-classes:$(cat target/cp.txt) benchmark.TypeIndexWriteBenchmark
+ *
+ * Created by simone on 09/03/16.
+ */
+public class TypeIndexWriteBenchmark {
+
+    private static final int PAIRS = 200000;
+
+    public static void main(String[] args) {
+        // warm up
+        run(100000);
+
+        for (int size : new int[]{100000, 1000000, 10000000}) {
+            run(size);
+        }
+    }
+
+    private static void run(int size) {
+        final TypeIndex index = new TypeIndex();
+        for (long id = 0; id < size; id++) {
+            index.add(TransactionType.CARS, id * 3);
+        }
+
+        long checksum = 0;
+        final long start = System.nanoTime();
+        for (long i = 0; i < PAIRS; i++) {
+            index.add(TransactionType.CARS, i * 3 + 1);
+            checksum += index.get(TransactionType.CARS).getVersion();
+        }
+        final double pairNanos = (double) (System.nanoTime() - start) / PAIRS;
+        System.out.printf("%,11d ids  %,8.2f us per write and read  (%d)%n", size, pairNanos / 1000, checksum % 10);
+    }
+}
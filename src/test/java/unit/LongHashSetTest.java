@@ -0,0 +1,55 @@
+package unit;
+
+import org.junit.Test;
+import service.index.LongHashSet;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Tests for the primitive long set.
+ *
+ * Created by simone on 25/02/16.
+ */
+public class LongHashSetTest {
+
+    @Test
+    public void randomOperationsTest() {
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200000; i++) {
+            long value = random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(value), set.remove(value));
+            } else {
+                assertEquals(expected.add(value), set.add(value));
+            }
+        }
+        assertEquals(expected.size(), set.size());
+        for (long value = 0; value < 5000; value++) {
+            assertEquals(expected.contains(value), set.contains(value));
+        }
+    }
+
+    @Test
+    public void nextAfterTest() {
+        LongHashSet set = new LongHashSet();
+        for (long value = 100; value > 0; value--) {
+            set.add(value * 2);
+        }
+        assertArrayEquals(new long[]{2, 4, 6}, set.nextAfter(-1, 3));
+        assertArrayEquals(new long[]{52, 54}, set.nextAfter(50, 2));
+        assertArrayEquals(new long[]{198, 200}, set.nextAfter(197, 10));
+        assertEquals(0, set.nextAfter(200, 10).length);
+
+        long[] all = set.toArray();
+        Arrays.sort(all);
+        assertArrayEquals(set.nextAfter(-1, 1000), all);
+    }
+}
@@ -0,0 +1,35 @@
+package unit;
+
+import model.Transaction;
+import model.TransactionType;
+import org.junit.Test;
+import service.TransactionService;
+import service.store.OffHeapTransactionStore;
+
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * Runs the transaction service tests against the off-heap store.
+ *
+ * Created by simone on 20/02/16.
+ */
+public class OffHeapTransactionServiceTest extends TransactionServiceTest {
+
+    public OffHeapTransactionServiceTest() {
+        transactionService = new TransactionService(new OffHeapTransactionStore());
+    }
+
+    @Test
+    public void transactionStoreResizeTest() {
+        transactionService.insert(new Transaction(0L, 1.0, null, TransactionType.CARS));
+        for (long i = 1; i <= 100000; i++) {
+            transactionService.insert(new Transaction(i, 1.0, i < 10 ? 0L : i % 10, TransactionType.values()[(int) (i % 5)]));
+        }
+
+        assertEquals((Long) 99999L, transactionService.get(99999L).getId());
+        assertEquals((Long) 9L, transactionService.get(99999L).getParentId());
+        assertEquals(TransactionType.GENERIC, transactionService.get(99999L).getTransactionType());
+        assertEquals(9999.0, transactionService.getChildrenSum(1L));
+        assertEquals(20001, transactionService.getByType(TransactionType.CARS).size());
+    }
+}
@@ -0,0 +1,123 @@
+package unit;
+
+import model.Delta;
+import model.Transaction;
+import model.TransactionType;
+import org.junit.Test;
+import service.Partition;
+import service.TransactionService;
+import service.exceptions.InvalidTransactionException;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Tests two services sharing the transactions as the nodes of a cluster, the changes
+ * between them delivered on demand.
+ *
+ * Created by simone on 06/03/16.
+ */
+public class PartitionTest {
+
+    /**
+     * Ids 0-9 are kept by the first node, 10-19 by the second, 20-29 by the first...
+     */
+    private static final long RANGE = 10;
+
+    private final TransactionService[] nodes = {new TransactionService(), new TransactionService()};
+    private final Queue<Delta> sent = new ArrayDeque<>();
+
+    public PartitionTest() {
+        for (int i = 0; i < nodes.length; i++) {
+            final int node = i;
+            nodes[i].setPartition(new Partition() {
+                @Override
+                public boolean owns(long id) {
+                    return ownerOf(id) == node;
+                }
+
+                @Override
+                public void send(Delta delta) {
+                    sent.add(delta);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void crossNodeSumsTest() {
+        insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        insert(new Transaction(11L, 20.0, 1L, TransactionType.CARS));
+        insert(new Transaction(21L, 30.0, 11L, TransactionType.CARS));
+        insert(new Transaction(12L, 40.0, 1L, TransactionType.AUDIO));
+
+        assertEquals(60.0, nodes[0].getChildrenSum(1L));
+        assertEquals(90.0, nodes[0].getSubtreeSum(1L));
+        assertEquals(30.0, nodes[1].getChildrenSum(11L));
+        assertEquals(Arrays.asList(11L, 12L), nodes[0].getChildren(1L, null, 10).getIds());
+
+        // moves 11 and its child away from 1, under 13 on the second node
+        insert(new Transaction(13L, 1.0, null, TransactionType.CARS));
+        insert(new Transaction(11L, 25.0, 13L, TransactionType.CARS));
+
+        assertEquals(40.0, nodes[0].getChildrenSum(1L));
+        assertEquals(40.0, nodes[0].getSubtreeSum(1L));
+        assertEquals(25.0, nodes[1].getChildrenSum(13L));
+        assertEquals(55.0, nodes[1].getSubtreeSum(13L));
+        assertEquals(Arrays.asList(12L), nodes[0].getChildren(1L, null, 10).getIds());
+        assertEquals(Arrays.asList(11L), nodes[1].getChildren(13L, null, 10).getIds());
+    }
+
+    @Test
+    public void crossNodeCycleTest() {
+        insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        insert(new Transaction(11L, 20.0, 1L, TransactionType.CARS));
+        insert(new Transaction(2L, 30.0, 11L, TransactionType.CARS));
+
+        // 1 under its child on the other node
+        assertRejected(new Transaction(1L, 10.0, 11L, TransactionType.CARS));
+        // 1 under its grandchild on its own node, through the other node
+        assertRejected(new Transaction(1L, 10.0, 2L, TransactionType.CARS));
+        // 11 under its child on the other node, through its own parent
+        assertRejected(new Transaction(11L, 20.0, 2L, TransactionType.CARS));
+
+        assertEquals(50.0, nodes[0].getSubtreeSum(1L));
+        assertEquals(30.0, nodes[1].getSubtreeSum(11L));
+        assertEquals(0.0, nodes[0].getSubtreeSum(2L));
+        assertEquals(null, nodes[0].get(1L).getParentId());
+        assertEquals(0, sent.size());
+    }
+
+    @Test(expected = InvalidTransactionException.class)
+    public void otherNodeTransactionTest() {
+        nodes[0].insert(new Transaction(11L, 20.0, null, TransactionType.CARS));
+    }
+
+    private void assertRejected(Transaction transaction) {
+        try {
+            insert(transaction);
+            fail("Expected InvalidTransactionException");
+        } catch (InvalidTransactionException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Inserts on the node of the transaction, then delivers the changes sent meanwhile.
+     */
+    private void insert(Transaction transaction) {
+        nodes[ownerOf(transaction.getId())].insert(transaction);
+        while (!sent.isEmpty()) {
+            final Delta delta = sent.poll();
+            nodes[ownerOf(delta.getId())].applyDelta(delta);
+        }
+    }
+
+    private static int ownerOf(long id) {
+        return (int) (id / RANGE % 2);
+    }
+}
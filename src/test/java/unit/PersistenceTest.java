@@ -0,0 +1,298 @@
+package unit;
+
+import model.Transaction;
+import model.TransactionType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import service.ReplicationLog;
+import service.TransactionService;
+import service.persistence.FsyncPolicy;
+import service.persistence.Persistence;
+import service.store.MapTransactionStore;
+import service.store.OffHeapTransactionStore;
+import service.store.ShardedTransactionStore;
+import service.store.TransactionStore;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests for the write-ahead log and the snapshots.
+ *
+ * Created by simone on 28/02/16.
+ */
+public class PersistenceTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void recoverFromLogTest() throws IOException {
+        TransactionService transactionService = open(new MapTransactionStore(), FsyncPolicy.INTERVAL);
+        insertTree(transactionService);
+        transactionService.close();
+
+        assertTree(open(new MapTransactionStore(), FsyncPolicy.INTERVAL));
+    }
+
+    @Test
+    public void recoverFromSnapshotAndLogTest() throws IOException {
+        TransactionService transactionService = open(new OffHeapTransactionStore(), FsyncPolicy.NEVER);
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 20.0, 1L, TransactionType.AUDIO));
+        transactionService.snapshot();
+        transactionService.insert(new Transaction(3L, 30.0, 2L, TransactionType.VIDEO));
+        transactionService.insert(new Transaction(4L, 40.0, 1L, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 25.0, 4L, TransactionType.AUDIO));
+        transactionService.close();
+
+        // Only the latest snapshot and the log which follows it are kept.
+        assertEquals(2, folder.getRoot().list().length);
+
+        assertTree(open(new OffHeapTransactionStore(), FsyncPolicy.NEVER));
+    }
+
+    @Test
+    public void switchStoreTest() throws IOException {
+        TransactionService transactionService = open(new OffHeapTransactionStore(), FsyncPolicy.NEVER);
+        insertTree(transactionService);
+        transactionService.snapshot();
+        transactionService.close();
+
+        transactionService = open(new MapTransactionStore(), FsyncPolicy.NEVER);
+        assertTree(transactionService);
+        transactionService.snapshot();
+        transactionService.close();
+
+        assertTree(open(new OffHeapTransactionStore(), FsyncPolicy.NEVER));
+    }
+
+    @Test
+    public void changeMappedSnapshotTest() throws IOException {
+        TransactionService transactionService = open(new OffHeapTransactionStore(), FsyncPolicy.NEVER);
+        insertTree(transactionService);
+        transactionService.snapshot();
+        transactionService.close();
+
+        // Grows the mapped tables and changes mapped records.
+        transactionService = open(new OffHeapTransactionStore(), FsyncPolicy.NEVER);
+        for (long i = 5; i < 20000; i++) {
+            transactionService.insert(new Transaction(i, 1.0, 3L, TransactionType.SHOPPING));
+        }
+        transactionService.insert(new Transaction(1L, 15.0, null, TransactionType.CARS));
+        transactionService.snapshot();
+        transactionService.close();
+
+        transactionService = open(new OffHeapTransactionStore(), FsyncPolicy.NEVER);
+        assertEquals(15.0, transactionService.get(1L).getAmount());
+        assertEquals(19995.0, transactionService.getChildrenSum(3L));
+        assertEquals(95.0 + 19995.0, transactionService.getSubtreeSum(1L));
+        assertEquals(19995, transactionService.getByType(TransactionType.SHOPPING).size());
+        assertEquals(Arrays.asList(5L, 6L), transactionService.getChildren(3L, null, 2).getIds());
+    }
+
+    @Test
+    public void recoverTwiceTest() throws IOException {
+        TransactionService transactionService = open(new MapTransactionStore(), FsyncPolicy.ALWAYS);
+        insertTree(transactionService);
+        transactionService.close();
+
+        transactionService = open(new MapTransactionStore(), FsyncPolicy.ALWAYS);
+        transactionService.insert(new Transaction(5L, 50.0, 3L, TransactionType.GENERIC));
+        transactionService.close();
+
+        transactionService = open(new MapTransactionStore(), FsyncPolicy.ALWAYS);
+        assertEquals(50.0, transactionService.getChildrenSum(3L));
+        assertEquals(145.0, transactionService.getSubtreeSum(1L));
+    }
+
+    @Test
+    public void tornRecordTest() throws IOException {
+        TransactionService transactionService = open(new MapTransactionStore(), FsyncPolicy.ALWAYS);
+        insertTree(transactionService);
+        transactionService.close();
+
+        File log = folder.getRoot().listFiles()[0];
+        try (FileOutputStream output = new FileOutputStream(log, true)) {
+            output.write(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        }
+
+        assertTree(open(new MapTransactionStore(), FsyncPolicy.ALWAYS));
+    }
+
+    @Test
+    public void recoverBatchTest() throws IOException {
+        TransactionService transactionService = open(new MapTransactionStore(), FsyncPolicy.ALWAYS);
+        transactionService.insertAll(Arrays.asList(
+                new Transaction(2L, 20.0, 1L, TransactionType.AUDIO),
+                new Transaction(1L, 10.0, null, TransactionType.CARS),
+                new Transaction(3L, 30.0, 9L, TransactionType.CARS)));
+        transactionService.close();
+
+        transactionService = open(new MapTransactionStore(), FsyncPolicy.ALWAYS);
+        assertEquals(20.0, transactionService.getChildrenSum(1L));
+        assertEquals(1, transactionService.getByType(TransactionType.CARS).size());
+    }
+
+    @Test
+    public void recoverConcurrentInsertionTest() throws IOException, InterruptedException {
+        final TransactionService transactionService = open(new MapTransactionStore(), FsyncPolicy.ALWAYS);
+        transactionService.insert(new Transaction(0L, 0.0, null, TransactionType.CARS));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (long i = 1; i <= 2000; i++) {
+            final long id = i;
+            executor.submit(() -> transactionService.insert(new Transaction(id, 1.0, 0L, TransactionType.CARS)));
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        transactionService.close();
+
+        TransactionService recovered = open(new MapTransactionStore(), FsyncPolicy.ALWAYS);
+        assertEquals(2000.0, recovered.getChildrenSum(0L));
+        assertEquals(2001, recovered.getByType(TransactionType.CARS).size());
+    }
+
+    @Test
+    public void recoverShardedTest() throws IOException {
+        TransactionService transactionService = new TransactionService(sharded(4),
+                new Persistence(folder.getRoot(), FsyncPolicy.NEVER, 10, 0), 4);
+        insertTree(transactionService);
+        transactionService.snapshot();
+        transactionService.close();
+
+        // The snapshot does not depend on the number of shards.
+        assertTree(new TransactionService(sharded(2),
+                new Persistence(folder.getRoot(), FsyncPolicy.NEVER, 10, 0), 2));
+    }
+
+    @Test
+    public void recoverShardedOffHeapTest() throws IOException {
+        TransactionService transactionService = new TransactionService(sharded(4, OffHeapTransactionStore::new),
+                new Persistence(folder.getRoot(), FsyncPolicy.NEVER, 10, 0), 4);
+        insertTree(transactionService);
+        transactionService.snapshot();
+        transactionService.close();
+        // one image per shard
+        final File[] snapshots = folder.getRoot().listFiles((dir, name) -> name.startsWith("snapshot"));
+        try (DataInputStream input = new DataInputStream(new FileInputStream(snapshots[0]))) {
+            input.readInt();
+            assertEquals(3, input.readInt());
+        }
+
+        // Maps the images and changes mapped records.
+        transactionService = new TransactionService(sharded(4, OffHeapTransactionStore::new),
+                new Persistence(folder.getRoot(), FsyncPolicy.NEVER, 10, 0), 4);
+        assertTree(transactionService);
+        for (long i = 5; i < 1000; i++) {
+            transactionService.insert(new Transaction(i, 1.0, 3L, TransactionType.SHOPPING));
+        }
+        transactionService.insert(new Transaction(1L, 15.0, null, TransactionType.CARS));
+        transactionService.snapshot();
+        transactionService.close();
+
+        // The images are copied into other stores.
+        for (TransactionStore storage : Arrays.asList(sharded(2, OffHeapTransactionStore::new),
+                sharded(4, MapTransactionStore::new), new OffHeapTransactionStore())) {
+            final int shards = storage instanceof ShardedTransactionStore
+                    ? ((ShardedTransactionStore) storage).getShardCount() : 1;
+            transactionService = new TransactionService(storage,
+                    new Persistence(folder.getRoot(), FsyncPolicy.NEVER, 10, 0), shards);
+            assertEquals(15.0, transactionService.get(1L).getAmount());
+            assertEquals(995.0, transactionService.getChildrenSum(3L));
+            assertEquals(95.0 + 995.0, transactionService.getSubtreeSum(1L));
+            assertEquals(995, transactionService.getByType(TransactionType.SHOPPING).size());
+            transactionService.close();
+        }
+    }
+
+    @Test
+    public void failedLogTest() throws IOException {
+        final TransactionService transactionService = open(new MapTransactionStore(), FsyncPolicy.ALWAYS);
+        final ReplicationLog replicationLog = new ReplicationLog(16);
+        transactionService.setReplicationLog(replicationLog);
+        insertTree(transactionService);
+        // The closed log fails the next write, every append fails afterwards.
+        transactionService.close();
+        try {
+            transactionService.insert(new Transaction(5L, 50.0, 3L, TransactionType.GENERIC));
+            fail();
+        } catch (UncheckedIOException e) {
+            // applied, but not durable
+        }
+        final long sequence = replicationLog.getSequence();
+
+        try {
+            transactionService.insert(new Transaction(6L, 60.0, 3L, TransactionType.GENERIC));
+            fail();
+        } catch (UncheckedIOException e) {
+            // nothing applied
+        }
+        try {
+            transactionService.insertAll(Arrays.asList(new Transaction(7L, 70.0, 3L, TransactionType.GENERIC)));
+            fail();
+        } catch (UncheckedIOException e) {
+            // nothing applied
+        }
+        assertFalse(transactionService.exists(6L));
+        assertFalse(transactionService.exists(7L));
+        assertEquals(50.0, transactionService.getChildrenSum(3L));
+        assertEquals(145.0, transactionService.getSubtreeSum(1L));
+        assertEquals(105.0, transactionService.getSubtreeSum(4L));
+        assertEquals(Arrays.asList(5L), transactionService.getChildren(3L, null, 10).getIds());
+        assertEquals(1, transactionService.getByType(TransactionType.GENERIC).size());
+        assertEquals(sequence, replicationLog.getSequence());
+    }
+
+    private static TransactionStore sharded(int shards) {
+        return sharded(shards, MapTransactionStore::new);
+    }
+
+    private static TransactionStore sharded(int shards, Supplier<TransactionStore> store) {
+        final TransactionStore[] stores = new TransactionStore[shards];
+        for (int i = 0; i < shards; i++) {
+            stores[i] = store.get();
+        }
+        return new ShardedTransactionStore(stores);
+    }
+
+    private TransactionService open(TransactionStore storage, FsyncPolicy fsyncPolicy) {
+        return new TransactionService(storage, new Persistence(folder.getRoot(), fsyncPolicy, 10, 0));
+    }
+
+    /**
+     * Builds 1 -> 4 -> 2 -> 3, moving 2 from 1 to 4 on the way.
+     */
+    private static void insertTree(TransactionService transactionService) {
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 20.0, 1L, TransactionType.AUDIO));
+        transactionService.insert(new Transaction(3L, 30.0, 2L, TransactionType.VIDEO));
+        transactionService.insert(new Transaction(4L, 40.0, 1L, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 25.0, 4L, TransactionType.AUDIO));
+    }
+
+    private static void assertTree(TransactionService transactionService) {
+        assertEquals((Long) 4L, transactionService.get(2L).getParentId());
+        assertEquals(25.0, transactionService.get(2L).getAmount());
+        assertEquals(40.0, transactionService.getChildrenSum(1L));
+        assertEquals(25.0, transactionService.getChildrenSum(4L));
+        assertEquals(95.0, transactionService.getSubtreeSum(1L));
+        assertEquals(55.0, transactionService.getSubtreeSum(4L));
+        assertEquals(Arrays.asList(4L), transactionService.getChildren(1L, null, 10).getIds());
+        assertEquals(Arrays.asList(4L, 2L, 3L), transactionService.getSubtree(1L, null, 10).getIds());
+        assertEquals(2, transactionService.getByType(TransactionType.CARS).size());
+    }
+}
@@ -0,0 +1,191 @@
+package unit;
+
+import model.Transaction;
+import model.TransactionType;
+import org.junit.After;
+import org.junit.Test;
+import service.ReplicationLog;
+import service.TransactionService;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests a follower starting from the snapshot of a leader and applying the insertions
+ * of its log, the log read on demand.
+ *
+ * Created by simone on 07/03/16.
+ */
+public class ReplicationTest {
+
+    private final ReplicationLog log = new ReplicationLog(8);
+    private final TransactionService leader = new TransactionService();
+    private final TransactionService follower = new TransactionService();
+    private File snapshot;
+
+    public ReplicationTest() {
+        leader.setReplicationLog(log);
+    }
+
+    @After
+    public void deleteSnapshot() {
+        if (snapshot != null) {
+            snapshot.delete();
+        }
+    }
+
+    @Test
+    public void followerTest() throws Exception {
+        leader.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        leader.insert(new Transaction(2L, 20.0, 1L, TransactionType.CARS));
+        long applied = bootstrap();
+
+        leader.insert(new Transaction(3L, 30.0, 2L, TransactionType.AUDIO));
+        leader.insert(new Transaction(4L, 40.0, 1L, TransactionType.CARS));
+        // moves 2 and its child under 4
+        leader.insert(new Transaction(2L, 25.0, 4L, TransactionType.CARS));
+        applied = follow(applied);
+
+        for (long id = 1; id <= 4; id++) {
+            assertEquals(leader.get(id).getAmount(), follower.get(id).getAmount());
+            assertEquals(leader.getChildrenSum(id), follower.getChildrenSum(id));
+            assertEquals(leader.getSubtreeSum(id), follower.getSubtreeSum(id));
+            assertEquals(leader.getChildren(id, null, 10).getIds(), follower.getChildren(id, null, 10).getIds());
+        }
+        assertEquals(95.0, follower.getSubtreeSum(1L));
+        assertEquals(Arrays.asList(2L, 3L, 4L), follower.getByTypes(EnumSet.of(TransactionType.CARS, TransactionType.AUDIO),
+                1L, 10).getIds());
+        assertEquals(applied, log.getSequence());
+    }
+
+    @Test
+    public void droppedInsertionsTest() throws Exception {
+        final long applied = log.getSequence();
+        for (long id = 1; id <= 9; id++) {
+            leader.insert(new Transaction(id, 1.0, null, TransactionType.CARS));
+        }
+        // the first one is out of the ring
+        assertEquals(-1, log.read(applied, 10, 0, new ArrayList<>()));
+        assertEquals(log.getSequence(), log.read(applied + 1, 10, 0, new ArrayList<>()));
+        // sequences of another leader
+        assertEquals(-1, log.read(log.getSequence() + 1, 10, 0, new ArrayList<>()));
+    }
+
+    @Test
+    public void reloadTest() throws Exception {
+        leader.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        bootstrap();
+        // a follower which diverged: 2 is missing on the leader, 1 has another amount
+        follower.insert(new Transaction(2L, 5.0, 1L, TransactionType.AUDIO));
+        follower.insert(new Transaction(1L, 7.0, null, TransactionType.CARS));
+        final long version = follower.getVersion(1L);
+        final long typeVersion = follower.getTypeVersion(EnumSet.of(TransactionType.AUDIO));
+
+        leader.insert(new Transaction(3L, 30.0, 1L, TransactionType.CARS));
+        snapshot.delete();
+        bootstrap();
+
+        assertEquals(10.0, follower.get(1L).getAmount());
+        assertFalse(follower.exists(2L));
+        assertEquals(30.0, follower.getChildrenSum(1L));
+        assertEquals(Arrays.asList(3L), follower.getChildren(1L, null, 10).getIds());
+        assertEquals(0, follower.getByType(TransactionType.AUDIO).size());
+        assertTrue(follower.getVersion(1L) > version);
+        assertTrue(follower.getTypeVersion(EnumSet.of(TransactionType.AUDIO)) > typeVersion);
+    }
+
+    @Test
+    public void readWhileReloadingTest() throws Exception {
+        leader.insert(new Transaction(1L, 1.0, null, TransactionType.CARS));
+        for (long id = 2; id <= 1000; id++) {
+            leader.insert(new Transaction(id, 1.0, 1L, TransactionType.CARS));
+        }
+        bootstrap();
+        final AtomicBoolean reloading = new AtomicBoolean(true);
+        final AtomicReference<String> failure = new AtomicReference<>();
+        final Thread reader = new Thread(() -> {
+            while (reloading.get() && failure.get() == null) {
+                if (!follower.exists(1000L)) {
+                    failure.set("1000 missing");
+                } else if (follower.getChildrenSum(1L) != 999.0) {
+                    failure.set("partial sum " + follower.getChildrenSum(1L));
+                }
+            }
+        });
+        reader.start();
+        try {
+            for (int i = 0; i < 20; i++) {
+                follower.loadReplica(snapshot);
+            }
+        } finally {
+            reloading.set(false);
+            reader.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void waitTest() throws Exception {
+        final long applied = log.getSequence();
+        final Thread writer = new Thread(() -> leader.insert(new Transaction(1L, 1.0, null, TransactionType.CARS)));
+        writer.start();
+        final List<Transaction> transactions = new ArrayList<>();
+        while (transactions.isEmpty()) {
+            log.read(applied, 10, 10000, transactions);
+        }
+        writer.join();
+        assertEquals(1L, (long) transactions.get(0).getId());
+    }
+
+    @Test
+    public void publishOrderTest() throws Exception {
+        final long applied = log.getSequence();
+        final long parent = log.claim();
+        final long child = log.claim();
+        // published out of the locks, the child first
+        log.publish(child, new Transaction(2L, 1.0, 1L, TransactionType.CARS));
+        final List<Transaction> transactions = new ArrayList<>();
+        assertEquals(applied, log.read(applied, 10, 0, transactions));
+        assertTrue(transactions.isEmpty());
+
+        log.publish(parent, new Transaction(1L, 1.0, null, TransactionType.CARS));
+        assertEquals(child, log.read(applied, 10, 0, transactions));
+        assertEquals(1L, (long) transactions.get(0).getId());
+        assertEquals(2L, (long) transactions.get(1).getId());
+    }
+
+    /**
+     * Loads the snapshot of the leader into the follower.
+     * @return the sequence of the snapshot
+     */
+    private long bootstrap() throws IOException {
+        snapshot = File.createTempFile("replica-", ".bin");
+        snapshot.delete();
+        final long sequence = leader.snapshotTo(snapshot);
+        follower.loadReplica(snapshot);
+        return sequence;
+    }
+
+    /**
+     * Applies the insertions of the leader following the sequence.
+     * @return the sequence of the last one
+     */
+    private long follow(long applied) throws InterruptedException {
+        final List<Transaction> transactions = new ArrayList<>();
+        final long sequence = log.read(applied, 100, 0, transactions);
+        assertEquals(0, follower.applyReplicated(transactions));
+        assertEquals(sequence, applied + transactions.size());
+        return sequence;
+    }
+}
@@ -0,0 +1,64 @@
+package unit;
+
+import model.Transaction;
+import model.TransactionType;
+import org.junit.Test;
+import service.TransactionService;
+import service.store.MapTransactionStore;
+import service.store.ShardedTransactionStore;
+import service.store.TransactionStore;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the transaction service tests against a service split in shards.
+ *
+ * Created by simone on 05/03/16.
+ */
+public class ShardedTransactionServiceTest extends TransactionServiceTest {
+
+    private static final int SHARDS = 8;
+
+    public ShardedTransactionServiceTest() {
+        final TransactionStore[] stores = new TransactionStore[SHARDS];
+        for (int i = 0; i < SHARDS; i++) {
+            stores[i] = new MapTransactionStore();
+        }
+        transactionService = new TransactionService(new ShardedTransactionStore(stores), null, SHARDS);
+    }
+
+    @Test
+    public void transactionCrossShardTest() throws InterruptedException {
+        for (long i = 0; i < 10; i++) {
+            transactionService.insert(new Transaction(i, 0.0, null, TransactionType.CARS));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (long i = 10; i < 2010; i++) {
+            final long id = i;
+            executor.submit(() -> transactionService.insert(new Transaction(id, 1.0, id % 10, TransactionType.values()[(int) (id % 5)])));
+            // moves a child to another parent, most likely on another shard
+            executor.submit(() -> transactionService.insert(new Transaction(id, 1.0, (id + 1) % 10, TransactionType.values()[(int) (id % 5)])));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        double sum = 0;
+        long children = 0;
+        for (long i = 0; i < 10; i++) {
+            sum += transactionService.getChildrenSum(i);
+            children += transactionService.getChildren(i, null, 10000).getIds().size();
+            assertEquals(transactionService.getChildrenSum(i), transactionService.getSubtreeSum(i));
+            assertEquals((double) transactionService.getChildren(i, null, 10000).getIds().size(),
+                    transactionService.getChildrenSum(i));
+        }
+        assertEquals(2000.0, sum);
+        assertEquals(2000, children);
+        assertEquals(410, transactionService.getByType(TransactionType.CARS).size());
+        assertEquals(400, transactionService.getByType(TransactionType.AUDIO).size());
+    }
+}
@@ -1,18 +1,29 @@
 package unit;
 
+import model.IdPage;
+import model.InsertResult;
 import model.Transaction;
 import model.TransactionType;
 import org.junit.Test;
 import service.TransactionService;
+import service.WriteSequencer;
 import service.exceptions.InvalidTransactionException;
 import service.exceptions.TransactionNotFoundException;
+import service.index.IdSet;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 
 /**
@@ -37,6 +48,12 @@ public class TransactionServiceTest {
         transactionService.insert(transaction);
     }
 
+    @Test(expected = InvalidTransactionException.class)
+    public void nanAmountTransactionTest() {
+        Transaction transaction = new Transaction(1L, Double.NaN, null, TransactionType.CARS);
+        transactionService.insert(transaction);
+    }
+
     @Test
     public void transactionInsertionTest() {
         Transaction transaction = new Transaction(1L, 10.0, null, TransactionType.CARS);
@@ -162,6 +179,30 @@ public class TransactionServiceTest {
         transactionService.insert(transaction);
     }
 
+    @Test
+    public void missingTransactionTest() {
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        assertEquals(null, transactionService.find(2L));
+        assertFalse(transactionService.exists(2L));
+        assertTrue(transactionService.exists(1L));
+        assertEquals(0.0, transactionService.childrenSum(1L));
+        assertEquals(0.0, transactionService.subtreeSum(1L));
+    }
+
+    @Test
+    public void overflowedSumTest() {
+        transactionService.insert(new Transaction(1L, 0.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 0.0, 1L, TransactionType.CARS));
+        transactionService.insert(new Transaction(3L, Double.MAX_VALUE, 2L, TransactionType.CARS));
+        transactionService.insert(new Transaction(4L, Double.MAX_VALUE, 2L, TransactionType.CARS));
+        transactionService.insert(new Transaction(5L, 0.0, null, TransactionType.CARS));
+        // the infinite sum of 2 leaves 1 for 5, which leaves NaN behind
+        transactionService.insert(new Transaction(2L, 0.0, 5L, TransactionType.CARS));
+
+        assertTrue(Double.isNaN(transactionService.getSubtreeSum(1L)));
+        assertEquals(Double.POSITIVE_INFINITY, transactionService.getSubtreeSum(5L));
+    }
+
     @Test
     public void transactionSameType() {
         transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
@@ -198,6 +239,319 @@ public class TransactionServiceTest {
         compareSets(new HashSet(Arrays.asList(1L)), new HashSet(transactionService.getByType(TransactionType.CARS)));
     }
 
+    @Test(expected = InvalidTransactionException.class)
+    public void transactionDeepCyclicInsertionTest() {
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 10.0, 1L, TransactionType.CARS));
+        transactionService.insert(new Transaction(3L, 10.0, 2L, TransactionType.CARS));
+        transactionService.insert(new Transaction(1L, 10.0, 3L, TransactionType.CARS));
+    }
+
+    @Test
+    public void transactionSumKeptOnParentReplaceTest() {
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 10.0, 1L, TransactionType.CARS));
+        transactionService.insert(new Transaction(1L, 30.0, null, TransactionType.AUDIO));
+
+        assertEquals(10.0, transactionService.getChildrenSum(1L));
+    }
+
+    @Test
+    public void transactionConcurrentInsertionTest() throws InterruptedException {
+        transactionService.insert(new Transaction(0L, 0.0, null, TransactionType.CARS));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (long i = 1; i <= 1000; i++) {
+            final long id = i;
+            executor.submit(() -> transactionService.insert(new Transaction(id, 1.0, 0L, TransactionType.CARS)));
+            executor.submit(() -> transactionService.getChildrenSum(0L));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(1000.0, transactionService.getChildrenSum(0L));
+        assertEquals(1001, transactionService.getByType(TransactionType.CARS).size());
+    }
+
+    @Test
+    public void transactionSequencedInsertionTest() throws InterruptedException {
+        final WriteSequencer sequencer = new WriteSequencer(transactionService, 8);
+        sequencer.insert(new Transaction(0L, 0.0, null, TransactionType.CARS));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (long i = 1; i <= 1000; i++) {
+            final long id = i;
+            executor.submit(() -> sequencer.insert(new Transaction(id, 1.0, 0L, TransactionType.CARS)));
+            executor.submit(() -> transactionService.getChildrenSum(0L));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(1000.0, transactionService.getChildrenSum(0L));
+        assertEquals(1001, transactionService.getByType(TransactionType.CARS).size());
+        try {
+            sequencer.insert(new Transaction(2000L, 1.0, 1999L, TransactionType.CARS));
+            fail();
+        } catch (TransactionNotFoundException e) {
+            assertEquals("Transaction id 1999 not found.", e.getMessage());
+        }
+        sequencer.close();
+    }
+
+    @Test
+    public void transactionBatchInsertionTest() {
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        List<InsertResult> results = transactionService.insertAll(Arrays.asList(
+                new Transaction(4L, 1.0, 3L, TransactionType.CARS),
+                new Transaction(3L, 2.0, 2L, TransactionType.CARS),
+                new Transaction(2L, 4.0, 1L, TransactionType.AUDIO),
+                new Transaction(5L, 8.0, 6L, TransactionType.CARS),
+                new Transaction(6L, null, null, TransactionType.CARS)));
+
+        assertEquals(5, results.size());
+        assertTrue(results.get(0).isOk());
+        assertTrue(results.get(1).isOk());
+        assertTrue(results.get(2).isOk());
+        assertEquals((Long) 5L, results.get(3).getId());
+        assertEquals(Arrays.asList("Transaction id 6 not found."), results.get(3).getErrors());
+        assertEquals(Arrays.asList("amount may not be null"), results.get(4).getErrors());
+
+        assertEquals(4.0, transactionService.getChildrenSum(1L));
+        assertEquals(2.0, transactionService.getChildrenSum(2L));
+        assertEquals(1.0, transactionService.getChildrenSum(3L));
+        compareSets(new HashSet(Arrays.asList(2L)), new HashSet<>(transactionService.getByType(TransactionType.AUDIO)));
+    }
+
+    @Test
+    public void insertAllDuplicatesTest() {
+        transactionService.insert(new Transaction(1L, 1.0, null, TransactionType.CARS));
+        // the later copy wins, although its parent comes first
+        List<InsertResult> results = transactionService.insertAll(Arrays.asList(
+                new Transaction(5L, 1.0, 7L, TransactionType.CARS),
+                new Transaction(7L, 2.0, null, TransactionType.CARS),
+                new Transaction(5L, 4.0, 1L, TransactionType.AUDIO),
+                new Transaction(8L, 8.0, 5L, TransactionType.CARS)));
+
+        for (InsertResult result : results) {
+            assertTrue(result.isOk());
+        }
+        assertEquals((Long) 1L, transactionService.get(5L).getParentId());
+        assertEquals(4.0, transactionService.getChildrenSum(1L));
+        assertEquals(0.0, transactionService.getChildrenSum(7L));
+        assertEquals(12.0, transactionService.getSubtreeSum(1L));
+        assertEquals(Arrays.asList(5L), transactionService.getChildren(1L, null, 10).getIds());
+        compareSets(new HashSet(Arrays.asList(5L)), new HashSet<>(transactionService.getByType(TransactionType.AUDIO)));
+    }
+
+    @Test
+    public void transactionSubtreeSumTest() {
+        transactionService.insert(new Transaction(1L, 1.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 2.0, 1L, TransactionType.CARS));
+        transactionService.insert(new Transaction(3L, 4.0, 2L, TransactionType.CARS));
+        transactionService.insert(new Transaction(4L, 8.0, 3L, TransactionType.CARS));
+        transactionService.insert(new Transaction(5L, 16.0, 1L, TransactionType.CARS));
+
+        assertEquals(30.0, transactionService.getSubtreeSum(1L));
+        assertEquals(12.0, transactionService.getSubtreeSum(2L));
+        assertEquals(0.0, transactionService.getSubtreeSum(4L));
+        assertEquals(18.0, transactionService.getChildrenSum(1L));
+
+        // amount change
+        transactionService.insert(new Transaction(4L, 10.0, 3L, TransactionType.CARS));
+        assertEquals(32.0, transactionService.getSubtreeSum(1L));
+        assertEquals(10.0, transactionService.getSubtreeSum(3L));
+
+        // move the subtree of 3 under 5
+        transactionService.insert(new Transaction(3L, 4.0, 5L, TransactionType.CARS));
+        assertEquals(Arrays.asList(3L), transactionService.getChildren(5L, null, 10).getIds());
+        assertEquals(Arrays.asList(), transactionService.getChildren(2L, null, 10).getIds());
+        assertEquals(32.0, transactionService.getSubtreeSum(1L));
+        assertEquals(0.0, transactionService.getSubtreeSum(2L));
+        assertEquals(14.0, transactionService.getSubtreeSum(5L));
+
+        // detach the subtree of 5
+        transactionService.insert(new Transaction(5L, 16.0, null, TransactionType.CARS));
+        assertEquals(2.0, transactionService.getSubtreeSum(1L));
+        assertEquals(14.0, transactionService.getSubtreeSum(5L));
+    }
+
+    @Test
+    public void transactionConcurrentSubtreeSumTest() throws InterruptedException {
+        transactionService.insert(new Transaction(0L, 0.0, null, TransactionType.CARS));
+        for (long i = 1; i <= 10; i++) {
+            transactionService.insert(new Transaction(i, 0.0, i - 1, TransactionType.CARS));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (long i = 11; i <= 1000; i++) {
+            final long id = i;
+            executor.submit(() -> transactionService.insert(new Transaction(id, 1.0, id % 11, TransactionType.CARS)));
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(990.0, transactionService.getSubtreeSum(0L));
+    }
+
+    @Test
+    public void transactionConcurrentMoveTest() throws InterruptedException {
+        for (long i = 0; i < 4; i++) {
+            transactionService.insert(new Transaction(i, 0.0, null, TransactionType.CARS));
+        }
+        for (long i = 10; i < 50; i++) {
+            transactionService.insert(new Transaction(i, 0.0, i % 4, TransactionType.CARS));
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        for (int i = 0; i < 4000; i++) {
+            final long id = i;
+            executor.submit(() -> {
+                if (id % 4 != 0) {
+                    transactionService.insert(new Transaction(100 + id, 1.0, 10 + id * 13 % 40, TransactionType.CARS));
+                    return;
+                }
+                // under a root, or under another one, which may close a cycle
+                final long parentId = id % 8 == 0 ? id / 8 % 4 : 10 + id * 7 % 40;
+                try {
+                    transactionService.insert(new Transaction(10 + id % 40, 0.0, parentId, TransactionType.CARS));
+                } catch (InvalidTransactionException e) {
+                    // rejected cycle
+                }
+            });
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+        final double[] expected = new double[50];
+        for (long leaf = 100; leaf < 4100; leaf++) {
+            if (transactionService.find(leaf) == null) {
+                continue;
+            }
+            Long current = transactionService.get(leaf).getParentId();
+            while (current != null) {
+                expected[current.intValue()] += 1.0;
+                current = transactionService.get(current).getParentId();
+            }
+        }
+        assertEquals(3000.0, expected[0] + expected[1] + expected[2] + expected[3]);
+        for (long id = 0; id < 50; id++) {
+            if (id < 4 || id >= 10) {
+                assertEquals(expected[(int) id], transactionService.getSubtreeSum(id));
+            }
+        }
+    }
+
+    @Test
+    public void transactionChildrenTest() {
+        transactionService.insert(new Transaction(1L, 1.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 1.0, null, TransactionType.CARS));
+        for (long i = 10; i > 2; i--) {
+            transactionService.insert(new Transaction(i, 1.0, 1L, TransactionType.CARS));
+        }
+        transactionService.insert(new Transaction(5L, 1.0, 2L, TransactionType.CARS));
+
+        IdPage page = transactionService.getChildren(1L, null, 3);
+        assertEquals(Arrays.asList(3L, 4L, 6L), page.getIds());
+        assertEquals((Long) 6L, page.getNext());
+        page = transactionService.getChildren(1L, page.getNext(), 5);
+        assertEquals(Arrays.asList(7L, 8L, 9L, 10L), page.getIds());
+        assertEquals(null, page.getNext());
+        assertEquals(Arrays.asList(5L), transactionService.getChildren(2L, null, 5).getIds());
+    }
+
+    @Test
+    public void transactionSubtreePagesTest() {
+        transactionService.insert(new Transaction(1L, 1.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 1.0, 1L, TransactionType.CARS));
+        transactionService.insert(new Transaction(3L, 1.0, 2L, TransactionType.CARS));
+        transactionService.insert(new Transaction(4L, 1.0, 3L, TransactionType.CARS));
+        transactionService.insert(new Transaction(5L, 1.0, 2L, TransactionType.CARS));
+        transactionService.insert(new Transaction(6L, 1.0, 1L, TransactionType.CARS));
+        transactionService.insert(new Transaction(7L, 1.0, 6L, TransactionType.CARS));
+
+        assertEquals(Arrays.asList(2L, 3L, 4L, 5L, 6L, 7L), transactionService.getSubtree(1L, null, 100).getIds());
+
+        List<Long> ids = new ArrayList<>();
+        Long after = null;
+        do {
+            IdPage page = transactionService.getSubtree(1L, after, 2);
+            ids.addAll(page.getIds());
+            after = page.getNext();
+        } while (after != null);
+        assertEquals(Arrays.asList(2L, 3L, 4L, 5L, 6L, 7L), ids);
+
+        assertEquals(Arrays.asList(4L, 5L), transactionService.getSubtree(2L, 3L, 100).getIds());
+    }
+
+    @Test(expected = InvalidTransactionException.class)
+    public void transactionSubtreeInvalidCursorTest() {
+        transactionService.insert(new Transaction(1L, 1.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 1.0, null, TransactionType.CARS));
+        transactionService.getSubtree(1L, 2L, 10);
+    }
+
+    @Test
+    public void transactionTypePagesTest() {
+        for (long i = 1; i <= 10; i++) {
+            transactionService.insert(new Transaction(i, 1.0, null,
+                    i % 3 == 0 ? TransactionType.CARS : i % 3 == 1 ? TransactionType.AUDIO : TransactionType.VIDEO));
+        }
+
+        IdPage page = transactionService.getByTypes(Arrays.asList(TransactionType.CARS), null, 2);
+        assertEquals(Arrays.asList(3L, 6L), page.getIds());
+        assertEquals((Long) 6L, page.getNext());
+        page = transactionService.getByTypes(Arrays.asList(TransactionType.CARS), page.getNext(), 2);
+        assertEquals(Arrays.asList(9L), page.getIds());
+        assertEquals(null, page.getNext());
+
+        List<Long> ids = new ArrayList<>();
+        Long after = null;
+        do {
+            page = transactionService.getByTypes(Arrays.asList(TransactionType.CARS, TransactionType.AUDIO), after, 3);
+            ids.addAll(page.getIds());
+            after = page.getNext();
+        } while (after != null);
+        assertEquals(Arrays.asList(1L, 3L, 4L, 6L, 7L, 9L, 10L), ids);
+    }
+
+    @Test
+    public void transactionSnapshotReadsTest() {
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(2L, 5.0, 1L, TransactionType.CARS));
+
+        Transaction read = transactionService.get(1L);
+        read.setAmount(100.0);
+        read.setSumOfChildren(100.0);
+        transactionService.insert(new Transaction(3L, 1.0, 1L, TransactionType.CARS));
+        assertEquals(5.0, read.getSubtreeSum());
+        assertEquals(10.0, transactionService.get(1L).getAmount());
+        assertEquals(6.0, transactionService.get(1L).getSumOfChildren());
+    }
+
+    @Test
+    public void transactionTypeVersionTest() {
+        transactionService.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        IdSet cars = transactionService.getByType(TransactionType.CARS);
+        assertTrue(cars == transactionService.getByType(TransactionType.CARS));
+
+        transactionService.insert(new Transaction(2L, 10.0, null, TransactionType.CARS));
+        transactionService.insert(new Transaction(3L, 10.0, null, TransactionType.AUDIO));
+        IdSet updated = transactionService.getByType(TransactionType.CARS);
+        assertEquals(1, cars.size());
+        assertEquals(2, updated.size());
+        assertTrue(updated.getVersion() > cars.getVersion());
+        assertEquals(updated.getVersion(), transactionService.getByType(TransactionType.CARS).getVersion());
+
+        // a snapshot is frozen, the writes after it go to a copy
+        for (long id = 20; id > 3; id--) {
+            transactionService.insert(new Transaction(id, 1.0, null, id % 2 == 0 ? TransactionType.CARS : TransactionType.AUDIO));
+        }
+        assertEquals(Arrays.asList(1L), new ArrayList<>(cars));
+        assertEquals(Arrays.asList(1L, 2L), new ArrayList<>(updated));
+        final List<Long> all = new ArrayList<>(transactionService.getByTypes(
+                Arrays.asList(TransactionType.CARS, TransactionType.AUDIO)));
+        assertEquals(20, all.size());
+        for (int i = 0; i < all.size(); i++) {
+            assertEquals(Long.valueOf(i + 1), all.get(i));
+        }
+    }
+
     /**
      * Compare two sets by size and content.
      * @param set1
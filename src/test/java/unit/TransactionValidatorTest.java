@@ -0,0 +1,52 @@
+package unit;
+
+import model.Transaction;
+import model.TransactionType;
+import org.junit.Test;
+import service.TransactionValidator;
+
+import javax.validation.Validation;
+import javax.validation.Validator;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertNull;
+
+/**
+ * Tests that the compiled checks find the violations, with the messages, of Hibernate Validator.
+ *
+ * Created by simone on 08/03/16.
+ */
+public class TransactionValidatorTest {
+
+    private final Validator validator = Validation.buildDefaultValidatorFactory().getValidator();
+
+    @Test
+    public void sameViolationsTest() {
+        final List<Transaction> transactions = Arrays.asList(
+                new Transaction(1L, 10.0, null, TransactionType.CARS),
+                new Transaction(0L, -10.0, 0L, TransactionType.CARS),
+                new Transaction(null, 10.0, null, TransactionType.CARS),
+                new Transaction(-1L, 10.0, null, TransactionType.CARS),
+                new Transaction(1L, null, null, TransactionType.CARS),
+                new Transaction(1L, 10.0, -2L, TransactionType.CARS),
+                new Transaction(1L, 10.0, null, null),
+                new Transaction(-1L, null, -2L, null),
+                new Transaction(null, null, null, null));
+        for (Transaction transaction : transactions) {
+            final Set<String> expected = validator.validate(transaction).stream()
+                    .map(c -> c.getPropertyPath() + " " + c.getMessage())
+                    .collect(Collectors.toSet());
+            final List<String> violations = TransactionValidator.violations(transaction);
+            if (expected.isEmpty()) {
+                assertNull(violations);
+            } else {
+                assertEquals(expected, new HashSet<>(violations));
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package unit;
+
+import model.TransactionType;
+import org.junit.Test;
+import service.index.IdSet;
+import service.index.TypeIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * Tests that the snapshots of the type index keep their ids while the writes after them
+ * go to the delta and get folded.
+ *
+ * Created by simone on 09/03/16.
+ */
+public class TypeIndexTest {
+
+    @Test
+    public void snapshotsTest() {
+        for (int shards : new int[]{1, 4}) {
+            final TypeIndex index = new TypeIndex(shards);
+            final TreeSet<Long> expected = new TreeSet<>();
+            final List<IdSet> snapshots = new ArrayList<>();
+            final List<List<Long>> contents = new ArrayList<>();
+            final Random random = new Random(42);
+            for (long id = 0; id < 20000; id++) {
+                index.add(TransactionType.CARS, id);
+                expected.add(id);
+            }
+            // enough changes to fold the delta a few times, with reads in between
+            for (int i = 0; i < 30000; i++) {
+                final long id = random.nextInt(40000);
+                if (random.nextBoolean()) {
+                    index.add(TransactionType.CARS, id);
+                    expected.add(id);
+                } else {
+                    index.remove(TransactionType.CARS, id);
+                    expected.remove(id);
+                }
+                if (random.nextInt(500) == 0) {
+                    snapshots.add(index.get(TransactionType.CARS));
+                    contents.add(new ArrayList<>(expected));
+                }
+            }
+
+            final IdSet current = index.get(TransactionType.CARS);
+            assertEquals(new ArrayList<>(expected), new ArrayList<>(current));
+            assertEquals(expected.size(), current.size());
+            assertEquals(expected.size(), index.count(TransactionType.CARS));
+            assertEquals(expected.contains(39999L), current.contains(39999L));
+            final long after = 25000;
+            assertArrayEquals(expected.tailSet(after, false).stream().limit(50).mapToLong(Long::longValue).toArray(),
+                    index.page(TransactionType.CARS, after, 50));
+            assertEquals(new ArrayList<>(expected), new ArrayList<>(index.union(Arrays.asList(TransactionType.CARS))));
+            for (int i = 0; i < snapshots.size(); i++) {
+                assertEquals(contents.get(i), new ArrayList<>(snapshots.get(i)));
+                assertEquals(contents.get(i).size(), snapshots.get(i).size());
+            }
+        }
+    }
+}
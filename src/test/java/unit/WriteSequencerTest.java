@@ -0,0 +1,117 @@
+package unit;
+
+import model.Transaction;
+import model.TransactionType;
+import org.junit.After;
+import org.junit.Test;
+import service.TransactionService;
+import service.WriteSequencer;
+import service.exceptions.TransactionNotFoundException;
+import service.store.MapTransactionStore;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static junit.framework.TestCase.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static junit.framework.TestCase.fail;
+
+/**
+ * Tests that each insertion through the sequencer gets its own result, whatever the
+ * others of its batch do, and that the writer stops on unexpected failures.
+ *
+ * Created by simone on 09/03/16.
+ */
+public class WriteSequencerTest {
+
+    private static final long MISSING = 1000000L;
+
+    private final TransactionService transactionService = new TransactionService(new MapTransactionStore() {
+        @Override
+        public void put(Transaction transaction) {
+            if (transaction.getId() == 1001) {
+                throw new IllegalStateException("Store failed");
+            }
+            if (transaction.getId() == 2001) {
+                throw new AssertionError("Store broke");
+            }
+            super.put(transaction);
+        }
+    });
+    private final WriteSequencer sequencer = new WriteSequencer(transactionService, 64);
+
+    @After
+    public void close() {
+        sequencer.close();
+    }
+
+    @Test
+    public void unexpectedFailureTest() {
+        sequencer.insert(new Transaction(1L, 10.0, null, TransactionType.CARS));
+        try {
+            sequencer.insert(new Transaction(1001L, 1.0, null, TransactionType.CARS));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("Store failed", e.getCause().getMessage());
+        }
+        assertFalse(transactionService.exists(1001L));
+        assertWriterStopped();
+        assertEquals(10.0, transactionService.get(1L).getAmount());
+    }
+
+    @Test
+    public void errorTest() {
+        try {
+            sequencer.insert(new Transaction(2001L, 1.0, null, TransactionType.CARS));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("Store broke", e.getCause().getMessage());
+        }
+        assertFalse(transactionService.exists(2001L));
+        assertWriterStopped();
+    }
+
+    @Test
+    public void ownResultsTest() throws Exception {
+        sequencer.insert(new Transaction(1L, 0.0, null, TransactionType.CARS));
+        final ExecutorService executor = Executors.newFixedThreadPool(8);
+        final List<Future<Transaction>> results = new ArrayList<>();
+        for (long id = 2; id < 1000; id++) {
+            // every tenth parent is missing
+            final Transaction transaction = new Transaction(id, 1.0, id % 10 == 0 ? MISSING : 1L, TransactionType.CARS);
+            results.add(executor.submit(() -> sequencer.insert(transaction)));
+        }
+        int missing = 0;
+        for (int i = 0; i < results.size(); i++) {
+            final long id = i + 2;
+            try {
+                final Transaction transaction = results.get(i).get();
+                assertEquals(1.0, transactionService.get(transaction.getId()).getAmount());
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof TransactionNotFoundException)) {
+                    throw e;
+                }
+                assertFalse(transactionService.exists(id));
+                missing++;
+            }
+        }
+        executor.shutdown();
+        assertEquals(99, missing);
+        assertEquals(899.0, transactionService.getChildrenSum(1L));
+        assertEquals(899.0, transactionService.getSubtreeSum(1L));
+    }
+
+    private void assertWriterStopped() {
+        try {
+            sequencer.insert(new Transaction(2L, 1.0, null, TransactionType.CARS));
+            fail("Expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            assertEquals("The sequencer writer stopped.", e.getMessage());
+        }
+        assertFalse(transactionService.exists(2L));
+    }
+}